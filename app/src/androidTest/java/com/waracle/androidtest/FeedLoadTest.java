@@ -0,0 +1,213 @@
+package com.waracle.androidtest;
+
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+import android.widget.ListView;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * End to end load tests. MainActivity is started against a LocalHttpServer running in the test's
+ * own process, serving a synthetic feed and images, over a fast, slow or unreliable network. For
+ * each run it reports the time until the first row is on screen, the time until every row on
+ * screen has its image (or has given up on it), how long rows spent blank waiting for an image
+ * or its preview, and the peak memory used along the way. The slow network is run with and
+ * without previews to compare the two.
+ *
+ * Nothing leaves the device, so runs are repeatable and work offline. Each test serves its
+ * content under its own path, so nothing cached by an earlier test is reused - every run is a
+ * cold start. The results are logged:
+ *
+ *   ./gradlew connectedAndroidTest
+ *   adb logcat -s FeedLoadTest
+ */
+public class FeedLoadTest extends ActivityInstrumentationTestCase2<MainActivity> {
+
+    private static final String TAG = FeedLoadTest.class.getSimpleName();
+
+    private static final int ROWS = 2000;
+    private static final int DISTINCT_IMAGES = 20;
+    //Bigger than the rows show them, like the photos in the real feed
+    private static final int IMAGE_WIDTH = 512;
+    private static final int IMAGE_HEIGHT = 384;
+    private static final long TIMEOUT_MILLIS = 60000;
+    private static final long POLL_MILLIS = 10;
+    //Like the photos in the real feed, and unlike PNGs they can be previewed from their start
+    private static final int JPEG_QUALITY = 85;
+
+    private LocalHttpServer mServer;
+
+    public FeedLoadTest() {
+        super(MainActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalHttpServer();
+        mServer.start();
+        //A snapshot left by an earlier run would be shown before the feed was even requested
+        new File(getInstrumentation().getTargetContext().getFilesDir(),
+                CakeFeedLoader.SNAPSHOT_FILE).delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        setTwoPass(true);
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testFastNetwork() throws Exception {
+        load();
+    }
+
+    public void testSlowNetwork() throws Exception {
+        //Roughly a poor 3G connection
+        mServer.setLatencyMillis(300);
+        mServer.setBytesPerSecond(128 * 1024);
+        load();
+    }
+
+    public void testSlowNetworkSinglePass() throws Exception {
+        setTwoPass(false);
+        testSlowNetwork();
+    }
+
+    public void testImageErrors() throws Exception {
+        mServer.setErrors("/" + getName() + "/images/", 0.2, LocalHttpServer.ERROR_STATUS);
+        load();
+    }
+
+    public void testDroppedConnections() throws Exception {
+        mServer.setErrors("/" + getName() + "/images/", 0.2, LocalHttpServer.ERROR_DISCONNECT);
+        load();
+    }
+
+    /**
+     * Starts the activity against the server and waits for the rows on screen to have loaded
+     * their images, reporting how long it took.
+     */
+    private void load() throws Exception {
+        String path = "/" + getName() + "/";
+        String feedUrl = SyntheticContent.serve(mServer, path + "feed.json", ROWS,
+                path + "images/", DISTINCT_IMAGES, IMAGE_WIDTH, IMAGE_HEIGHT);
+        //Served at the paths the feed gives, the app goes by the content rather than the name
+        for (int i = 0; i < DISTINCT_IMAGES; i++) {
+            mServer.setResource(path + "images/" + i + ".png", jpegResource(i));
+        }
+        Intent intent = new Intent(Intent.ACTION_MAIN);
+        intent.putExtra(MainActivity.EXTRA_FEED_URL, feedUrl);
+        setActivityIntent(intent);
+
+        final Metrics[] metrics = new Metrics[1];
+        //The blank time, blank rows and previews so far, the loader is shared by every test
+        final long[] before = new long[3];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                metrics[0] = MainActivity.getMetrics(getInstrumentation().getTargetContext());
+                if (metrics[0] instanceof HistogramMetrics) {
+                    ((HistogramMetrics) metrics[0]).reset();
+                }
+                readBlankTimes(ImageLoader.getInstance(getInstrumentation().getTargetContext()),
+                        before);
+            }
+        });
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+
+        long start = SystemClock.elapsedRealtime();
+        MainActivity activity = getActivity();
+        final ListView listView = (ListView) activity.findViewById(android.R.id.list);
+        final ImageLoader imageLoader = ImageLoader.getInstance(activity);
+        //The rows on screen, and the images still loading, read on the UI thread
+        final int[] state = new int[2];
+        long firstRowMillis = -1;
+        long allImagesMillis = -1;
+        long peakHeapBytes = 0;
+        long peakNativeBytes = 0;
+        while (SystemClock.elapsedRealtime() - start < TIMEOUT_MILLIS) {
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    state[0] = listView.getChildCount();
+                    state[1] = imageLoader.getInFlightCount();
+                }
+            });
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            peakHeapBytes = Math.max(peakHeapBytes, runtime.totalMemory() - runtime.freeMemory());
+            peakNativeBytes = Math.max(peakNativeBytes, Debug.getNativeHeapAllocatedSize());
+            if (firstRowMillis < 0 && state[0] > 0) {
+                firstRowMillis = elapsed;
+            }
+            //The rows start their image loads as they are laid out, so once there are rows and
+            //no loads the screen is done
+            if (firstRowMillis >= 0 && state[1] == 0) {
+                allImagesMillis = elapsed;
+                break;
+            }
+            SystemClock.sleep(POLL_MILLIS);
+        }
+
+        final long[] after = new long[3];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                readBlankTimes(imageLoader, after);
+            }
+        });
+
+        String report = String.format(Locale.US, "%s: first row %dms, all images %dms, "
+                        + "blank %dms over %d rows, %d previews, peak heap %dKB, "
+                        + "peak native heap %dKB, %d requests, %d body bytes, "
+                        + "%d failed by the server", getName(), firstRowMillis, allImagesMillis,
+                after[0] - before[0], after[1] - before[1], after[2] - before[2],
+                peakHeapBytes / 1024, peakNativeBytes / 1024, mServer.getRequestCount(),
+                mServer.getBodyBytesSent(), mServer.getErrorCount());
+        Log.i(TAG, report);
+        Log.i(TAG, "Fetch: " + imageLoader.getFetchStage());
+        Log.i(TAG, "Decode: " + imageLoader.getDecodeStage());
+        if (metrics[0] instanceof HistogramMetrics) {
+            Log.i(TAG, metrics[0].toString());
+        }
+        assertTrue("No rows within " + TIMEOUT_MILLIS + "ms", firstRowMillis >= 0);
+        assertTrue("Images still loading after " + TIMEOUT_MILLIS + "ms", allImagesMillis >= 0);
+    }
+
+    private static void readBlankTimes(ImageLoader imageLoader, long[] into) {
+        into[0] = imageLoader.getBlankTimeMillis();
+        into[1] = imageLoader.getBlankCount();
+        into[2] = imageLoader.getPreviewCount();
+    }
+
+    private void setTwoPass(final boolean twoPass) {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                ImageLoader.getInstance(getInstrumentation().getTargetContext())
+                        .setTwoPass(twoPass);
+            }
+        });
+    }
+
+    /**
+     * @return the synthetic image with this seed re-encoded as a JPEG
+     */
+    private static LocalHttpServer.Resource jpegResource(int seed) {
+        byte[] png = SyntheticContent.png(IMAGE_WIDTH, IMAGE_HEIGHT, seed);
+        Bitmap bitmap = BitmapFactory.decodeByteArray(png, 0, png.length);
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, jpeg);
+        bitmap.recycle();
+        return new LocalHttpServer.Resource(200, jpeg.toByteArray(), "\"jpeg-" + seed + "\"",
+                null, "max-age=86400", "image/jpeg");
+    }
+}
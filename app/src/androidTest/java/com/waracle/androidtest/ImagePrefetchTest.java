@@ -0,0 +1,91 @@
+package com.waracle.androidtest;
+
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+
+/**
+ * Prefetches images from a LocalHttpServer that fails every one of them, and checks that a
+ * failed prefetch isn't asked for again while its row stays near the screen.
+ */
+public class ImagePrefetchTest extends InstrumentationTestCase {
+
+    private static final int SIZE = 100;
+    private static final long TIMEOUT_MILLIS = 10000;
+    //Far longer than a failure takes to reach the UI thread and free up the budget
+    private static final long SETTLE_MILLIS = 1000;
+
+    private LocalHttpServer mServer;
+    private ImageLoader mImageLoader;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalHttpServer();
+        mServer.start();
+        mServer.setErrors("/images/", 1, LocalHttpServer.ERROR_STATUS);
+        //Without a disk cache, so every prefetch goes to the server
+        mImageLoader = new ImageLoader(1024 * 1024, 1024 * 1024);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testFailedPrefetchIsOnlyFetchedOnce() throws Exception {
+        int[] window = {ImageIds.getId(mServer.url("/images/broken.jpg"))};
+        prefetch(window);
+        waitForRequests(1);
+        SystemClock.sleep(SETTLE_MILLIS);
+        assertEquals(1, mServer.getRequestCount());
+
+        //The list asks again for every row it scrolls past while the image is still in reach
+        prefetch(window);
+        SystemClock.sleep(SETTLE_MILLIS);
+        assertEquals(1, mServer.getRequestCount());
+
+        //Once it has left the window it gets another go, but still only one
+        prefetch(new int[0]);
+        prefetch(window);
+        waitForRequests(2);
+        SystemClock.sleep(SETTLE_MILLIS);
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    public void testANewFeedRetriesFailedPrefetches() throws Exception {
+        final int[] window = {ImageIds.getId(mServer.url("/images/broken.jpg"))};
+        prefetch(window);
+        waitForRequests(1);
+        SystemClock.sleep(SETTLE_MILLIS);
+
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mImageLoader.forgetFailedPrefetches();
+                mImageLoader.prefetch(window, SIZE, SIZE);
+            }
+        });
+        waitForRequests(2);
+        SystemClock.sleep(SETTLE_MILLIS);
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    private void prefetch(final int[] imageIds) {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mImageLoader.prefetch(imageIds, SIZE, SIZE);
+            }
+        });
+    }
+
+    private void waitForRequests(int count) {
+        long start = SystemClock.elapsedRealtime();
+        while (mServer.getRequestCount() < count
+                && SystemClock.elapsedRealtime() - start < TIMEOUT_MILLIS) {
+            SystemClock.sleep(10);
+        }
+        assertEquals(count, mServer.getRequestCount());
+    }
+}
@@ -0,0 +1,172 @@
+package com.waracle.androidtest;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.io.File;
+
+/**
+ * Decodes encoded images at roughly the size they will be displayed at instead of at their full
+ * resolution. The feed links to multi-megapixel photos that end up in a 128dp ImageView, and
+ * decoding those in full wastes tens of megabytes per image - enough to exceed the maximum
+ * texture size or run out of memory altogether.
+ *
+ * Decoding is done in two passes. The first only reads the dimensions from the image header, and
+ * these are used to pick a power of two inSampleSize so the second pass produces a bitmap no
+ * smaller than the target size.
+ *
+ * When a BitmapPool is given, the second pass decodes into a pooled bitmap of a suitable size
+ * where the platform allows it, and the result is left mutable so that it can go back into the
+ * pool once it is evicted.
+ *
+ * decodePreview makes a low quality stand-in from the start of an image that is still
+ * downloading, subsampled much further so it costs little to decode or keep.
+ */
+public final class BitmapDecoder {
+
+    private static final String MIME_JPEG = "image/jpeg";
+    //A preview is subsampled this much more than the image, so it has 1/64th of the pixels
+    private static final int PREVIEW_SAMPLE_FACTOR = 8;
+
+    private BitmapDecoder() { /**/ }
+
+    /**
+     * @param data the encoded image
+     * @param reqWidth the width the image will be displayed at, or 0 if unknown
+     * @param reqHeight the height the image will be displayed at, or 0 if unknown
+     * @param allowRgb565 whether JPEGs, which never have an alpha channel, may be decoded to
+     *                    RGB_565 to halve their memory use
+     * @param pool bitmaps that may be decoded into, or null to always allocate a new one
+     * @return the decoded bitmap, or null if the data could not be decoded
+     */
+    public static Bitmap decode(final byte[] data, int reqWidth, int reqHeight,
+                                boolean allowRgb565, BitmapPool pool) {
+        return decode(new Source() {
+            @Override
+            Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            }
+        }, reqWidth, reqHeight, 1, allowRgb565, pool);
+    }
+
+    /**
+     * Decodes a preview from the first part of an image. How much of the image it shows depends
+     * on the format: the first scans of a progressive JPEG are a blurry version of the whole
+     * image, a baseline JPEG gives its top rows, and formats the platform can't decode from part
+     * of the file give nothing.
+     * @param data the start of the encoded image
+     * @param length the number of bytes of data that have arrived
+     * @return the preview, never pooled, or null if nothing could be decoded
+     * @see #decode(byte[], int, int, boolean, BitmapPool)
+     */
+    public static Bitmap decodePreview(final byte[] data, final int length, int reqWidth,
+                                       int reqHeight, boolean allowRgb565) {
+        return decode(new Source() {
+            @Override
+            Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeByteArray(data, 0, length, options);
+            }
+        }, reqWidth, reqHeight, PREVIEW_SAMPLE_FACTOR, allowRgb565, null);
+    }
+
+    /**
+     * Decodes an image straight from a file, such as a DiskImageCache entry, without reading the
+     * encoded bytes into memory first.
+     * @param file the encoded image
+     * @see #decode(byte[], int, int, boolean, BitmapPool)
+     */
+    public static Bitmap decode(File file, int reqWidth, int reqHeight, boolean allowRgb565,
+                                BitmapPool pool) {
+        final String path = file.getPath();
+        return decode(new Source() {
+            @Override
+            Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeFile(path, options);
+            }
+        }, reqWidth, reqHeight, 1, allowRgb565, pool);
+    }
+
+    /**
+     * Where the encoded image is read from. It is read twice, first for the bounds.
+     */
+    private abstract static class Source {
+        abstract Bitmap decode(BitmapFactory.Options options);
+    }
+
+    /**
+     * @param sampleFactor how much further to subsample than the target size calls for
+     */
+    private static Bitmap decode(Source source, int reqWidth, int reqHeight, int sampleFactor,
+                                 boolean allowRgb565, BitmapPool pool) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+
+        //Read the bounds only, this doesn't allocate any pixels
+        options.inJustDecodeBounds = true;
+        source.decode(options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                reqWidth, reqHeight) * sampleFactor;
+        if (allowRgb565 && MIME_JPEG.equals(options.outMimeType)) {
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+        } else {
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        }
+
+        if (pool != null && BitmapPool.isSupported()) {
+            addInBitmapOptions(options, pool);
+            Bitmap pooled = options.inBitmap;
+            try {
+                Bitmap bitmap = source.decode(options);
+                if (bitmap != null || pooled == null) {
+                    return bitmap;
+                }
+                //decodeFile catches the platform turning the pooled bitmap down and returns
+                //null, the same as for an image that can't be decoded, so try once without it
+            } catch (IllegalArgumentException e) {
+                //The platform turned the pooled bitmap down
+            }
+            //Put it back and decode into a new one
+            pool.put(pooled);
+            options.inBitmap = null;
+        }
+        return source.decode(options);
+    }
+
+    /**
+     * Looks for a pooled bitmap the decode can reuse. The result is made mutable either way so
+     * it can be pooled later.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void addInBitmapOptions(BitmapFactory.Options options, BitmapPool pool) {
+        options.inMutable = true;
+        if (options.inSampleSize > 1 && !BitmapPool.canReuseForSampledDecode()) {
+            return;
+        }
+        //Round up, the decoder doesn't always truncate the subsampled size
+        int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+        int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+        options.inBitmap = pool.get(width, height, options.inPreferredConfig);
+    }
+
+    /**
+     * Works out the largest power of two the image can be subsampled by while keeping both
+     * dimensions at least as large as the requested ones.
+     * @return the sample size, 1 if the image shouldn't be subsampled
+     */
+    static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return inSampleSize;
+        }
+        while (width / (inSampleSize * 2) >= reqWidth && height / (inSampleSize * 2) >= reqHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+}
@@ -0,0 +1,87 @@
+package com.waracle.androidtest;
+
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+
+/**
+ * In-memory tier of the image cache. Bitmaps are keyed by image id and target size, packed into a
+ * long (see ImageIds.getCacheKey), and the cache is bounded by the number of bytes the decoded
+ * pixels take up rather than by entry count, so a handful of large photos can't push the process
+ * into an OutOfMemoryError. When the budget is exceeded the least recently used bitmaps are
+ * evicted first.
+ *
+ * ImageLoader only reads and writes the cache on the UI thread, so that an evicted bitmap can't
+ * be pooled while a delivery is on its way to a view. LruCache does its own locking all the same,
+ * so it is still safe to read from any thread. Hit, miss and eviction counts come from LruCache
+ * (hitCount(), missCount(), evictionCount()).
+ *
+ * Bitmaps that leave the cache are passed to an OnRemovedListener, which ImageLoader uses to hand
+ * them to its BitmapPool once they are no longer displayed either.
+ */
+public class BitmapMemoryCache extends LruCache<Long, Bitmap> {
+
+    //Fraction of the per-app heap handed to decoded bitmaps
+    private static final int HEAP_FRACTION = 8;
+
+    /**
+     * Told about every bitmap that is evicted, removed or replaced, on the thread that changed
+     * the cache.
+     */
+    public interface OnRemovedListener {
+        void onRemoved(Bitmap bitmap);
+    }
+
+    private volatile OnRemovedListener mOnRemovedListener;
+
+    /**
+     * @param maxBytes the maximum number of bytes of bitmap data to hold
+     */
+    public BitmapMemoryCache(int maxBytes) {
+        super(maxBytes);
+    }
+
+    /**
+     * Works out a sensible cache budget from the device's heap class - one eighth of the heap
+     * the system gives each application.
+     * @param context any context, used to look up the ActivityManager
+     * @return the budget in bytes
+     */
+    public static int getDefaultMaxBytes(Context context) {
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClassBytes = activityManager.getMemoryClass() * 1024 * 1024;
+        return memoryClassBytes / HEAP_FRACTION;
+    }
+
+    public void setOnRemovedListener(OnRemovedListener listener) {
+        mOnRemovedListener = listener;
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, Long key, Bitmap oldValue, Bitmap newValue) {
+        OnRemovedListener listener = mOnRemovedListener;
+        if (listener != null && oldValue != newValue) {
+            listener.onRemoved(oldValue);
+        }
+    }
+
+    @Override
+    protected int sizeOf(Long key, Bitmap bitmap) {
+        return getBitmapBytes(bitmap);
+    }
+
+    /**
+     * @return the number of bytes used to store the pixels of the bitmap
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR1)
+    public static int getBitmapBytes(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+            return bitmap.getByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
@@ -0,0 +1,233 @@
+package com.waracle.androidtest;
+
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Holds on to bitmaps that are no longer cached or displayed so that their memory can be decoded
+ * into again through BitmapFactory.Options.inBitmap, instead of becoming garbage. Without it every
+ * eviction from the memory cache is followed by a fresh allocation for the next image, and the
+ * garbage collector has to run in the middle of a fling.
+ *
+ * Bitmaps are bucketed by their allocation size. From KitKat any bitmap whose allocation is big
+ * enough can be reused, so the smallest large enough bucket is used. On Honeycomb to Jelly Bean
+ * the reused bitmap has to have exactly the same dimensions and config, and the decode must not
+ * be subsampled. Before Honeycomb there is no inBitmap and the pool never holds anything.
+ *
+ * The pool has a byte budget of its own. Once full, the bitmaps that have been pooled the longest
+ * are dropped and left to the garbage collector.
+ */
+public class BitmapPool {
+
+    //Ignore candidates this many times larger than needed, they would waste more than they save
+    private static final int MAX_SIZE_MULTIPLE = 4;
+    //Fraction of the per-app heap the pool may hold on to
+    private static final int HEAP_FRACTION = 32;
+
+    private final int mMaxBytes;
+    //Pooled bitmaps bucketed by allocation size
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> mBuckets = new TreeMap<>();
+    //Pooled bitmaps in the order they were added, oldest first
+    private final LinkedHashSet<Bitmap> mOrder = new LinkedHashSet<>();
+    private int mSize;
+
+    private int mPutCount;
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxBytes the maximum number of bytes of bitmap data to hold
+     */
+    public BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Works out the pool budget from the device's heap class - a quarter of what the memory
+     * cache gets, which is enough to cover the evictions of a fast fling.
+     * @param context any context, used to look up the ActivityManager
+     * @return the budget in bytes
+     */
+    public static int getDefaultMaxBytes(Context context) {
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClassBytes = activityManager.getMemoryClass() * 1024 * 1024;
+        return memoryClassBytes / HEAP_FRACTION;
+    }
+
+    /**
+     * @return whether this platform can decode into an existing bitmap at all
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * @return whether this platform can decode a subsampled image into an existing bitmap
+     */
+    public static boolean canReuseForSampledDecode() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * Offers a bitmap to the pool. The caller must no longer use or display the bitmap.
+     * @return whether the bitmap was kept
+     */
+    public synchronized boolean put(Bitmap bitmap) {
+        if (!isSupported() || bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || mOrder.contains(bitmap)) {
+            return false;
+        }
+        int bytes = getAllocationBytes(bitmap);
+        if (bytes > mMaxBytes) {
+            return false;
+        }
+
+        ArrayDeque<Bitmap> bucket = mBuckets.get(bytes);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            mBuckets.put(bytes, bucket);
+        }
+        bucket.push(bitmap);
+        mOrder.add(bitmap);
+        mSize += bytes;
+        mPutCount++;
+        trimToSize(mMaxBytes);
+        return true;
+    }
+
+    /**
+     * Takes a bitmap out of the pool that an image of the given dimensions and config can be
+     * decoded into.
+     * @return the bitmap, or null if there isn't a suitable one
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        int bytes = width * height * getBytesPerPixel(config);
+        Bitmap bitmap = null;
+        if (canReuseForSampledDecode()) {
+            Map.Entry<Integer, ArrayDeque<Bitmap>> entry = mBuckets.ceilingEntry(bytes);
+            if (entry != null && entry.getKey() <= bytes * MAX_SIZE_MULTIPLE) {
+                bitmap = entry.getValue().pop();
+            }
+        } else if (isSupported()) {
+            ArrayDeque<Bitmap> bucket = mBuckets.get(bytes);
+            if (bucket != null) {
+                Iterator<Bitmap> iterator = bucket.iterator();
+                while (iterator.hasNext()) {
+                    Bitmap candidate = iterator.next();
+                    if (candidate.getWidth() == width && candidate.getHeight() == height
+                            && candidate.getConfig() == config) {
+                        iterator.remove();
+                        bitmap = candidate;
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (bitmap == null) {
+            mMissCount++;
+            return null;
+        }
+        removeFromIndex(bitmap, false);
+        mHitCount++;
+        return bitmap;
+    }
+
+    /**
+     * Drops pooled bitmaps, oldest first, until the pool holds no more than maxBytes.
+     */
+    public synchronized void trimToSize(int maxBytes) {
+        Iterator<Bitmap> iterator = mOrder.iterator();
+        while (mSize > maxBytes && iterator.hasNext()) {
+            Bitmap eldest = iterator.next();
+            iterator.remove();
+            removeFromIndex(eldest, true);
+            mEvictionCount++;
+        }
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public int maxSize() {
+        return mMaxBytes;
+    }
+
+    public synchronized int putCount() {
+        return mPutCount;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int requests = mHitCount + mMissCount;
+        int reusePercent = requests != 0 ? (100 * mHitCount / requests) : 0;
+        return String.format("BitmapPool[size=%d,maxSize=%d,reused=%d,misses=%d,reuseRate=%d%%]",
+                mSize, mMaxBytes, mHitCount, mMissCount, reusePercent);
+    }
+
+    /**
+     * Removes the bitmap from the size bucket it is in (unless get already took it out) and
+     * from the byte count.
+     */
+    private void removeFromIndex(Bitmap bitmap, boolean removeFromBucket) {
+        int bytes = getAllocationBytes(bitmap);
+        ArrayDeque<Bitmap> bucket = mBuckets.get(bytes);
+        if (bucket != null) {
+            if (removeFromBucket) {
+                bucket.remove(bitmap);
+            }
+            if (bucket.isEmpty()) {
+                mBuckets.remove(bytes);
+            }
+        }
+        if (!removeFromBucket) {
+            mOrder.remove(bitmap);
+        }
+        mSize -= bytes;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static int getAllocationBytes(Bitmap bitmap) {
+        if (canReuseForSampledDecode()) {
+            return bitmap.getAllocationByteCount();
+        }
+        return BitmapMemoryCache.getBitmapBytes(bitmap);
+    }
+
+    static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+}
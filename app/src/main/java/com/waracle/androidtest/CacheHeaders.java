@@ -0,0 +1,221 @@
+package com.waracle.androidtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.util.Locale;
+
+/**
+ * The parts of an HTTP response that decide whether a cached copy of it can still be used: the
+ * validators (ETag and Last-Modified) that are sent back to the server to ask whether the copy has
+ * changed, and how long the copy stays fresh without asking at all.
+ *
+ * Instances are immutable, a 304 response produces a new instance with merged headers.
+ */
+public class CacheHeaders {
+
+    //Marks a max age the response didn't give
+    static final long UNKNOWN_MAX_AGE = -1;
+
+    private static final String ETAG = "ETag";
+    private static final String LAST_MODIFIED = "Last-Modified";
+    private static final String CONTENT_TYPE = "Content-Type";
+    private static final String CACHE_CONTROL = "Cache-Control";
+    //Our own lines in the stored form, not HTTP headers
+    private static final String RECEIVED = "Received-Millis";
+    private static final String MAX_AGE = "Max-Age-Millis";
+
+    private final String mEtag;
+    private final String mLastModified;
+    private final String mContentType;
+    private final long mReceivedTime;
+    private final long mMaxAge;
+
+    /**
+     * @param etag the ETag, or null
+     * @param lastModified the Last-Modified date, exactly as the server sent it, or null
+     * @param contentType the Content-Type, or null
+     * @param receivedTime when the response was received or last revalidated, in wall clock
+     *                     milliseconds
+     * @param maxAge how long the response stays fresh after receivedTime in milliseconds, or
+     *               UNKNOWN_MAX_AGE if the server didn't say
+     */
+    public CacheHeaders(String etag, String lastModified, String contentType, long receivedTime,
+                        long maxAge) {
+        mEtag = etag;
+        mLastModified = lastModified;
+        mContentType = contentType;
+        mReceivedTime = receivedTime;
+        mMaxAge = maxAge;
+    }
+
+    /**
+     * Reads the headers of a response.
+     * @param connection a connection whose response has been received
+     * @param now the current wall clock time
+     */
+    public static CacheHeaders fromConnection(HttpURLConnection connection, long now) {
+        return new CacheHeaders(connection.getHeaderField(ETAG),
+                connection.getHeaderField(LAST_MODIFIED),
+                connection.getContentType(),
+                now,
+                parseMaxAge(connection.getHeaderField(CACHE_CONTROL)));
+    }
+
+    /**
+     * Merges the headers of a 304 response into these ones. A 304 may leave out any header that
+     * hasn't changed, so only the ones it sends replace ours.
+     * @param connection a connection that received a 304
+     * @param now the current wall clock time
+     */
+    public CacheHeaders revalidated(HttpURLConnection connection, long now) {
+        String etag = connection.getHeaderField(ETAG);
+        String lastModified = connection.getHeaderField(LAST_MODIFIED);
+        String cacheControl = connection.getHeaderField(CACHE_CONTROL);
+        return new CacheHeaders(etag != null ? etag : mEtag,
+                lastModified != null ? lastModified : mLastModified,
+                mContentType,
+                now,
+                cacheControl != null ? parseMaxAge(cacheControl) : mMaxAge);
+    }
+
+    /**
+     * Turns a request into a conditional one, so that the server can answer with a 304 and no
+     * body if our copy is still current.
+     * @return whether there was a validator to send
+     */
+    public boolean addValidators(HttpURLConnection connection) {
+        if (mEtag != null) {
+            connection.setRequestProperty("If-None-Match", mEtag);
+        }
+        if (mLastModified != null) {
+            connection.setRequestProperty("If-Modified-Since", mLastModified);
+        }
+        return mEtag != null || mLastModified != null;
+    }
+
+    /**
+     * @param now the current wall clock time
+     * @param defaultMaxAge the max age to use if the server didn't give one, in milliseconds
+     * @return whether the cached copy can be used without asking the server
+     */
+    public boolean isFresh(long now, long defaultMaxAge) {
+        long maxAge = mMaxAge != UNKNOWN_MAX_AGE ? mMaxAge : defaultMaxAge;
+        long age = now - mReceivedTime;
+        //A clock that went backwards makes the age meaningless, so ask the server
+        return age >= 0 && age < maxAge;
+    }
+
+    public String getEtag() {
+        return mEtag;
+    }
+
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    public String getContentType() {
+        return mContentType;
+    }
+
+    public long getReceivedTime() {
+        return mReceivedTime;
+    }
+
+    public long getMaxAge() {
+        return mMaxAge;
+    }
+
+    /**
+     * Works out how long a response stays fresh from its Cache-Control header. no-cache and
+     * no-store both mean it has to be revalidated every time it is used - it is still stored,
+     * so that it can be served when the server answers 304.
+     * @return the max age in milliseconds, or UNKNOWN_MAX_AGE
+     */
+    static long parseMaxAge(String cacheControl) {
+        if (cacheControl == null) {
+            return UNKNOWN_MAX_AGE;
+        }
+        long maxAge = UNKNOWN_MAX_AGE;
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim().toLowerCase(Locale.US);
+            if (directive.equals("no-cache") || directive.equals("no-store")) {
+                return 0;
+            } else if (directive.startsWith("max-age=")) {
+                try {
+                    String value = directive.substring("max-age=".length()).replace("\"", "");
+                    maxAge = Math.max(0, Long.parseLong(value)) * 1000;
+                } catch (NumberFormatException e) {
+                    //An invalid max-age means the response is already stale
+                    maxAge = 0;
+                }
+            }
+        }
+        return maxAge;
+    }
+
+    /**
+     * Writes the headers as "name: value" lines, read back by read.
+     */
+    void write(Writer writer) throws IOException {
+        writeLine(writer, ETAG, mEtag);
+        writeLine(writer, LAST_MODIFIED, mLastModified);
+        writeLine(writer, CONTENT_TYPE, mContentType);
+        writeLine(writer, RECEIVED, Long.toString(mReceivedTime));
+        writeLine(writer, MAX_AGE, Long.toString(mMaxAge));
+    }
+
+    private static void writeLine(Writer writer, String name, String value) throws IOException {
+        //Header values can't hold line breaks, but don't let a broken server corrupt the file
+        if (value != null && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            writer.write(name + ": " + value + "\n");
+        }
+    }
+
+    /**
+     * Reads headers written by write.
+     * @throws IOException if the lines are not in the expected form
+     */
+    static CacheHeaders read(BufferedReader reader) throws IOException {
+        String etag = null;
+        String lastModified = null;
+        String contentType = null;
+        long receivedTime = -1;
+        long maxAge = UNKNOWN_MAX_AGE;
+        String line;
+        try {
+            while ((line = reader.readLine()) != null) {
+                int colon = line.indexOf(": ");
+                if (colon < 0) {
+                    throw new IOException("Malformed header line: " + line);
+                }
+                String name = line.substring(0, colon);
+                String value = line.substring(colon + 2);
+                if (name.equals(ETAG)) {
+                    etag = value;
+                } else if (name.equals(LAST_MODIFIED)) {
+                    lastModified = value;
+                } else if (name.equals(CONTENT_TYPE)) {
+                    contentType = value;
+                } else if (name.equals(RECEIVED)) {
+                    receivedTime = Long.parseLong(value);
+                } else if (name.equals(MAX_AGE)) {
+                    maxAge = Long.parseLong(value);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed header value: " + e.getMessage());
+        }
+        if (receivedTime < 0) {
+            throw new IOException("Missing " + RECEIVED);
+        }
+        return new CacheHeaders(etag, lastModified, contentType, receivedTime, maxAge);
+    }
+
+    @Override
+    public String toString() {
+        return "CacheHeaders[etag=" + mEtag + ",lastModified=" + mLastModified
+                + ",receivedTime=" + mReceivedTime + ",maxAge=" + mMaxAge + "]";
+    }
+}
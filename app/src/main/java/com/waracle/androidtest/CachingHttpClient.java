@@ -0,0 +1,398 @@
+package com.waracle.androidtest;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches URLs through a DiskImageCache, using HTTP's own caching headers to avoid downloading
+ * what we already have:
+ *
+ * - A cached response that is still fresh (by its Cache-Control max-age) is used without going
+ *   to the network at all.
+ * - A stale one is revalidated, by sending its ETag and Last-Modified back as If-None-Match and
+ *   If-Modified-Since. If the server answers 304 Not Modified the cached copy is used, and only
+ *   the headers cross the network.
+ * - Anything else is downloaded, and stored with its headers as it is read.
+ *
+ * Used for both the feed and the images. Safe to use from any number of threads.
+ */
+public class CachingHttpClient {
+
+    private static final String TAG = CachingHttpClient.class.getSimpleName();
+
+    /**
+     * Where a response came from.
+     */
+    public static final int SOURCE_CACHE = 0;
+    public static final int SOURCE_NOT_MODIFIED = 1;
+    public static final int SOURCE_NETWORK = 2;
+
+    private final DiskImageCache mCache;
+    private final long mDefaultMaxAge;
+    private volatile boolean mAcceptGzip;
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mCacheHitCount = new AtomicInteger();
+    private final AtomicInteger mNotModifiedCount = new AtomicInteger();
+    private final AtomicInteger mNetworkCount = new AtomicInteger();
+    private final AtomicLong mBytesSaved = new AtomicLong();
+
+    /**
+     * @param cache where responses are kept, or null to always download
+     * @param defaultMaxAge how long a response that doesn't give a max-age stays fresh, in
+     *                      milliseconds. 0 revalidates it every time it is used.
+     */
+    public CachingHttpClient(DiskImageCache cache, long defaultMaxAge) {
+        mCache = cache;
+        mDefaultMaxAge = defaultMaxAge;
+    }
+
+    /**
+     * @param acceptGzip whether to ask the server to gzip responses, worth it for text but not
+     *                   for images. Cached responses are stored decompressed. Off by default.
+     */
+    public void setAcceptGzip(boolean acceptGzip) {
+        mAcceptGzip = acceptGzip;
+    }
+
+    /**
+     * Opens a URL, from the cache if possible.
+     * @param url the url to fetch
+     * @param maxBytes the largest response that will be accepted
+     * @return the response, which must be closed
+     * @throws IOException if the request failed or the server answered with an error
+     */
+    public Response open(String url, long maxBytes) throws IOException {
+        mRequestCount.incrementAndGet();
+        return request(url, maxBytes, true);
+    }
+
+    /**
+     * Does the work of open, which counts the request once however many times it is made.
+     * @param useCache whether to look in the cache first, otherwise the URL is downloaded
+     */
+    private Response request(String url, long maxBytes, boolean useCache) throws IOException {
+        long now = System.currentTimeMillis();
+
+        File cachedFile = null;
+        CacheHeaders cachedHeaders = null;
+        if (mCache != null && useCache) {
+            try {
+                cachedFile = mCache.get(url);
+                if (cachedFile != null) {
+                    cachedHeaders = mCache.getHeaders(url);
+                    if (cachedHeaders == null) {
+                        //Stored without headers, all we know is when it was written
+                        cachedHeaders = new CacheHeaders(null, null, null,
+                                cachedFile.lastModified(), CacheHeaders.UNKNOWN_MAX_AGE);
+                    }
+                }
+            } catch (IOException e) {
+                //The cache is only an optimisation, carry on to the network
+                Log.e(TAG, "Cache read failed: " + e.getMessage());
+                cachedFile = null;
+            }
+        }
+
+        if (cachedFile != null && cachedHeaders.isFresh(now, mDefaultMaxAge)) {
+            InputStream in = openCachedFile(cachedFile);
+            if (in != null) {
+                mCacheHitCount.incrementAndGet();
+                mBytesSaved.addAndGet(cachedFile.length());
+                return new Response(SOURCE_CACHE, in, null, null, cachedFile, cachedHeaders, null);
+            }
+            cachedFile = null;
+        }
+
+        HttpURLConnection connection = HttpConnections.open(url, mAcceptGzip);
+        boolean validating = cachedFile != null && cachedHeaders.addValidators(connection);
+        HttpConnections.RequestTiming timing = HttpConnections.connect(connection);
+        int responseCode = connection.getResponseCode();
+
+        if (validating && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            CacheHeaders headers = cachedHeaders.revalidated(connection, now);
+            HttpConnections.discard(connection);
+            Log.d(TAG, "304 " + url + " " + timing);
+            InputStream in = openCachedFile(cachedFile);
+            if (in != null) {
+                try {
+                    mCache.putHeaders(url, headers);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not update headers: " + e.getMessage());
+                }
+                mNotModifiedCount.incrementAndGet();
+                mBytesSaved.addAndGet(cachedFile.length());
+                return new Response(SOURCE_NOT_MODIFIED, in, null, timing, cachedFile, headers,
+                        null);
+            }
+            //Evicted while we were asking, there's nothing for it but to ask again. Without the
+            //cache this time, the index may still have the entry whose file has gone.
+            return request(url, maxBytes, false);
+        }
+
+        if (responseCode / 100 != 2) {
+            // The body of an error response is not what was asked for, and must not reach the
+            // cache, so report the failure and throw the body away
+            HttpConnections.discard(connection);
+            throw new IOException("HTTP " + responseCode + " for " + url);
+        }
+        if (connection.getContentLength() > maxBytes) {
+            connection.disconnect();
+            throw new StreamTooLargeException(maxBytes);
+        }
+
+        InputStream in;
+        try {
+            in = StreamUtils.limit(HttpConnections.getBody(connection, timing), maxBytes);
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+        mNetworkCount.incrementAndGet();
+        CacheHeaders headers = CacheHeaders.fromConnection(connection, now);
+        DiskImageCache.Editor editor = null;
+        if (mCache != null) {
+            try {
+                editor = mCache.edit(url);
+            } catch (IOException e) {
+                Log.e(TAG, "Cache write failed: " + e.getMessage());
+            }
+        }
+        return new Response(SOURCE_NETWORK, in, connection, timing, null, headers, editor);
+    }
+
+    private static InputStream openCachedFile(File file) {
+        try {
+            return new FileInputStream(file);
+        } catch (IOException e) {
+            //Evicted since it was looked up
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of requests made through the client
+     */
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return the number of requests answered from the cache without going to the network
+     */
+    public int getCacheHitCount() {
+        return mCacheHitCount.get();
+    }
+
+    /**
+     * @return the number of requests the server answered with 304 Not Modified
+     */
+    public int getNotModifiedCount() {
+        return mNotModifiedCount.get();
+    }
+
+    /**
+     * @return the number of responses downloaded in full
+     */
+    public int getNetworkCount() {
+        return mNetworkCount.get();
+    }
+
+    /**
+     * @return the number of round trips to the server that fresh cache hits saved
+     */
+    public int getRoundTripsSaved() {
+        return mCacheHitCount.get();
+    }
+
+    /**
+     * @return the number of body bytes that weren't downloaded because the cached copy was
+     * used, whether it was fresh or revalidated
+     */
+    public long getBytesSaved() {
+        return mBytesSaved.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CachingHttpClient[requests=%d,cacheHits=%d,notModified=%d,"
+                        + "downloads=%d,roundTripsSaved=%d,bytesSaved=%d]",
+                getRequestCount(), getCacheHitCount(), getNotModifiedCount(), getNetworkCount(),
+                getRoundTripsSaved(), getBytesSaved());
+    }
+
+    /**
+     * The body of a response, and where it came from. A downloaded body is written to the cache
+     * as it is read, and is only kept if it is read to the end before the response is closed.
+     */
+    public static class Response {
+
+        private final int mSource;
+        private final InputStream mInputStream;
+        private final HttpURLConnection mConnection;
+        private final HttpConnections.RequestTiming mTiming;
+        private final CacheHeaders mHeaders;
+        private DiskImageCache.Editor mEditor;
+        private File mFile;
+        private boolean mComplete;
+
+        Response(int source, InputStream in, HttpURLConnection connection,
+                 HttpConnections.RequestTiming timing, File file, CacheHeaders headers,
+                 DiskImageCache.Editor editor) {
+            mSource = source;
+            mConnection = connection;
+            mTiming = timing;
+            mFile = file;
+            mHeaders = headers;
+            mEditor = editor;
+            mInputStream = new CachingInputStream(in);
+        }
+
+        /**
+         * @return one of SOURCE_CACHE, SOURCE_NOT_MODIFIED or SOURCE_NETWORK
+         */
+        public int getSource() {
+            return mSource;
+        }
+
+        /**
+         * @return the Content-Type of the response, which for a cached one is the Content-Type
+         * it had when it was downloaded, or null if there wasn't one
+         */
+        public String getContentType() {
+            return mHeaders.getContentType();
+        }
+
+        /**
+         * @return how long the request took, or null if it was answered from the cache alone
+         */
+        public HttpConnections.RequestTiming getTiming() {
+            return mTiming;
+        }
+
+        /**
+         * @return the body, which must be read to the end for a download to be cached and for
+         * its connection to be reused
+         */
+        public InputStream getInputStream() {
+            return mInputStream;
+        }
+
+        /**
+         * Reads the rest of the body into the cache, for callers that want to use the file
+         * rather than the stream.
+         * @return the cached file, or null if the cache couldn't store it. The stream has been
+         * used up either way.
+         * @throws IOException if the body could not be downloaded
+         */
+        public File toFile() throws IOException {
+            if (mFile == null) {
+                byte[] buffer = new byte[8192];
+                while (mInputStream.read(buffer) != -1) {
+                    //CachingInputStream does the work
+                }
+                commit();
+            }
+            return mFile;
+        }
+
+        /**
+         * Closes the body. A download that was read to the end is now in the cache.
+         */
+        public void close() {
+            commit();
+            if (mEditor != null) {
+                mEditor.abort();
+                mEditor = null;
+            }
+            if (mConnection != null) {
+                HttpConnections.release(mConnection, mInputStream, mComplete);
+                Log.d(TAG, mConnection.getURL() + " " + mTiming);
+            } else {
+                StreamUtils.close(mInputStream);
+            }
+        }
+
+        private void commit() {
+            if (mComplete && mEditor != null) {
+                try {
+                    mFile = mEditor.commit(mHeaders);
+                } catch (IOException e) {
+                    Log.e(TAG, "Cache write failed: " + e.getMessage());
+                }
+                mEditor = null;
+            }
+        }
+
+        /**
+         * Copies the body into the cache editor, if there is one, as it is read, and notes when
+         * the end has been reached. If the cache fails, the body can still be read, it just won't
+         * be cached.
+         */
+        private class CachingInputStream extends FilterInputStream {
+
+            CachingInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                int result = super.read();
+                if (result == -1) {
+                    mComplete = true;
+                } else if (mEditor != null) {
+                    try {
+                        mEditor.getOutputStream().write(result);
+                    } catch (IOException e) {
+                        abortEditor(e);
+                    }
+                }
+                return result;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read == -1) {
+                    mComplete = true;
+                } else if (mEditor != null) {
+                    OutputStream out = mEditor.getOutputStream();
+                    try {
+                        out.write(buffer, offset, read);
+                    } catch (IOException e) {
+                        abortEditor(e);
+                    }
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                //Skipped bytes would be missing from the cached copy, so read them instead
+                byte[] buffer = new byte[(int) Math.min(n, 8192)];
+                int read = read(buffer, 0, buffer.length);
+                return read == -1 ? 0 : read;
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+
+            private void abortEditor(IOException e) {
+                Log.e(TAG, "Cache write failed: " + e.getMessage());
+                mEditor.abort();
+                mEditor = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.waracle.androidtest;
+
+/**
+ * One entry of the cake feed. Instances are immutable so they can be handed from the loader's
+ * background thread to the adapter without copying.
+ */
+public final class Cake {
+
+    //Keys of the fields in the JSON feed
+    static final String KEY_TITLE = "title";
+    static final String KEY_DESC = "desc";
+    static final String KEY_IMAGE = "image";
+
+    private final long mId;
+    private final String mTitle;
+    private final String mDesc;
+    private final String mImage;
+    private final int mImageId;
+
+    /**
+     * @param title the name of the cake
+     * @param desc a short description
+     * @param image the url of the picture, may be null if the feed has none
+     */
+    public Cake(String title, String desc, String image) {
+        this(title, desc, image, 0);
+    }
+
+    /**
+     * @param occurrence how many cakes earlier in the feed have the same contentHash, so that
+     *                   identical entries still get different ids
+     */
+    public Cake(String title, String desc, String image, int occurrence) {
+        mTitle = title;
+        mDesc = desc;
+        mImage = image;
+        mImageId = ImageIds.getId(image);
+        mId = ((long) contentHash(title, desc, image) << 32) | (occurrence & 0xffffffffL);
+    }
+
+    /**
+     * For a cake whose id has already been worked out, such as one read back from a
+     * CakeCatalogue.
+     */
+    Cake(long id, String title, String desc, String image) {
+        mId = id;
+        mTitle = title;
+        mDesc = desc;
+        mImage = image;
+        mImageId = ImageIds.getId(image);
+    }
+
+    /**
+     * @return an id that is derived from the record itself, so the same cake has the same id
+     * every time the feed is loaded, wherever it moves to in the list
+     */
+    public long getId() {
+        return mId;
+    }
+
+    public String getTitle() {
+        return mTitle;
+    }
+
+    public String getDesc() {
+        return mDesc;
+    }
+
+    public String getImage() {
+        return mImage;
+    }
+
+    /**
+     * @return the id the image loader knows the picture by, see ImageIds, or ImageIds.NO_IMAGE
+     * if the cake has none
+     */
+    public int getImageId() {
+        return mImageId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Cake)) {
+            return false;
+        }
+        Cake other = (Cake) o;
+        return mId == other.mId && equal(mTitle, other.mTitle) && equal(mDesc, other.mDesc)
+                && equal(mImage, other.mImage);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (mId ^ (mId >>> 32));
+    }
+
+    /**
+     * The high half of a cake's id.
+     */
+    static int contentHash(String title, String desc, String image) {
+        int result = title != null ? title.hashCode() : 0;
+        result = 31 * result + (desc != null ? desc.hashCode() : 0);
+        result = 31 * result + (image != null ? image.hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "Cake[" + mTitle + "]";
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
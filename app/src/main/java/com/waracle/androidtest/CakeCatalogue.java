@@ -0,0 +1,309 @@
+package com.waracle.androidtest;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * A parsed feed kept in a compact binary file that is memory mapped rather than read onto the
+ * heap. Each row is decoded into a Cake only when it is asked for - normally when the adapter
+ * binds it - so a feed of thousands of cakes costs a mapping and a handful of objects, not
+ * thousands of Cakes and Strings.
+ *
+ * The feed repeats itself a lot, so every distinct string is stored once in a pool and rows refer
+ * to it by index. The layout, big endian:
+ *
+ *   int magic, int version, int count, int stringCount
+ *   count rows of ROW_SIZE bytes: long id, int title, int desc, int image (string indexes, or
+ *   NO_STRING for null)
+ *   stringCount + 1 ints: where each string starts in the string data, then where it ends
+ *   the string data, UTF-8
+ *
+ * Rows are found by position from the fixed size row table, strings by index from the offset
+ * table, so nothing has to be scanned to get at row N. Each string is decoded once, the first
+ * time a row that uses it is asked for, and kept until trimDecodedStrings lets go of it.
+ */
+public final class CakeCatalogue extends AbstractList<Cake> implements RandomAccess {
+
+    private static final int MAGIC = 0x43414b45;
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 16;
+    private static final int ROW_SIZE = 20;
+    private static final int NO_STRING = -1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+    private final int mStringCount;
+    private final int mOffsetsStart;
+    private final int mStringsStart;
+    //Strings decoded so far, by index, so a string shared by many rows is decoded once and the
+    //rows share it. Only the strings of rows that have been bound are ever filled in. Writes race
+    //harmlessly, the worst case is two equal Strings.
+    private final String[] mStrings;
+
+    private CakeCatalogue(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION) {
+            throw new IOException("Unexpected catalogue header");
+        }
+        mCount = buffer.getInt(8);
+        mStringCount = buffer.getInt(12);
+        //In longs, so that a corrupt count can't overflow its way past the checks
+        long offsetsStart = HEADER_SIZE + (long) mCount * ROW_SIZE;
+        long stringsStart = offsetsStart + ((long) mStringCount + 1) * 4;
+        if (mCount < 0 || mStringCount < 0 || stringsStart > buffer.limit()) {
+            throw new IOException("Truncated or corrupt catalogue");
+        }
+        mOffsetsStart = (int) offsetsStart;
+        mStringsStart = (int) stringsStart;
+        //The last offset is where the string data ends, which should be the end of the file
+        if (mStringsStart + buffer.getInt(mOffsetsStart + mStringCount * 4) != buffer.limit()) {
+            throw new IOException("Truncated or corrupt catalogue");
+        }
+        validate();
+        mStrings = new String[mStringCount];
+    }
+
+    /**
+     * Checks every string index in the row table and every offset in the offset table, so that
+     * a corrupt file is turned away by map, where the caller can fall back to the network,
+     * rather than failing on whichever row happens to be bound first.
+     */
+    private void validate() throws IOException {
+        for (int i = 0; i < mCount; i++) {
+            int row = HEADER_SIZE + i * ROW_SIZE;
+            for (int field = 8; field <= 16; field += 4) {
+                int index = mBuffer.getInt(row + field);
+                if (index < NO_STRING || index >= mStringCount) {
+                    throw new IOException("String index " + index + " out of range in row " + i);
+                }
+            }
+        }
+        //The last offset is already known to be the end of the data, so offsets that start at 0
+        //or more and never go backwards all lie within it
+        int previous = 0;
+        for (int i = 0; i <= mStringCount; i++) {
+            int offset = mBuffer.getInt(mOffsetsStart + i * 4);
+            if (offset < previous) {
+                throw new IOException("String offset " + offset + " out of order at " + i);
+            }
+            previous = offset;
+        }
+    }
+
+    /**
+     * Maps a catalogue written by write. The file can be replaced once it is mapped, the mapping
+     * keeps the old contents.
+     * @throws IOException if the file is missing, or isn't a whole catalogue
+     */
+    public static CakeCatalogue map(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new CakeCatalogue(buffer);
+        } finally {
+            //The mapping stays valid after the channel is closed
+            StreamUtils.close(in);
+        }
+    }
+
+    /**
+     * Writes cakes in the catalogue format.
+     */
+    public static void write(List<Cake> cakes, DataOutputStream out) throws IOException {
+        //Pool the strings, each distinct one gets the index of its first use
+        Map<String, Integer> indexes = new HashMap<>();
+        List<byte[]> strings = new ArrayList<>();
+        int[] rows = new int[cakes.size() * 3];
+        for (int i = 0; i < cakes.size(); i++) {
+            Cake cake = cakes.get(i);
+            rows[i * 3] = pool(cake.getTitle(), indexes, strings);
+            rows[i * 3 + 1] = pool(cake.getDesc(), indexes, strings);
+            rows[i * 3 + 2] = pool(cake.getImage(), indexes, strings);
+        }
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(cakes.size());
+        out.writeInt(strings.size());
+        for (int i = 0; i < cakes.size(); i++) {
+            out.writeLong(cakes.get(i).getId());
+            out.writeInt(rows[i * 3]);
+            out.writeInt(rows[i * 3 + 1]);
+            out.writeInt(rows[i * 3 + 2]);
+        }
+        int offset = 0;
+        for (byte[] string : strings) {
+            out.writeInt(offset);
+            offset += string.length;
+        }
+        out.writeInt(offset);
+        for (byte[] string : strings) {
+            out.write(string);
+        }
+    }
+
+    private static int pool(String value, Map<String, Integer> indexes, List<byte[]> strings) {
+        if (value == null) {
+            return NO_STRING;
+        }
+        Integer index = indexes.get(value);
+        if (index == null) {
+            index = strings.size();
+            indexes.put(value, index);
+            strings.add(value.getBytes(UTF_8));
+        }
+        return index;
+    }
+
+    @Override
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Decodes the cake at a position. A new Cake is made on every call, so callers that need the
+     * same row again should keep it.
+     */
+    @Override
+    public Cake get(int position) {
+        int row = rowStart(position);
+        return new Cake(mBuffer.getLong(row), getString(mBuffer.getInt(row + 8)),
+                getString(mBuffer.getInt(row + 12)), getString(mBuffer.getInt(row + 16)));
+    }
+
+    /**
+     * @return the id of the cake at a position, without decoding the rest of it
+     */
+    public long getId(int position) {
+        return mBuffer.getLong(rowStart(position));
+    }
+
+    /**
+     * @return the image url of the cake at a position, without decoding the rest of it
+     */
+    public String getImage(int position) {
+        return getString(mBuffer.getInt(rowStart(position) + 16));
+    }
+
+    /**
+     * @return the id of the cake at a position in any list of cakes, straight from the row table
+     * if the list is a catalogue
+     */
+    static long getId(List<Cake> cakes, int position) {
+        if (cakes instanceof CakeCatalogue) {
+            return ((CakeCatalogue) cakes).getId(position);
+        }
+        return cakes.get(position).getId();
+    }
+
+    /**
+     * @return the number of distinct strings stored
+     */
+    public int getStringCount() {
+        return mStringCount;
+    }
+
+    /**
+     * @return the number of strings decoded and held on the heap
+     */
+    public int getDecodedStringCount() {
+        int decoded = 0;
+        for (String string : mStrings) {
+            if (string != null) {
+                decoded++;
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * Lets go of decoded strings, from the last index back, until no more than maxStrings are
+     * held. They are decoded again from the mapping when a row that uses them is next asked for.
+     * The strings near the start are the ones the first screen of rows uses, so they are kept
+     * longest.
+     */
+    public void trimDecodedStrings(int maxStrings) {
+        int decoded = getDecodedStringCount();
+        for (int i = mStrings.length - 1; i >= 0 && decoded > maxStrings; i--) {
+            if (mStrings[i] != null) {
+                mStrings[i] = null;
+                decoded--;
+            }
+        }
+    }
+
+    /**
+     * @return the index in the string pool of the title of the cake at a position, or -1 if it
+     * has none. Rows with the same title have the same index.
+     */
+    int getTitleIndex(int position) {
+        return mBuffer.getInt(rowStart(position) + 8);
+    }
+
+    /**
+     * @return the index in the string pool of the description of the cake at a position, or -1
+     * if it has none
+     */
+    int getDescIndex(int position) {
+        return mBuffer.getInt(rowStart(position) + 12);
+    }
+
+    /**
+     * Decodes a string from the pool without keeping it, for reading the whole feed once - such
+     * as to index it - without leaving every string on the heap afterwards.
+     * @param index from getTitleIndex or getDescIndex
+     */
+    String readString(int index) {
+        if (index == NO_STRING) {
+            return null;
+        }
+        String string = mStrings[index];
+        return string != null ? string : decodeString(index);
+    }
+
+    private int rowStart(int position) {
+        if (position < 0 || position >= mCount) {
+            throw new IndexOutOfBoundsException("Position " + position + ", size " + mCount);
+        }
+        return HEADER_SIZE + position * ROW_SIZE;
+    }
+
+    private String getString(int index) {
+        if (index == NO_STRING) {
+            return null;
+        }
+        String string = mStrings[index];
+        if (string == null) {
+            string = decodeString(index);
+            mStrings[index] = string;
+        }
+        return string;
+    }
+
+    private String decodeString(int index) {
+        int start = mBuffer.getInt(mOffsetsStart + index * 4);
+        int end = mBuffer.getInt(mOffsetsStart + index * 4 + 4);
+        byte[] bytes = new byte[end - start];
+        //A duplicate has its own position, so rows can be decoded on any thread
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(mStringsStart + start);
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,110 @@
+package com.waracle.androidtest;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * What changed between two versions of the feed, worked out from the cakes' stable ids. Used to
+ * apply a revalidated feed to a list that is already showing the previous one without rebinding
+ * the rows that are the same. The ids of a CakeCatalogue are read from its row table, so a diff
+ * doesn't decode any rows.
+ */
+public class CakeFeedDiff {
+
+    private final int mOldSize;
+    private final int mNewSize;
+    //Positions whose cake is different in the new feed, compared position by position
+    private final Set<Integer> mChangedPositions = new HashSet<>();
+    private int mAdded;
+    private int mRemoved;
+
+    private CakeFeedDiff(int oldSize, int newSize) {
+        mOldSize = oldSize;
+        mNewSize = newSize;
+    }
+
+    /**
+     * @param oldCakes the feed being shown
+     * @param newCakes the feed that replaces it
+     */
+    public static CakeFeedDiff compute(List<Cake> oldCakes, List<Cake> newCakes) {
+        CakeFeedDiff diff = new CakeFeedDiff(oldCakes.size(), newCakes.size());
+
+        int common = Math.min(oldCakes.size(), newCakes.size());
+        for (int i = 0; i < common; i++) {
+            if (CakeCatalogue.getId(oldCakes, i) != CakeCatalogue.getId(newCakes, i)) {
+                diff.mChangedPositions.add(i);
+            }
+        }
+        if (diff.mChangedPositions.isEmpty() && oldCakes.size() == newCakes.size()) {
+            return diff;
+        }
+
+        Set<Long> oldIds = new HashSet<>(oldCakes.size() * 2);
+        for (int i = 0; i < oldCakes.size(); i++) {
+            oldIds.add(CakeCatalogue.getId(oldCakes, i));
+        }
+        Set<Long> newIds = new HashSet<>(newCakes.size() * 2);
+        for (int i = 0; i < newCakes.size(); i++) {
+            long id = CakeCatalogue.getId(newCakes, i);
+            newIds.add(id);
+            if (!oldIds.contains(id)) {
+                diff.mAdded++;
+            }
+        }
+        for (Long id : oldIds) {
+            if (!newIds.contains(id)) {
+                diff.mRemoved++;
+            }
+        }
+        return diff;
+    }
+
+    /**
+     * @return whether the feeds differ at all
+     */
+    public boolean hasChanges() {
+        return mOldSize != mNewSize || !mChangedPositions.isEmpty();
+    }
+
+    /**
+     * @return whether the number of rows changed, in which case the whole list has to be
+     * refreshed
+     */
+    public boolean isSizeChanged() {
+        return mOldSize != mNewSize;
+    }
+
+    /**
+     * @return whether the row at a position shows a different cake in the new feed. Only
+     * meaningful when the size hasn't changed.
+     */
+    public boolean isChanged(int position) {
+        return mChangedPositions.contains(position);
+    }
+
+    public int getChangedCount() {
+        return mChangedPositions.size();
+    }
+
+    /**
+     * @return the number of cakes in the new feed that weren't in the old one
+     */
+    public int getAddedCount() {
+        return mAdded;
+    }
+
+    /**
+     * @return the number of cakes in the old feed that aren't in the new one
+     */
+    public int getRemovedCount() {
+        return mRemoved;
+    }
+
+    @Override
+    public String toString() {
+        return "CakeFeedDiff[rows " + mOldSize + "->" + mNewSize + ",changed="
+                + mChangedPositions.size() + ",added=" + mAdded + ",removed=" + mRemoved + "]";
+    }
+}
@@ -0,0 +1,399 @@
+package com.waracle.androidtest;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.content.AsyncTaskLoader;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the cake feed in the background. Like any AsyncTaskLoader it survives rotation and hands
+ * the whole feed over once it is done, but it also publishes the cakes in batches while the feed
+ * is still downloading, so the first screen of cakes can be shown long before the last byte of a
+ * large feed has arrived.
+ *
+ * The first batch is kept small so the first rows appear as soon as possible, later batches are
+ * bigger so the list isn't refreshed for every handful of rows.
+ *
+ * The last feed that loaded is kept in a FeedSnapshot. On a cold start the snapshot is published
+ * as the first batch straight away, so there is something on screen without waiting for the
+ * network, or without a network at all. The feed is then revalidated: if the server says it
+ * hasn't changed it isn't parsed again, and if it has, the new feed is delivered as the result
+ * (rather than in batches, which would be added on top of the snapshot) for the list to diff
+ * against what it is showing. A reload with forceLoad, such as the refresh action, takes the same
+ * path with the feed already loaded in place of the snapshot.
+ *
+ * Whenever it can, the feed the loader hands over is the CakeCatalogue mapped from the snapshot
+ * rather than the cakes as parsed, so the whole feed never has to stay on the heap - the list
+ * decodes each row from the mapping as it binds it.
+ */
+public class CakeFeedLoader extends AsyncTaskLoader<List<Cake>> {
+
+    private static final String TAG = CakeFeedLoader.class.getSimpleName();
+
+    //Roughly a screenful of rows
+    private static final int FIRST_BATCH_SIZE = 8;
+    private static final int BATCH_SIZE = 50;
+    //Far more than any real feed, it only stops a broken server filling the heap. The feed
+    //cache is sized from it too.
+    static final long MAX_FEED_BYTES = 32 * 1024 * 1024;
+    static final String SNAPSHOT_FILE = "feed.snapshot";
+
+    /**
+     * Told about each batch of cakes as it is parsed, on the UI thread.
+     */
+    public interface OnBatchLoadedListener {
+        /**
+         * @param batch the cakes parsed since the previous batch
+         */
+        void onBatchLoaded(List<Cake> batch);
+    }
+
+    private final String mUrl;
+    //The feed has no max-age, so it is revalidated on every load and normally costs a 304
+    private final CachingHttpClient mHttpClient;
+    private final FeedSnapshot mSnapshot;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private OnBatchLoadedListener mListener;
+    private volatile Metrics mMetrics = Metrics.NONE;
+
+    //The whole feed once it is loaded. Read by a reload in the background to compare against.
+    private volatile List<Cake> mCakes;
+    //The cakes published so far by the load in progress, the snapshot itself if that was
+    //published. Only used on the UI thread.
+    private List<Cake> mPublished = new ArrayList<>();
+    //Bumped on every load so batches from an abandoned load are ignored
+    private volatile int mGeneration;
+
+    //When the current load was started, and how long until its first batch was published
+    private long mLoadStartTime;
+    private long mTimeToFirstBatch = -1;
+
+    /**
+     * @param context any context, only the application context is kept
+     * @param url the url of the feed
+     */
+    public CakeFeedLoader(Context context, String url) {
+        super(context);
+        mUrl = url;
+        mHttpClient = new CachingHttpClient(DiskImageCache.getFeedInstance(context), 0);
+        //JSON compresses very well
+        mHttpClient.setAcceptGzip(true);
+        mSnapshot = new FeedSnapshot(new File(context.getFilesDir(), SNAPSHOT_FILE));
+    }
+
+    /**
+     * @param listener told about each batch while the feed loads, may be null
+     */
+    public void setOnBatchLoadedListener(OnBatchLoadedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param metrics where to report how long loads and parses take, the bytes downloaded and
+     *                failures. Metrics.NONE by default.
+     */
+    public void setMetrics(Metrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * @return the cakes published so far, or the whole feed if it has finished loading. Must be
+     * called on the UI thread.
+     */
+    public List<Cake> getLoadedCakes() {
+        if (mCakes != null) {
+            return mCakes;
+        }
+        return mPublished instanceof CakeCatalogue ? mPublished : new ArrayList<>(mPublished);
+    }
+
+    /**
+     * @return the client the feed is fetched through, exposing whether loads were answered
+     * from the cache
+     */
+    public CachingHttpClient getHttpClient() {
+        return mHttpClient;
+    }
+
+    /**
+     * @return the milliseconds between starting the last load and publishing its first batch,
+     * or -1 if no batch has been published yet
+     */
+    public long getTimeToFirstBatch() {
+        return mTimeToFirstBatch;
+    }
+
+    @Override
+    protected void onStartLoading() {
+        super.onStartLoading();
+
+        if (mCakes != null) {
+            //If the feed is loaded we can go ahead and hand it straight back
+            deliverResult(mCakes);
+        } else {
+            //Otherwhise, load the data
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onForceLoad() {
+        mGeneration++;
+        mPublished = new ArrayList<>();
+        mLoadStartTime = SystemClock.elapsedRealtime();
+        mTimeToFirstBatch = -1;
+        super.onForceLoad();
+    }
+
+    @Override
+    public List<Cake> loadInBackground() {
+        StartupTrace.beginSection("CakeFeedLoader.loadInBackground");
+        try {
+            return load();
+        } finally {
+            StartupTrace.endSection();
+        }
+    }
+
+    private List<Cake> load() {
+        int generation = mGeneration;
+
+        //What the list is showing while the feed is revalidated: the feed from the last load,
+        //or on a cold start the snapshot, published so that it shows straight away
+        List<Cake> current = mCakes;
+        if (current == null) {
+            CakeCatalogue snapshot = readSnapshot();
+            if (snapshot != null) {
+                publish(generation, snapshot);
+                current = snapshot;
+            }
+        }
+
+        Metrics metrics = mMetrics;
+        long start = System.nanoTime();
+        try {
+            List<Cake> cakes = loadData(generation, current);
+            metrics.recordTime(Metrics.TIMER_FEED_LOAD, System.nanoTime() - start);
+            return cakes;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not load the feed: " + e.getMessage(), e);
+            metrics.count(Metrics.COUNTER_FEED_ERROR, 1);
+            metrics.recordError(mUrl, e);
+            //Offline, or the server is down - carry on showing what we have
+            return current;
+        }
+    }
+
+    private CakeCatalogue readSnapshot() {
+        StartupTrace.beginSection("read snapshot");
+        try {
+            return mSnapshot.read();
+        } catch (IOException e) {
+            Log.e(TAG, "Discarding feed snapshot: " + e.getMessage());
+            mSnapshot.delete();
+            return null;
+        } finally {
+            StartupTrace.endSection();
+        }
+    }
+
+    /**
+     * @return the snapshot mapped back from disk, which takes the place of the parsed cakes so
+     * they can be collected, or the parsed cakes if it couldn't be written
+     */
+    private List<Cake> writeSnapshot(List<Cake> cakes) {
+        StartupTrace.beginSection("write snapshot");
+        try {
+            mSnapshot.write(cakes);
+            return mSnapshot.read();
+        } catch (IOException e) {
+            //An old snapshot must not outlive this, a 304 would pass it off as current. The next
+            //cold start will just have to parse the cached feed.
+            Log.e(TAG, "Could not write feed snapshot: " + e.getMessage());
+            mSnapshot.delete();
+            return cakes;
+        } finally {
+            StartupTrace.endSection();
+        }
+    }
+
+    @Override
+    public void deliverResult(List<Cake> cakes) {
+        if (cakes != null) {
+            mCakes = cakes;
+        }
+        super.deliverResult(cakes);
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        mGeneration++;
+        mCakes = null;
+        mPublished = new ArrayList<>();
+    }
+
+    /**
+     * The feed is parsed as it arrives by CakeFeedParser, so only one record at a time is held in
+     * memory rather than the whole response as bytes, a String and a JSONArray.
+     * @param current the feed being shown, or null if there is none yet. Without one, the feed
+     *                is published in batches as it is parsed.
+     * @return the cakes in the feed, mapped from the new snapshot if it could be written, which
+     * is current itself if the feed hasn't changed, or null if the load was abandoned
+     * @throws IOException if the feed could not be fetched or parsed
+     */
+    private List<Cake> loadData(int generation, List<Cake> current) throws IOException {
+
+        CachingHttpClient.Response response;
+        StartupTrace.beginSection("fetch feed");
+        try {
+            response = mHttpClient.open(mUrl, MAX_FEED_BYTES);
+        } finally {
+            StartupTrace.endSection();
+        }
+        try {
+            if (current != null && response.getSource() != CachingHttpClient.SOURCE_NETWORK) {
+                //The server says the feed hasn't changed since it was last parsed
+                return current;
+            }
+
+            InputStream in = new BufferedInputStream(response.getInputStream());
+
+            // Can you think of a way to improve the performance of loading data
+            // using HTTP headers??? - Did some research on HTTP Headers and it would
+            //appear that by caching a header it can be stored for later use and the
+            //application can access what is stored in the header rather than creating
+            //a new network access.
+            //CachingHttpClient keeps the feed on disk with its ETag and Last-Modified, and asks
+            //the server with If-None-Match/If-Modified-Since whether it has changed. Usually
+            //it hasn't, the server answers 304 with no body and the copy on disk is parsed.
+
+            // Read in charset of HTTP content, from the response's Content-Type header.
+            String charset = parseCharset(response.getContentType());
+
+            // Decode and parse the feed straight off the stream, publishing it as it goes
+            List<Cake> cakes;
+            StartupTrace.beginSection("parse feed");
+            try {
+                cakes = parse(generation, current, response, in, charset);
+            } finally {
+                StartupTrace.endSection();
+            }
+            //Before closing the response commits the feed and its ETag to the cache. The other
+            //way round, dying in between would leave an old snapshot that the next start's 304
+            //passes off as current.
+            return cakes != null ? writeSnapshot(cakes) : null;
+        } finally {
+            //A feed that was read to the end is now in the cache
+            response.close();
+        }
+    }
+
+    /**
+     * Parses the feed as it arrives, publishing it in batches if nothing is showing yet.
+     * @return the cakes in the feed, or null if the load was abandoned
+     */
+    private List<Cake> parse(int generation, List<Cake> current,
+                             CachingHttpClient.Response response, InputStream in,
+                             String charset) throws IOException {
+        long parseStart = System.nanoTime();
+        CakeFeedParser parser = new CakeFeedParser(new InputStreamReader(in, charset));
+        List<Cake> cakes = new ArrayList<>();
+        int published = 0;
+        int batchSize = FIRST_BATCH_SIZE;
+        Cake cake;
+        while ((cake = parser.next()) != null) {
+            cakes.add(cake);
+            if (current == null && cakes.size() - published >= batchSize) {
+                publishBatch(generation, cakes.subList(published, cakes.size()));
+                published = cakes.size();
+                batchSize = BATCH_SIZE;
+            }
+            if (generation != mGeneration) {
+                //The loader was reset or restarted, nobody wants the rest of this feed
+                return null;
+            }
+        }
+        if (current == null && published < cakes.size()) {
+            publishBatch(generation, cakes.subList(published, cakes.size()));
+        }
+        //The parser stops at the closing bracket, read up to the end of the response so
+        //that it is complete and gets cached
+        while (in.read() != -1) {
+            //Only trailing whitespace is left
+        }
+        //Includes waiting for the body to arrive, the feed is parsed as it downloads
+        Metrics metrics = mMetrics;
+        metrics.recordTime(Metrics.TIMER_FEED_PARSE, System.nanoTime() - parseStart);
+        metrics.count(Metrics.COUNTER_FEED_PARSED, 1);
+        HttpConnections.RequestTiming timing = response.getTiming();
+        if (timing != null && response.getSource() == CachingHttpClient.SOURCE_NETWORK) {
+            metrics.count(Metrics.COUNTER_BYTES_TRANSFERRED, timing.getBytes());
+        }
+        return cakes;
+    }
+
+    /**
+     * Hands a copy of the cakes to the UI thread, the list they come from is still growing.
+     */
+    private void publishBatch(int generation, List<Cake> cakes) {
+        publish(generation, new ArrayList<>(cakes));
+    }
+
+    /**
+     * Hands cakes to the UI thread as the next batch. A CakeCatalogue is passed on as it is, it
+     * can't change and copying it would decode every row.
+     */
+    private void publish(final int generation, final List<Cake> batch) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration || isReset()) {
+                    return;
+                }
+                if (mTimeToFirstBatch < 0) {
+                    mTimeToFirstBatch = SystemClock.elapsedRealtime() - mLoadStartTime;
+                    StartupTrace.mark("first batch");
+                }
+                if (batch instanceof CakeCatalogue) {
+                    //Only ever the first batch, the snapshot
+                    mPublished = batch;
+                } else {
+                    mPublished.addAll(batch);
+                }
+                if (mListener != null) {
+                    mListener.onBatchLoaded(batch);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the charset specified in the Content-Type of this header,
+     * or the JSON default (UTF-8) if none can be found.
+     */
+    public static String parseCharset(String contentType) {
+        if (contentType != null) {
+            String[] params = contentType.split(";");
+            for (int i = 1; i < params.length; i++) {
+                String[] pair = params[i].trim().split("=");
+                if (pair.length == 2) {
+                    if (pair[0].trim().equalsIgnoreCase("charset")) {
+                        return pair[1].trim().replace("\"", "");
+                    }
+                }
+            }
+        }
+        return "UTF-8";
+    }
+}
@@ -0,0 +1,321 @@
+package com.waracle.androidtest;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+
+/**
+ * Reads the cake feed - a JSON array of objects with title, desc and image strings - one cake at
+ * a time, straight from the connection. Unlike building a String and a JSONArray out of the whole
+ * response, only the record being parsed is held in memory, so the feed can be any size.
+ *
+ * The parser only understands as much JSON as it needs to. Unknown keys are skipped whatever
+ * their value, and a title, desc or image that isn't a string is treated as missing.
+ *
+ * android.util.JsonReader would do the same job but needs API 11, and the app supports API 9.
+ *
+ * The feed repeats the same few cakes over and over, so every string is looked up in a
+ * StringPool before a String is made for it. Repeats share one String, and a value that has been
+ * seen before costs no allocation at all.
+ */
+public class CakeFeedParser {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader mReader;
+    private final char[] mBuffer = new char[BUFFER_SIZE];
+    private int mPos;
+    private int mLimit;
+
+    //Reused for every string so parsing a record doesn't allocate more than the strings themselves
+    private final StringBuilder mStringBuilder = new StringBuilder();
+    //Keys and values seen so far in this feed
+    private final StringPool mStringPool = new StringPool();
+
+    //How many cakes so far had each content hash, to tell identical entries apart
+    private final HashMap<Integer, Integer> mOccurrences = new HashMap<>();
+
+    private boolean mStarted;
+    private boolean mFinished;
+    private int mCount;
+
+    /**
+     * @param reader the feed, decoded with the charset of the response
+     */
+    public CakeFeedParser(Reader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * @return the next cake in the feed, or null once the end of the feed has been reached
+     * @throws IOException if the feed could not be read or is not a JSON array of objects
+     */
+    public Cake next() throws IOException {
+        if (mFinished) {
+            return null;
+        }
+        if (!mStarted) {
+            expect('[');
+            mStarted = true;
+            if (peek() == ']') {
+                mPos++;
+                mFinished = true;
+                return null;
+            }
+        } else {
+            int c = read();
+            if (c == ']') {
+                mFinished = true;
+                return null;
+            } else if (c != ',') {
+                throw syntaxError("Expected ',' or ']'");
+            }
+        }
+        Cake cake = readCake();
+        mCount++;
+        return cake;
+    }
+
+    /**
+     * @return the number of cakes returned so far
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the pool the feed's strings were shared through, exposing how many were repeats
+     */
+    public StringPool getStringPool() {
+        return mStringPool;
+    }
+
+    private Cake readCake() throws IOException {
+        expect('{');
+        String title = null;
+        String desc = null;
+        String image = null;
+        if (peek() == '}') {
+            mPos++;
+            return newCake(null, null, null);
+        }
+        while (true) {
+            expect('"');
+            String key = readString();
+            expect(':');
+            if (Cake.KEY_TITLE.equals(key)) {
+                title = readOptionalString();
+            } else if (Cake.KEY_DESC.equals(key)) {
+                desc = readOptionalString();
+            } else if (Cake.KEY_IMAGE.equals(key)) {
+                image = readOptionalString();
+            } else {
+                skipValue();
+            }
+            int c = read();
+            if (c == '}') {
+                return newCake(title, desc, image);
+            } else if (c != ',') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+        }
+    }
+
+    private Cake newCake(String title, String desc, String image) {
+        Integer hash = Cake.contentHash(title, desc, image);
+        Integer occurrence = mOccurrences.get(hash);
+        int count = occurrence != null ? occurrence : 0;
+        mOccurrences.put(hash, count + 1);
+        return new Cake(title, desc, image, count);
+    }
+
+    /**
+     * @return the string value that comes next, or null if the value is of another type
+     */
+    private String readOptionalString() throws IOException {
+        if (peek() == '"') {
+            mPos++;
+            return readString();
+        }
+        skipValue();
+        return null;
+    }
+
+    /**
+     * Reads the rest of a string whose opening quote has been consumed.
+     * @return the pooled copy of the string
+     */
+    private String readString() throws IOException {
+        StringBuilder builder = mStringBuilder;
+        builder.setLength(0);
+        while (true) {
+            //Copy runs of plain characters in one go
+            int start = mPos;
+            while (mPos < mLimit) {
+                char c = mBuffer[mPos];
+                if (c == '"') {
+                    builder.append(mBuffer, start, mPos - start);
+                    mPos++;
+                    return mStringPool.intern(builder);
+                } else if (c == '\\') {
+                    builder.append(mBuffer, start, mPos - start);
+                    mPos++;
+                    builder.append(readEscape());
+                    start = mPos;
+                } else {
+                    mPos++;
+                }
+            }
+            builder.append(mBuffer, start, mPos - start);
+            if (!fill()) {
+                throw syntaxError("Unterminated string");
+            }
+        }
+    }
+
+    private char readEscape() throws IOException {
+        int c = readRaw();
+        switch (c) {
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(readRaw(), 16);
+                    if (digit < 0) {
+                        throw syntaxError("Malformed unicode escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                return (char) value;
+            case '"':
+            case '\\':
+            case '/':
+                return (char) c;
+            default:
+                throw syntaxError("Unknown escape");
+        }
+    }
+
+    /**
+     * Skips over the value that comes next, whatever its type.
+     */
+    private void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            int c = read();
+            switch (c) {
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    break;
+                case '"':
+                    skipString();
+                    break;
+                case ',':
+                case ':':
+                    break;
+                default:
+                    //A number, true, false or null - runs until the next delimiter
+                    while (true) {
+                        int next = peekRaw();
+                        if (next == -1 || next == ',' || next == '}' || next == ']'
+                                || isWhitespace(next)) {
+                            break;
+                        }
+                        mPos++;
+                    }
+                    break;
+            }
+        } while (depth > 0);
+    }
+
+    private void skipString() throws IOException {
+        while (true) {
+            int c = readRaw();
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                readRaw();
+            }
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        if (read() != expected) {
+            throw syntaxError("Expected '" + expected + "'");
+        }
+    }
+
+    /**
+     * @return the next character that isn't whitespace, without consuming it
+     */
+    private int peek() throws IOException {
+        int c = read();
+        mPos--;
+        return c;
+    }
+
+    /**
+     * @return the next character that isn't whitespace
+     */
+    private int read() throws IOException {
+        while (true) {
+            if (mPos == mLimit && !fill()) {
+                throw syntaxError("Unexpected end of feed");
+            }
+            char c = mBuffer[mPos++];
+            if (!isWhitespace(c)) {
+                return c;
+            }
+        }
+    }
+
+    private int readRaw() throws IOException {
+        if (mPos == mLimit && !fill()) {
+            throw syntaxError("Unexpected end of feed");
+        }
+        return mBuffer[mPos++];
+    }
+
+    private int peekRaw() throws IOException {
+        if (mPos == mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPos];
+    }
+
+    /**
+     * Refills the buffer once it has all been consumed.
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        int read = mReader.read(mBuffer, 0, mBuffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        mPos = 0;
+        mLimit = read;
+        return true;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message + " in cake feed after " + mCount + " cakes");
+    }
+}
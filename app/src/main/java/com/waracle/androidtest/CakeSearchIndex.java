@@ -0,0 +1,422 @@
+package com.waracle.androidtest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the cakes whose title or description has words starting with every word of a query, so
+ * "choc cake" finds "Chocolate fudge cake". Matching ignores case and punctuation.
+ *
+ * The index is built once per feed, in the background as it takes a while for a big one, and
+ * answers each query without looking at the cakes again:
+ *
+ *   the distinct words of the feed, sorted, so the words starting with a query word are a range
+ *   found by binary search
+ *   for each word, the rows it appears in, to find the first rows for a query from scratch
+ *   for each row, the words in it, to check a row against the rest of the query
+ *
+ * As the user types, each query is normally the last one with another character on the end,
+ * which can only match fewer rows. search(query, previous) then only checks the rows the last
+ * query matched instead of starting again, so the result gets quicker to work out as it narrows.
+ *
+ * The arrays are flat, rather than a list or an object per word or row, so a feed of tens of
+ * thousands of cakes is a handful of arrays rather than hundreds of thousands of objects.
+ */
+public final class CakeSearchIndex {
+
+    private final List<Cake> mCakes;
+    //The distinct words in the feed, lower case, sorted
+    private final String[] mWords;
+    //The rows each word is in, ascending: word i's rows are mPostings[mPostingStarts[i]] up to
+    //mPostings[mPostingStarts[i + 1]]
+    private final int[] mPostingStarts;
+    private final int[] mPostings;
+    //The words in each row, as indexes into mWords, ascending and without repeats, laid out the
+    //same way
+    private final int[] mRowStarts;
+    private final int[] mRowWords;
+
+    private CakeSearchIndex(List<Cake> cakes, String[] words, int[] postingStarts,
+                            int[] postings, int[] rowStarts, int[] rowWords) {
+        mCakes = cakes;
+        mWords = words;
+        mPostingStarts = postingStarts;
+        mPostings = postings;
+        mRowStarts = rowStarts;
+        mRowWords = rowWords;
+    }
+
+    /**
+     * Indexes the titles and descriptions of a feed. This reads every row, so it should be done
+     * in the background. A CakeCatalogue is read by string pool index rather than a Cake at a
+     * time, so each distinct string is only decoded once, and isn't kept by the catalogue.
+     * @param cakes the feed, which must not change afterwards
+     */
+    public static CakeSearchIndex build(List<Cake> cakes) {
+        int rows = cakes.size();
+        CakeCatalogue catalogue = cakes instanceof CakeCatalogue ? (CakeCatalogue) cakes : null;
+        //Words are numbered as they are found, and renumbered in sorted order at the end
+        Map<String, Integer> wordIds = new HashMap<>();
+        List<String> words = new ArrayList<>();
+        //The feed repeats its strings a lot, so each is only split into words once, looked up
+        //by its pool index in a catalogue and by the string itself otherwise
+        Map<String, int[]> split = new HashMap<>();
+        int[][] splitByIndex = catalogue != null ? new int[catalogue.getStringCount()][] : null;
+        List<String> scratch = new ArrayList<>();
+
+        int[] rowStarts = new int[rows + 1];
+        int[] rowWords = new int[Math.max(16, rows * 4)];
+        int length = 0;
+        for (int row = 0; row < rows; row++) {
+            int[] titleWords;
+            int[] descWords;
+            if (catalogue != null) {
+                titleWords = split(catalogue, catalogue.getTitleIndex(row), splitByIndex,
+                        wordIds, words, scratch);
+                descWords = split(catalogue, catalogue.getDescIndex(row), splitByIndex,
+                        wordIds, words, scratch);
+            } else {
+                Cake cake = cakes.get(row);
+                titleWords = split(cake.getTitle(), split, wordIds, words, scratch);
+                descWords = split(cake.getDesc(), split, wordIds, words, scratch);
+            }
+            int needed = length + titleWords.length + descWords.length;
+            if (needed > rowWords.length) {
+                rowWords = Arrays.copyOf(rowWords, Math.max(needed, rowWords.length * 2));
+            }
+            System.arraycopy(titleWords, 0, rowWords, length, titleWords.length);
+            length += titleWords.length;
+            System.arraycopy(descWords, 0, rowWords, length, descWords.length);
+            length += descWords.length;
+            rowStarts[row + 1] = length;
+        }
+
+        //Sort the words and renumber them to match
+        String[] sorted = words.toArray(new String[words.size()]);
+        Arrays.sort(sorted);
+        int[] renumber = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            renumber[wordIds.get(sorted[i])] = i;
+        }
+
+        //Renumber each row's words, sort them and drop repeats, packing the rows down as it goes
+        int packed = 0;
+        for (int row = 0; row < rows; row++) {
+            int start = rowStarts[row];
+            int end = rowStarts[row + 1];
+            rowStarts[row] = packed;
+            for (int i = start; i < end; i++) {
+                rowWords[i] = renumber[rowWords[i]];
+            }
+            Arrays.sort(rowWords, start, end);
+            for (int i = start; i < end; i++) {
+                if (i == start || rowWords[i] != rowWords[i - 1]) {
+                    rowWords[packed++] = rowWords[i];
+                }
+            }
+        }
+        rowStarts[rows] = packed;
+        rowWords = Arrays.copyOf(rowWords, packed);
+
+        //Then turn the rows of words into the rows for each word
+        int[] postingStarts = new int[sorted.length + 1];
+        for (int i = 0; i < packed; i++) {
+            postingStarts[rowWords[i] + 1]++;
+        }
+        for (int i = 0; i < sorted.length; i++) {
+            postingStarts[i + 1] += postingStarts[i];
+        }
+        int[] postings = new int[packed];
+        int[] next = Arrays.copyOf(postingStarts, sorted.length);
+        for (int row = 0; row < rows; row++) {
+            for (int i = rowStarts[row]; i < rowStarts[row + 1]; i++) {
+                postings[next[rowWords[i]]++] = row;
+            }
+        }
+        return new CakeSearchIndex(cakes, sorted, postingStarts, postings, rowStarts, rowWords);
+    }
+
+    /**
+     * @return the ids of the words in text, as numbered so far, adding any new ones
+     */
+    private static int[] split(String text, Map<String, int[]> split, Map<String, Integer> wordIds,
+                               List<String> words, List<String> scratch) {
+        if (text == null) {
+            return new int[0];
+        }
+        int[] ids = split.get(text);
+        if (ids == null) {
+            ids = split(text, wordIds, words, scratch);
+            split.put(text, ids);
+        }
+        return ids;
+    }
+
+    /**
+     * @return the ids of the words in a string from the catalogue's pool
+     */
+    private static int[] split(CakeCatalogue catalogue, int stringIndex, int[][] splitByIndex,
+                               Map<String, Integer> wordIds, List<String> words,
+                               List<String> scratch) {
+        if (stringIndex < 0) {
+            return new int[0];
+        }
+        int[] ids = splitByIndex[stringIndex];
+        if (ids == null) {
+            ids = split(catalogue.readString(stringIndex), wordIds, words, scratch);
+            splitByIndex[stringIndex] = ids;
+        }
+        return ids;
+    }
+
+    private static int[] split(String text, Map<String, Integer> wordIds, List<String> words,
+                               List<String> scratch) {
+        scratch.clear();
+        tokenize(text, scratch);
+        int[] ids = new int[scratch.size()];
+        for (int i = 0; i < ids.length; i++) {
+            String word = scratch.get(i);
+            Integer id = wordIds.get(word);
+            if (id == null) {
+                id = words.size();
+                wordIds.put(word, id);
+                words.add(word);
+            }
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    /**
+     * Splits text into its words - runs of letters and digits - in lower case. Each character is
+     * lowered on its own, so a word and the start of it are always lowered the same way.
+     */
+    static void tokenize(String text, List<String> into) {
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c));
+            } else if (word.length() > 0) {
+                into.add(word.toString());
+                word.setLength(0);
+            }
+        }
+    }
+
+    /**
+     * @return whether this index was built from exactly this list
+     */
+    public boolean isFor(List<Cake> cakes) {
+        return mCakes == cakes;
+    }
+
+    /**
+     * @return the number of distinct words in the feed
+     */
+    public int getWordCount() {
+        return mWords.length;
+    }
+
+    /**
+     * Finds the rows matching a query from scratch.
+     */
+    public Result search(String query) {
+        return search(query, null);
+    }
+
+    /**
+     * Finds the rows matching a query. If the query only adds to the previous one - more
+     * characters on the end of its words, or more words - only the rows the previous query
+     * matched are checked.
+     * @param previous the last result from this index, or null
+     */
+    public Result search(String query, Result previous) {
+        List<String> terms = new ArrayList<>();
+        tokenize(query, terms);
+        if (terms.isEmpty()) {
+            return new Result(this, terms, null, mCakes.size());
+        }
+
+        //The range of words starting with each term
+        int[] ranges = new int[terms.size() * 2];
+        int narrowest = 0;
+        int narrowestRows = Integer.MAX_VALUE;
+        for (int i = 0; i < terms.size(); i++) {
+            String term = terms.get(i);
+            int low = lowerBound(term);
+            int high = lowerBound(term + Character.MAX_VALUE);
+            if (low == high) {
+                //No word starts with it, so nothing can match
+                return new Result(this, terms, new int[0], 0);
+            }
+            ranges[i * 2] = low;
+            ranges[i * 2 + 1] = high;
+            int rows = mPostingStarts[high] - mPostingStarts[low];
+            if (rows < narrowestRows) {
+                narrowest = i;
+                narrowestRows = rows;
+            }
+        }
+
+        if (previous != null && previous.mIndex == this && previous.isNarrowedBy(terms)
+                && previous.mCount <= narrowestRows) {
+            //Only the terms that have changed need checking, the rest matched already
+            boolean[] check = new boolean[terms.size()];
+            for (int i = 0; i < terms.size(); i++) {
+                check[i] = i >= previous.mTerms.size()
+                        || !terms.get(i).equals(previous.mTerms.get(i));
+            }
+            int[] rows = new int[previous.mCount];
+            int count = 0;
+            int[] previousRows = previous.mRows;
+            for (int i = 0; i < previous.mCount; i++) {
+                int row = previousRows != null ? previousRows[i] : i;
+                if (matches(row, ranges, check)) {
+                    rows[count++] = row;
+                }
+            }
+            return new Result(this, terms, rows, count);
+        }
+
+        //Start from the rows of the term with the fewest, then check those against the rest
+        int low = ranges[narrowest * 2];
+        int high = ranges[narrowest * 2 + 1];
+        int[] candidates;
+        int candidateCount;
+        if (high - low == 1) {
+            candidates = mPostings;
+            candidateCount = narrowestRows;
+        } else {
+            //Several words, whose rows overlap, so merge them through a bit per row
+            BitSet marked = new BitSet(mCakes.size());
+            for (int i = mPostingStarts[low]; i < mPostingStarts[high]; i++) {
+                marked.set(mPostings[i]);
+            }
+            candidates = new int[marked.cardinality()];
+            candidateCount = 0;
+            for (int row = marked.nextSetBit(0); row >= 0; row = marked.nextSetBit(row + 1)) {
+                candidates[candidateCount++] = row;
+            }
+        }
+        int offset = high - low == 1 ? mPostingStarts[low] : 0;
+        boolean[] check = new boolean[terms.size()];
+        Arrays.fill(check, true);
+        check[narrowest] = false;
+        int[] rows = new int[candidateCount];
+        int count = 0;
+        for (int i = 0; i < candidateCount; i++) {
+            int row = candidates[offset + i];
+            if (matches(row, ranges, check)) {
+                rows[count++] = row;
+            }
+        }
+        return new Result(this, terms, rows, count);
+    }
+
+    /**
+     * @return whether the row has a word in the range of every term that needs checking
+     */
+    private boolean matches(int row, int[] ranges, boolean[] check) {
+        int start = mRowStarts[row];
+        int end = mRowStarts[row + 1];
+        for (int term = 0; term < check.length; term++) {
+            if (!check[term]) {
+                continue;
+            }
+            int low = ranges[term * 2];
+            int high = ranges[term * 2 + 1];
+            boolean found = false;
+            for (int i = start; i < end && mRowWords[i] < high; i++) {
+                if (mRowWords[i] >= low) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the index of the first word that sorts at or after key
+     */
+    private int lowerBound(String key) {
+        int low = 0;
+        int high = mWords.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mWords[middle].compareTo(key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The rows matching a query, in feed order. A query with no words matches every row.
+     */
+    public static final class Result {
+
+        private final CakeSearchIndex mIndex;
+        private final List<String> mTerms;
+        //Null when every row matches
+        private final int[] mRows;
+        private final int mCount;
+
+        Result(CakeSearchIndex index, List<String> terms, int[] rows, int count) {
+            mIndex = index;
+            mTerms = terms;
+            mRows = rows;
+            mCount = count;
+        }
+
+        /**
+         * @return the number of matching rows
+         */
+        public int size() {
+            return mCount;
+        }
+
+        /**
+         * @return the position in the feed of the i'th matching row
+         */
+        public int getRow(int i) {
+            if (i < 0 || i >= mCount) {
+                throw new IndexOutOfBoundsException("Index " + i + ", size " + mCount);
+            }
+            return mRows != null ? mRows[i] : i;
+        }
+
+        /**
+         * @return whether every row matches, as it does for an empty query
+         */
+        public boolean isEverything() {
+            return mRows == null;
+        }
+
+        /**
+         * @return whether every row matching terms also matches these terms: each of these is
+         * the start of the term in the same place, and there may be more terms on the end
+         */
+        boolean isNarrowedBy(List<String> terms) {
+            if (terms.size() < mTerms.size()) {
+                return false;
+            }
+            for (int i = 0; i < mTerms.size(); i++) {
+                if (!terms.get(i).startsWith(mTerms.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,574 @@
+package com.waracle.androidtest;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * On-disk tier of the image cache. It stores the raw encoded image bytes (not decoded bitmaps)
+ * in a directory, one file per image, named after an MD5 hash of the URL. Images are streamed
+ * into the cache from the network and decoded straight from their file. This means images
+ * survive process death and cold starts without going back to the network.
+ *
+ * The cache keeps an index of entries in access order so that it can evict the least recently
+ * used files once the configured size cap is exceeded. The index is written to a journal file as
+ * each entry is added, read or removed, so on start-up the index is rebuilt by replaying the
+ * journal instead of listing and stat-ing every file. The journal is compacted once it gathers
+ * too many redundant lines.
+ *
+ * Entries are written to a temporary file first and then renamed into place, so a crash part way
+ * through a write never leaves a truncated image behind. Any file that the journal does not know
+ * about (a temporary file or a rename that didn't reach the journal) is deleted when the journal
+ * is read.
+ *
+ * Each entry can carry the CacheHeaders of the response it came from, in a small file next to it,
+ * so that CachingHttpClient can revalidate it with the server instead of downloading it again.
+ *
+ * The journal is only read on first use, or by open ahead of it, either of which must happen on
+ * a background thread.
+ */
+public class DiskImageCache {
+
+    private static final String TAG = DiskImageCache.class.getSimpleName();
+
+    private static final String DIRECTORY_NAME = "images";
+    //Default cap on the bytes stored on disk
+    public static final long DEFAULT_MAX_BYTES = 20 * 1024 * 1024;
+
+    //The feed is kept apart from the images so that a screen of new images can't evict it
+    private static final String FEED_DIRECTORY_NAME = "feed";
+    //Room for the biggest feed the loader will download, so any feed it gets can be cached
+    private static final long FEED_MAX_BYTES = CakeFeedLoader.MAX_FEED_BYTES;
+
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String MAGIC = "waracle.DiskImageCache";
+    static final String VERSION = "1";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String HEADERS_SUFFIX = ".headers";
+
+    private static final String CLEAN = "CLEAN";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+
+    //Rewrite the journal once it holds this many lines that no longer describe an entry
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private static DiskImageCache sInstance;
+    private static DiskImageCache sFeedInstance;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    //Entry sizes keyed by hashed URL, in least recently used order
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(0, 0.75f, true);
+    private long mSize;
+    private Writer mJournalWriter;
+    private int mRedundantOpCount;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    /**
+     * Returns the cache shared by the whole process. There must only ever be one instance per
+     * directory, otherwise two journals would be appended to the same file.
+     * @param context any context, used to find the cache directory
+     */
+    public static synchronized DiskImageCache getInstance(Context context) {
+        if (sInstance == null) {
+            File directory = new File(context.getApplicationContext().getCacheDir(),
+                    DIRECTORY_NAME);
+            sInstance = new DiskImageCache(directory, DEFAULT_MAX_BYTES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the cache for the cake feed, shared by the whole process like getInstance.
+     */
+    public static synchronized DiskImageCache getFeedInstance(Context context) {
+        if (sFeedInstance == null) {
+            File directory = new File(context.getApplicationContext().getCacheDir(),
+                    FEED_DIRECTORY_NAME);
+            sFeedInstance = new DiskImageCache(directory, FEED_MAX_BYTES);
+        }
+        return sFeedInstance;
+    }
+
+    /**
+     * @param directory the directory the entries and journal live in
+     * @param maxBytes the cap on the total size of the stored entries
+     */
+    public DiskImageCache(File directory, long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Reads the journal now if it hasn't been read yet, so that the first get or put doesn't
+     * have to wait for it. Does the disk reads the first use would, so not on the UI thread.
+     * @throws IOException if the cache directory can't be used
+     */
+    public synchronized void open() throws IOException {
+        ensureOpen();
+    }
+
+    /**
+     * Looks up the file holding the encoded image at the given URL. The file is only guaranteed
+     * to exist until the next put evicts it, so a caller that fails to read it should treat it
+     * as a miss.
+     * @param url the image url
+     * @return the file, or null if the image is not cached
+     * @throws IOException if the cache directory can't be used
+     */
+    public synchronized File get(String url) throws IOException {
+        String key = hashKey(url);
+        ensureOpen();
+        if (mEntries.get(key) == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        appendJournal(READ, key, -1);
+        mRedundantOpCount++;
+        return getEntryFile(key);
+    }
+
+    /**
+     * Returns the headers stored with an entry.
+     * @param url the image url
+     * @return the headers, or null if the entry doesn't exist or has none
+     */
+    public synchronized CacheHeaders getHeaders(String url) throws IOException {
+        String key = hashKey(url);
+        ensureOpen();
+        if (mEntries.get(key) == null) {
+            return null;
+        }
+        File file = getHeadersFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            return CacheHeaders.read(reader);
+        } catch (IOException e) {
+            //Treat a damaged file like a missing one, the entry will just be fetched again
+            Log.e(TAG, "Discarding headers for " + url + ": " + e.getMessage());
+            file.delete();
+            return null;
+        } finally {
+            StreamUtils.close(reader);
+        }
+    }
+
+    /**
+     * Replaces the headers stored with an entry, such as after the server confirmed with a 304
+     * that the entry is still current. Does nothing if the entry has been evicted.
+     * @param url the image url
+     * @param headers the new headers
+     */
+    public synchronized void putHeaders(String url, CacheHeaders headers) throws IOException {
+        String key = hashKey(url);
+        ensureOpen();
+        if (mEntries.get(key) != null) {
+            writeHeaders(key, headers);
+        }
+    }
+
+    /**
+     * Streams the encoded image at the given URL into the cache, evicting older entries if the
+     * cache has grown past its cap. The image never has to be held in memory as a whole.
+     * @param url the image url
+     * @param in the encoded image, read to the end but not closed
+     * @param maxBytes the largest image that will be accepted
+     * @return the file now holding the image
+     * @throws IOException if the entry could not be written, in which case nothing is stored
+     */
+    public File put(String url, InputStream in, long maxBytes) throws IOException {
+        Editor editor = edit(url);
+        try {
+            StreamUtils.copy(in, editor.getOutputStream(), maxBytes);
+            return editor.commit(null);
+        } finally {
+            editor.abort();
+        }
+    }
+
+    /**
+     * Starts writing an entry, for callers that produce the data a little at a time, such as a
+     * response being parsed as it downloads. Nothing is visible to get until it is committed.
+     * @param url the image url
+     * @return the editor, which must be committed or aborted
+     */
+    public Editor edit(String url) throws IOException {
+        String key = hashKey(url);
+        synchronized (this) {
+            ensureOpen();
+        }
+        //Write the bytes to a file of our own and only move it into place once complete
+        File tmp = new File(mDirectory, key + "." + Thread.currentThread().getId() + TMP_SUFFIX);
+        return new Editor(key, tmp);
+    }
+
+    /**
+     * An entry being written. Not thread safe, it is meant to be used by the thread that created
+     * it.
+     */
+    public final class Editor {
+
+        private final String mKey;
+        private final File mTmp;
+        private final FileOutputStream mOut;
+        private boolean mDone;
+
+        private Editor(String key, File tmp) throws IOException {
+            mKey = key;
+            mTmp = tmp;
+            mOut = new FileOutputStream(tmp);
+        }
+
+        /**
+         * @return the stream to write the entry to. It must not be closed by the caller.
+         */
+        public OutputStream getOutputStream() {
+            return mOut;
+        }
+
+        /**
+         * Moves the entry into the cache, replacing any previous entry for the same URL. Older
+         * entries are evicted first to make room for it, so the entry itself is never evicted.
+         * @param headers the headers to store with the entry, or null for none
+         * @return the file now holding the entry
+         * @throws IOException if the entry could not be stored, such as it being bigger than the
+         * whole cache, in which case nothing is
+         */
+        public File commit(CacheHeaders headers) throws IOException {
+            if (mDone) {
+                throw new IllegalStateException("Editor already finished");
+            }
+            mDone = true;
+            boolean committed = false;
+            try {
+                mOut.getFD().sync();
+                mOut.close();
+                long length = mTmp.length();
+                if (length > mMaxBytes) {
+                    //It would only evict everything else and then itself
+                    throw new IOException("Entry of " + length + " bytes is bigger than the "
+                            + mMaxBytes + " byte cache");
+                }
+                synchronized (DiskImageCache.this) {
+                    //Leave room for the new entry in place of the one it replaces, if any
+                    Long previous = mEntries.get(mKey);
+                    long replaced = previous != null ? previous : 0;
+                    trimToSize(mMaxBytes - length + replaced, mKey);
+                    File file = getEntryFile(mKey);
+                    if (!mTmp.renameTo(file)) {
+                        throw new IOException("Could not rename " + mTmp + " to " + file);
+                    }
+                    committed = true;
+                    if (headers != null) {
+                        writeHeaders(mKey, headers);
+                    } else {
+                        getHeadersFile(mKey).delete();
+                    }
+                    mEntries.put(mKey, length);
+                    if (previous != null) {
+                        mSize -= previous;
+                        mRedundantOpCount++;
+                    }
+                    mSize += length;
+                    mPutCount++;
+                    appendJournal(CLEAN, mKey, length);
+                    compactJournalIfNeeded();
+                    return file;
+                }
+            } finally {
+                if (!committed) {
+                    StreamUtils.close(mOut);
+                    mTmp.delete();
+                }
+            }
+        }
+
+        /**
+         * Throws away the entry. Does nothing once the editor has been committed, so it can be
+         * called from a finally block.
+         */
+        public void abort() {
+            if (!mDone) {
+                mDone = true;
+                StreamUtils.close(mOut);
+                mTmp.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes currently stored
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    public long maxSize() {
+        return mMaxBytes;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int putCount() {
+        return mPutCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("DiskImageCache[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                mSize, mMaxBytes, mHitCount, mMissCount, hitPercent);
+    }
+
+    /**
+     * Hashes a URL into a string that is safe to use as a file name.
+     */
+    static String hashKey(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            //Both are guaranteed to exist on every platform
+            throw new AssertionError(e);
+        }
+    }
+
+    private File getEntryFile(String key) {
+        return new File(mDirectory, key);
+    }
+
+    private File getHeadersFile(String key) {
+        return new File(mDirectory, key + HEADERS_SUFFIX);
+    }
+
+    private void writeHeaders(String key, CacheHeaders headers) throws IOException {
+        File tmp = new File(mDirectory, key + HEADERS_SUFFIX + TMP_SUFFIX);
+        Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            headers.write(writer);
+        } finally {
+            StreamUtils.close(writer);
+        }
+        if (!tmp.renameTo(getHeadersFile(key))) {
+            tmp.delete();
+            throw new IOException("Could not write headers for " + key);
+        }
+    }
+
+    private void deleteEntryFiles(String key) {
+        getEntryFile(key).delete();
+        getHeadersFile(key).delete();
+    }
+
+    /**
+     * Rebuilds the index from the journal the first time the cache is used.
+     */
+    private void ensureOpen() throws IOException {
+        if (mJournalWriter != null) {
+            return;
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create " + mDirectory);
+        }
+
+        File journal = new File(mDirectory, JOURNAL_FILE);
+        if (journal.exists()) {
+            try {
+                readJournal(journal);
+                deleteUnknownFiles();
+                mJournalWriter = newJournalWriter(true);
+                return;
+            } catch (IOException e) {
+                //The journal is corrupt so start again from an empty cache
+                Log.e(TAG, "Discarding journal: " + e.getMessage());
+                mEntries.clear();
+                mSize = 0;
+            }
+        }
+        deleteUnknownFiles();
+        rebuildJournal();
+    }
+
+    private void readJournal(File journal) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(journal), "UTF-8"));
+        try {
+            if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+                throw new IOException("Unexpected journal header");
+            }
+            String line;
+            int lineCount = 0;
+            while ((line = reader.readLine()) != null) {
+                lineCount++;
+                String[] parts = line.split(" ");
+                if (parts.length < 2) {
+                    //A line cut short by a crash, nothing after it can be trusted
+                    break;
+                }
+                String key = parts[1];
+                if (CLEAN.equals(parts[0]) && parts.length == 3) {
+                    Long previous = mEntries.put(key, Long.parseLong(parts[2]));
+                    if (previous != null) {
+                        mSize -= previous;
+                    }
+                    mSize += Long.parseLong(parts[2]);
+                } else if (READ.equals(parts[0])) {
+                    //Touch the entry to move it to the most recently used end
+                    mEntries.get(key);
+                } else if (REMOVE.equals(parts[0])) {
+                    Long previous = mEntries.remove(key);
+                    if (previous != null) {
+                        mSize -= previous;
+                    }
+                } else {
+                    break;
+                }
+            }
+            mRedundantOpCount = lineCount - mEntries.size();
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt journal line: " + e.getMessage());
+        } finally {
+            StreamUtils.close(reader);
+        }
+
+        //Drop index entries whose file has gone missing
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (getEntryFile(entry.getKey()).length() != entry.getValue()) {
+                deleteEntryFiles(entry.getKey());
+                mSize -= entry.getValue();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Deletes temporary files and any entry that never made it into the journal.
+     */
+    private void deleteUnknownFiles() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            String key = name.endsWith(HEADERS_SUFFIX)
+                    ? name.substring(0, name.length() - HEADERS_SUFFIX.length()) : name;
+            if (!name.equals(JOURNAL_FILE) && !mEntries.containsKey(key)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes a fresh journal holding one line per entry, replacing the current one atomically.
+     */
+    private void rebuildJournal() throws IOException {
+        if (mJournalWriter != null) {
+            StreamUtils.close(mJournalWriter);
+        }
+        File tmp = new File(mDirectory, JOURNAL_FILE_TMP);
+        Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            writer.write(MAGIC + "\n" + VERSION + "\n");
+            for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+                writer.write(CLEAN + " " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+        } finally {
+            StreamUtils.close(writer);
+        }
+        if (!tmp.renameTo(new File(mDirectory, JOURNAL_FILE))) {
+            throw new IOException("Could not replace journal");
+        }
+        mRedundantOpCount = 0;
+        mJournalWriter = newJournalWriter(true);
+    }
+
+    private Writer newJournalWriter(boolean append) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(mDirectory, JOURNAL_FILE), append), "UTF-8"));
+    }
+
+    private void appendJournal(String op, String key, long size) throws IOException {
+        mJournalWriter.write(size >= 0 ? op + " " + key + " " + size + "\n"
+                : op + " " + key + "\n");
+        mJournalWriter.flush();
+    }
+
+    private void compactJournalIfNeeded() throws IOException {
+        if (mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && mRedundantOpCount >= mEntries.size()) {
+            rebuildJournal();
+        }
+    }
+
+    /**
+     * Removes least recently used entries until the cache holds no more than maxBytes.
+     * @param keep the key of an entry that must not be removed, or null
+     */
+    private void trimToSize(long maxBytes, String keep) throws IOException {
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mSize > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            deleteEntryFiles(eldest.getKey());
+            mSize -= eldest.getValue();
+            iterator.remove();
+            mEvictionCount++;
+            mRedundantOpCount += 2;
+            appendJournal(REMOVE, eldest.getKey(), -1);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.waracle.androidtest;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The last feed that loaded successfully, kept on disk so that the list can be shown the moment
+ * the app starts, before (or without) any network access, while the feed is revalidated in the
+ * background.
+ *
+ * The cakes are stored already parsed, as a CakeCatalogue, which is mapped rather than read or
+ * parsed again - only the rows that are shown are ever decoded.
+ *
+ * The file is replaced atomically, so a crash while writing leaves the previous snapshot intact.
+ */
+public class FeedSnapshot {
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File mFile;
+
+    /**
+     * @param file where the snapshot is kept
+     */
+    public FeedSnapshot(File file) {
+        mFile = file;
+    }
+
+    /**
+     * @return the cakes in the snapshot, mapped from the file, or null if there is no snapshot
+     * yet
+     * @throws IOException if the snapshot could not be read or is corrupt
+     */
+    public CakeCatalogue read() throws IOException {
+        if (!mFile.exists()) {
+            return null;
+        }
+        return CakeCatalogue.map(mFile);
+    }
+
+    /**
+     * Replaces the snapshot.
+     * @param cakes the feed to keep
+     * @throws IOException if it could not be written, in which case the old snapshot is kept
+     */
+    public void write(List<Cake> cakes) throws IOException {
+        File tmp = new File(mFile.getPath() + TMP_SUFFIX);
+        FileOutputStream fileOut = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        boolean written = false;
+        try {
+            CakeCatalogue.write(cakes, out);
+            out.flush();
+            fileOut.getFD().sync();
+            written = true;
+        } finally {
+            StreamUtils.close(out);
+            if (!written) {
+                tmp.delete();
+            }
+        }
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("Could not replace " + mFile);
+        }
+    }
+
+    /**
+     * Removes the snapshot.
+     */
+    public void delete() {
+        mFile.delete();
+    }
+}
@@ -0,0 +1,185 @@
+package com.waracle.androidtest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics that keeps a histogram of every timer, along with the counters, gauges and the last few
+ * errors, for dumping on demand (MainActivity prints them from dumpsys).
+ *
+ * Each histogram has a bucket per power of two of microseconds, so recording a time is a couple of
+ * atomic increments with no locking and no allocation, and the percentiles it reports are upper
+ * bounds to within a factor of two - plenty to tell a 2ms decode from a 200ms one.
+ */
+public class HistogramMetrics implements Metrics {
+
+    //Bucket i holds times under 2^i microseconds, the last one everything longer (over half an
+    //hour)
+    private static final int BUCKET_COUNT = 32;
+    //Errors kept for the dump
+    private static final int MAX_ERRORS = 20;
+
+    private static final String[] TIMER_NAMES = {
+            "queue wait", "image network", "decode", "bind", "feed parse", "feed load",
+            "decode wait", "search"};
+    private static final String[] COUNTER_NAMES = {
+            "image memory hits", "image disk hits", "image not modified", "image downloads",
+            "image errors", "bytes transferred", "feed parsed", "feed errors"};
+    private static final String[] GAUGE_NAMES = {"bitmap cache bytes", "bitmap pool bytes",
+            "fetch queue depth", "decode queue depth"};
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(TIMER_COUNT * BUCKET_COUNT);
+    private final AtomicLongArray mTotalNanos = new AtomicLongArray(TIMER_COUNT);
+    private final AtomicLongArray mMaxNanos = new AtomicLongArray(TIMER_COUNT);
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_COUNT);
+    private final AtomicLongArray mGauges = new AtomicLongArray(GAUGE_COUNT);
+    //Newest last. Errors are rare, so these are simply locked.
+    private final ArrayDeque<String> mErrors = new ArrayDeque<>();
+
+    @Override
+    public void recordTime(int timer, long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+        mBuckets.incrementAndGet(timer * BUCKET_COUNT + bucket);
+        mTotalNanos.addAndGet(timer, nanos);
+        long max;
+        while (nanos > (max = mMaxNanos.get(timer))) {
+            if (mMaxNanos.compareAndSet(timer, max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void count(int counter, long delta) {
+        mCounters.addAndGet(counter, delta);
+    }
+
+    @Override
+    public void setGauge(int gauge, long value) {
+        mGauges.set(gauge, value);
+    }
+
+    @Override
+    public void recordError(String where, Throwable error) {
+        String message = error != null ? where + ": " + error : where;
+        synchronized (mErrors) {
+            if (mErrors.size() == MAX_ERRORS) {
+                mErrors.removeFirst();
+            }
+            mErrors.addLast(message);
+        }
+    }
+
+    /**
+     * @return the number of times recorded for a timer
+     */
+    public long getCount(int timer) {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mBuckets.get(timer * BUCKET_COUNT + i);
+        }
+        return count;
+    }
+
+    /**
+     * @param timer one of the TIMER constants
+     * @param percentile between 0 and 100
+     * @return the time in microseconds that at least that percentage of the recorded times were
+     * under, to the nearest power of two above, or 0 if nothing has been recorded
+     */
+    public long getPercentileMicros(int timer, double percentile) {
+        long count = getCount(timer);
+        if (count == 0) {
+            return 0;
+        }
+        long wanted = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(timer * BUCKET_COUNT + i);
+            if (seen >= Math.max(1, wanted)) {
+                return 1L << i;
+            }
+        }
+        return 1L << (BUCKET_COUNT - 1);
+    }
+
+    /**
+     * @return the longest time recorded for a timer, in nanoseconds
+     */
+    public long getMaxNanos(int timer) {
+        return mMaxNanos.get(timer);
+    }
+
+    public long getCounter(int counter) {
+        return mCounters.get(counter);
+    }
+
+    public long getGauge(int gauge) {
+        return mGauges.get(gauge);
+    }
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    public void reset() {
+        for (int i = 0; i < mBuckets.length(); i++) {
+            mBuckets.set(i, 0);
+        }
+        for (int i = 0; i < TIMER_COUNT; i++) {
+            mTotalNanos.set(i, 0);
+            mMaxNanos.set(i, 0);
+        }
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            mCounters.set(i, 0);
+        }
+        synchronized (mErrors) {
+            mErrors.clear();
+        }
+    }
+
+    /**
+     * Prints every timer, counter and gauge, and the last few errors.
+     * @param prefix put in front of every line, as dumpsys does
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        for (int timer = 0; timer < TIMER_COUNT; timer++) {
+            long count = getCount(timer);
+            writer.print(prefix);
+            writer.print(TIMER_NAMES[timer]);
+            writer.print(": count=");
+            writer.print(count);
+            if (count > 0) {
+                writer.print(" mean=" + mTotalNanos.get(timer) / count / 1000 + "us");
+                writer.print(" p50<" + getPercentileMicros(timer, 50) + "us");
+                writer.print(" p90<" + getPercentileMicros(timer, 90) + "us");
+                writer.print(" p99<" + getPercentileMicros(timer, 99) + "us");
+                writer.print(" max=" + mMaxNanos.get(timer) / 1000 + "us");
+            }
+            writer.println();
+        }
+        for (int counter = 0; counter < COUNTER_COUNT; counter++) {
+            writer.println(prefix + COUNTER_NAMES[counter] + ": " + mCounters.get(counter));
+        }
+        for (int gauge = 0; gauge < GAUGE_COUNT; gauge++) {
+            writer.println(prefix + GAUGE_NAMES[gauge] + ": " + mGauges.get(gauge));
+        }
+        synchronized (mErrors) {
+            writer.println(prefix + "last errors: " + mErrors.size());
+            for (String error : mErrors) {
+                writer.println(prefix + "  " + error);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        dump("", writer);
+        writer.flush();
+        return out.toString();
+    }
+}
@@ -0,0 +1,208 @@
+package com.waracle.androidtest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The one place connections are opened, so the feed and the images share the same settings.
+ *
+ * HttpURLConnection keeps idle sockets in a pool and reuses them for the next request to the same
+ * host, which saves a TCP (and for https a TLS) handshake per request. It can only do that if the
+ * response body is read to the end and the stream closed - calling disconnect() closes the socket
+ * instead. So a connection is finished with release, which only disconnects when the body wasn't
+ * read to the end.
+ *
+ * Compression is asked for explicitly rather than left to the platform, because once a request
+ * sets Accept-Encoding itself the response is not decompressed for it. Doing it ourselves means it
+ * works the same on every API level, and images can ask for identity so that their Content-Length
+ * is the real size of the body.
+ */
+public final class HttpConnections {
+
+    public static final int CONNECT_TIMEOUT_MILLIS = 15000;
+    public static final int READ_TIMEOUT_MILLIS = 20000;
+    //Idle sockets kept per host - enough for every image thread plus the feed
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+
+    static {
+        //Both are read once, when the first connection is made
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", Integer.toString(MAX_IDLE_CONNECTIONS));
+    }
+
+    private HttpConnections() {
+    }
+
+    /**
+     * Opens a connection with the shared settings. Nothing is sent until connect is called.
+     * @param url the url to open
+     * @param acceptGzip whether to ask for a gzipped body, which is worth it for text such as the
+     *                   feed but not for images, which are already compressed
+     */
+    public static HttpURLConnection open(String url, boolean acceptGzip) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        connection.setRequestProperty("Accept-Encoding", acceptGzip ? "gzip" : "identity");
+        return connection;
+    }
+
+    /**
+     * Sends the request and waits for the response headers, timing both.
+     * @return the timing of the request, to be passed to getBody
+     * @throws IOException if the request failed, in which case the connection is closed
+     */
+    public static RequestTiming connect(HttpURLConnection connection) throws IOException {
+        RequestTiming timing = new RequestTiming();
+        try {
+            //Resolves the host and opens the socket, or takes one from the pool
+            connection.connect();
+            timing.connected();
+            connection.getResponseCode();
+            timing.firstByte();
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+        return timing;
+    }
+
+    /**
+     * @return the response body, decompressed if it was gzipped, which records in timing when
+     * it has been read to the end
+     */
+    public static InputStream getBody(HttpURLConnection connection, final RequestTiming timing)
+            throws IOException {
+        InputStream in = connection.getInputStream();
+        if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+            in = new GZIPInputStream(in);
+        }
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int result = super.read();
+                if (result == -1) {
+                    timing.finished();
+                } else {
+                    timing.transferred(1);
+                }
+                return result;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read == -1) {
+                    timing.finished();
+                } else {
+                    timing.transferred(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Finishes with a connection, returning its socket to the pool if the body was read to the
+     * end.
+     * @param body the body, or null if it was never opened
+     * @param complete whether the body was read to the end
+     */
+    public static void release(HttpURLConnection connection, InputStream body, boolean complete) {
+        StreamUtils.close(body);
+        if (!complete) {
+            //Unread bytes would still be waiting on the socket, so it can't be reused
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Finishes with a response whose body isn't wanted, such as a 304 or an error. These are
+     * small, so the body is read and dropped to keep the socket reusable.
+     */
+    public static void discard(HttpURLConnection connection) {
+        InputStream in = connection.getErrorStream();
+        try {
+            if (in == null) {
+                in = connection.getInputStream();
+            }
+            byte[] buffer = new byte[1024];
+            int total = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+                if (total > 64 * 1024) {
+                    //Not worth reading on for the sake of one socket
+                    release(connection, in, false);
+                    return;
+                }
+            }
+            release(connection, in, true);
+        } catch (IOException e) {
+            release(connection, in, false);
+        }
+    }
+
+    /**
+     * How long each part of a request took: opening the connection (DNS, TCP and TLS, or nothing
+     * for a pooled socket), waiting for the response headers, and transferring the body.
+     */
+    public static class RequestTiming {
+
+        private final long mStart = System.nanoTime();
+        private long mConnected;
+        private long mFirstByte;
+        private long mFinished;
+        private long mBytes;
+
+        void connected() {
+            mConnected = System.nanoTime();
+        }
+
+        void firstByte() {
+            mFirstByte = System.nanoTime();
+        }
+
+        void transferred(int bytes) {
+            mBytes += bytes;
+        }
+
+        void finished() {
+            if (mFinished == 0) {
+                mFinished = System.nanoTime();
+            }
+        }
+
+        public long getConnectMillis() {
+            return (mConnected - mStart) / 1000000;
+        }
+
+        public long getFirstByteMillis() {
+            return (mFirstByte - mConnected) / 1000000;
+        }
+
+        /**
+         * @return how long the body took to read, or -1 if it wasn't read to the end
+         */
+        public long getTransferMillis() {
+            return mFinished != 0 ? (mFinished - mFirstByte) / 1000000 : -1;
+        }
+
+        /**
+         * @return the body bytes read, after decompression
+         */
+        public long getBytes() {
+            return mBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "connect=" + getConnectMillis() + "ms ttfb=" + getFirstByteMillis()
+                    + "ms transfer=" + getTransferMillis() + "ms bytes=" + mBytes;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.waracle.androidtest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gives every image url a small int id, the same one for the life of the process, so that the
+ * image loader can key its caches and in-flight loads on ids rather than on url strings. A url is
+ * only hashed when it is turned into an id, and with the urls pooled by the parser that hash is
+ * already cached in the String.
+ *
+ * Ids are never given up, but there is one per distinct url in the feed, not one per row.
+ */
+public final class ImageIds {
+
+    /**
+     * The id of a missing or empty url.
+     */
+    public static final int NO_IMAGE = -1;
+
+    //Set in the keys of previews, see getPreviewKey
+    private static final long PREVIEW_FLAG = 1L << 31;
+
+    private static final Map<String, Integer> sIds = new HashMap<>();
+    private static final List<String> sUrls = new ArrayList<>();
+
+    private ImageIds() {
+        //Static methods only
+    }
+
+    /**
+     * @return the id of the url, which is given one if it hasn't got one yet, or NO_IMAGE if
+     * it is null or empty
+     */
+    public static synchronized int getId(String url) {
+        if (url == null || url.isEmpty()) {
+            return NO_IMAGE;
+        }
+        Integer id = sIds.get(url);
+        if (id == null) {
+            id = sUrls.size();
+            sIds.put(url, id);
+            sUrls.add(url);
+        }
+        return id;
+    }
+
+    /**
+     * Builds the memory cache key for an image decoded for a particular target size: the image
+     * id in the high 32 bits and the width and height in 16 bits each below it. No view is
+     * anywhere near 65536 pixels across.
+     */
+    public static long getCacheKey(int imageId, int width, int height) {
+        return ((long) imageId << 32) | ((width & 0xffffL) << 16) | (height & 0xffffL);
+    }
+
+    /**
+     * Builds the memory cache key for the low quality preview of an image that is shown while
+     * the image itself loads. It is the image's key with the top bit of the width set, which no
+     * view is wide enough to set itself.
+     */
+    public static long getPreviewKey(int imageId, int width, int height) {
+        return getCacheKey(imageId, width, height) | PREVIEW_FLAG;
+    }
+
+    /**
+     * @return the url an id was given to
+     * @throws IllegalArgumentException if no url has that id
+     */
+    public static synchronized String getUrl(int id) {
+        if (id < 0 || id >= sUrls.size()) {
+            throw new IllegalArgumentException("No image with id " + id);
+        }
+        return sUrls.get(id);
+    }
+}
@@ -1,79 +1,257 @@
 package com.waracle.androidtest;
 
-import android.content.res.Resources;
+import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.os.AsyncTask;
 import android.os.Handler;
-import android.os.Parcel;
-import android.os.Parcelable;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 
+import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by Riad on 20/05/2015.
  */
 
 /**
- * I have changed some aspects of this class and the way images load. Firstly, it hosts member
- * variables of two ArrayLists that cache the URL and Bitmap image of every URL passes to this
- * class, so that when a URL is accessed once, it need not access it again - but simply go to
- * a bitmap that has been cached.
+ * I have changed some aspects of this class and the way images load. Firstly, it holds a
+ * BitmapMemoryCache keyed by URL, so that when a URL is accessed once, it need not access it
+ * again - but simply go to the bitmap that has been cached. The cache has a byte budget and
+ * evicts the least recently used bitmaps, so it no longer grows until the app runs out of memory.
+ * Behind it sits an optional DiskImageCache holding the encoded bytes, so images are looked up in
+ * memory, then on disk, and only then fetched from the network.
+ *
+ * The feed repeats the same few images many times, so several rows often ask for the same URL
+ * before the first download has finished. Each URL that is being loaded has one PendingImage that
+ * later requests for the same URL attach their ImageView to, so the image is downloaded and
+ * decoded once and then handed to every waiting view.
+ *
+ * Images are decoded by BitmapDecoder at the size of the ImageView they are shown in rather than
+ * at full resolution, so the memory cache and the in flight loads are keyed by the URL together
+ * with that target size. The URL is stood for by its int id from ImageIds, and the key packs the
+ * id and size into a long (see ImageIds.getCacheKey), so a lookup hashes a number rather than
+ * building and hashing a string on every bind.
+ *
+ * On a slow connection a row would stay blank until its whole image had downloaded, so images
+ * are shown in two passes. Once a download has been going for a moment, a heavily subsampled
+ * preview is decoded from the bytes that have arrived and shown straight away, and the full
+ * image replaces it when it is ready, without the row going blank in between. Previews are kept
+ * in the memory cache, within the same budget, until their image arrives. setTwoPass(false)
+ * goes back to showing nothing until the image is ready.
+ *
+ * Bitmaps leaving the memory cache are not simply dropped. Once no ImageView is showing them any
+ * more they go into a BitmapPool, and later decodes draw their memory from it. So that a bitmap
+ * can never be pooled while a delivery is on its way to a view, the memory cache is only written
+ * to on the UI thread, which is also where the views are set.
+ *
+ * When the system runs short of memory, a share of the memory cache and the pool is given back
+ * through MemoryTrimmer - all of it once the app is in the background - while the disk cache is
+ * kept.
+ *
+ * Each load goes through two PipelineStages with threads of their own: a fetch stage that
+ * downloads the image, with several threads as they spend most of their time waiting on the
+ * network, then a decode stage with a thread per core, as decoding is all CPU. Between them the
+ * decode stage only has room for a couple of images per thread, and when it is full the fetch
+ * threads wait, so downloads don't pile up waiting to be decoded. Previews are decoded in the
+ * decode stage too, but only if it has room. Within each stage the newest request runs first, so
+ * the rows that have just scrolled into view load before rows that have scrolled away. Each
+ * ImageView is tagged with the PendingImage it is waiting for. When a recycled view is asked to
+ * show a different image it leaves its old request, and a request nobody is waiting for is
+ * cancelled - it is dropped from the queue if it hasn't started, or stops before decoding if it
+ * has.
  *
  * Secondly, in order that images do not block the UI thread leading to an undesirable lag or
- * freezing of the screen, when the load method of ImageLoader is called by the List View adapter
- * an asynctask inner class is instantiated that checks to see if the URL has already been cached, and
- * if not, goes to the relevent URL to access the image. A helper method was made that access the UI
- * thread to publish the results - given that is a fundamental aspect of thread and view heirachrchy.
+ * freezing of the screen, the load method only looks in the memory cache on the UI thread. On a
+ * miss the ImageView joins the PendingImage already in flight for that key, or a new one is
+ * queued in the fetch stage. Its fetch thread looks in the disk cache before going to the
+ * network, a decode thread decodes it, and UIthread posts the bitmap back to the UI thread, where
+ * it is put in the memory cache and set on every view still waiting for it.
  *
- * Lastly, the ImageLoader class implements Parcelable as this enables the class to be stored into
- * a bundle in the MainActivity so that when the phone is rotated, or any other event happens that
- * causes the activity lifecycle to call onDestory, the cached URLs and images are saved so that
- * they instantly appear back on the users screen and do not have to be loaded again.
+ * Lastly, the ImageLoader used to implement Parcelable so that the whole cache, bitmaps and all,
+ * could be saved in the fragment's instance state and survive a rotation. That copied megabytes
+ * of pixels through a Bundle on every rotation and failed with TransactionTooLargeException once
+ * the cache held more than about 1MB. The app now shares one ImageLoader for the whole process,
+ * from getInstance, so the cache simply outlives the activity and rotation costs nothing.
  */
-public class ImageLoader implements Parcelable {
+public class ImageLoader {
 
     private static final String TAG = ImageLoader.class.getSimpleName();
-    //List of URLs that have been accessed previously
-    private ArrayList<String> mUrl;
-    //List of Bitmaps that have been displayed previously
-    private ArrayList<Bitmap> mBitmap;
+    //A missing URL is a programming error, so the message isn't a translated resource
+    private static final String URL_NULL = "URL is empty!";
+
+    //Only used on the UI thread
+    private static ImageLoader sInstance;
+
+    //Bitmaps that have been displayed previously, keyed by image id and target size
+    private final BitmapMemoryCache mMemoryCache;
+    //Encoded image bytes that survive process death, may be null
+    private DiskImageCache mDiskCache;
+    //Fetches through the disk cache, revalidating stale entries. Null without a disk cache.
+    private CachingHttpClient mHttpClient;
+    //Number of images that had to be fetched from the network
+    private final AtomicInteger mNetworkCount = new AtomicInteger();
+    //Number of images that were decoded into bitmaps
+    private final AtomicInteger mDecodeCount = new AtomicInteger();
+    //Number of requests that attached to a load already in flight
+    private int mCoalescedCount;
+    //Loads that have been started but not delivered yet, keyed by image id and target size. Only
+    //used on the UI thread.
+    private final Map<Long, PendingImage> mInFlight = new HashMap<>();
     //Handler that deals with UI Thread.
-    private Handler mHandler;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    //Number of images downloaded at once unless changed with setFetchThreadCount. Downloads
+    //spend most of their time waiting on the network, so there can be more than there are cores.
+    private static final int DEFAULT_FETCH_THREADS = 6;
+    //Number of images decoded at once unless changed with setDecodeThreadCount. Decoding is all
+    //CPU, so one per core.
+    private static final int DEFAULT_DECODE_THREADS =
+            Math.max(1, Runtime.getRuntime().availableProcessors());
+    //Downloaded images that may be waiting for or in a decode, per decode thread
+    private static final int DECODE_CAPACITY_PER_THREAD = 2;
+    //Downloads images into the disk cache, or into memory without one. It is fed from the UI
+    //thread, which must never wait, so it is unbounded.
+    private final PipelineStage mFetchStage = new PipelineStage(TAG + "-fetch",
+            DEFAULT_FETCH_THREADS, PipelineStage.UNBOUNDED);
+    //Decodes the downloaded images. When it is full the fetch threads wait for room, so
+    //downloads can't get far ahead of the decodes.
+    private final PipelineStage mDecodeStage = new PipelineStage(TAG + "-decode",
+            DEFAULT_DECODE_THREADS, DEFAULT_DECODE_THREADS * DECODE_CAPACITY_PER_THREAD);
+    //Whether opaque JPEGs may be decoded to RGB_565
+    private boolean mAllowRgb565 = true;
+    //The largest encoded image that will be downloaded
+    private static final int DEFAULT_MAX_IMAGE_BYTES = 4 * 1024 * 1024;
+    private volatile int mMaxImageBytes = DEFAULT_MAX_IMAGE_BYTES;
+    //Bitmaps that are free to be decoded into
+    private final BitmapPool mBitmapPool;
+    //The bitmap each ImageView is showing. Only used on the UI thread.
+    private final WeakHashMap<ImageView, Bitmap> mDisplayed = new WeakHashMap<>();
+    //Bitmaps that have left the memory cache but were still showing. Only used on the UI thread.
+    private final List<Bitmap> mRetired = new ArrayList<>();
 
-    //Constructor initialsies the ArrayLists of cached URLs and Bitmaps
-    public ImageLoader(){
+    //Prefetches at most this many images at once unless changed with setPrefetchBudget
+    private static final int DEFAULT_PREFETCH_BUDGET = 2;
+    private int mPrefetchBudget = DEFAULT_PREFETCH_BUDGET;
+    //Loads that only prefetch wants, nearest row first. Only used on the UI thread.
+    private final LinkedHashMap<Long, PendingImage> mPrefetches = new LinkedHashMap<>();
+    //What the last call to prefetch asked for, topped up from as prefetches finish
+    private int[] mPrefetchIds = new int[0];
+    //Prefetches that failed, such as a 404 or an image that won't decode, which are not tried
+    //again until they leave the prefetch window or the feed changes. Otherwise a failure would
+    //free up the budget, and the same image would be asked for again straight away, for as long
+    //as its row stayed near the screen. Only used on the UI thread.
+    private final HashSet<Long> mFailedPrefetches = new HashSet<>();
+    private int mPrefetchWidth;
+    private int mPrefetchHeight;
+    private int mPrefetchCount;
 
-        mUrl = new ArrayList();
-        mBitmap = new ArrayList();
-    }
+    //When each view was cleared to wait for its image, for measuring blank rows. Only used on
+    //the UI thread.
+    private final WeakHashMap<ImageView, Long> mBlankSince = new WeakHashMap<>();
+    private long mBlankMillis;
+    private int mBlankCount;
 
+    //Whether previews are shown while images download
+    private volatile boolean mTwoPass = true;
+    //A download is previewed once this much of it has arrived...
+    private static final int MIN_PREVIEW_BYTES = 16 * 1024;
+    //...and it has been downloading this long, faster downloads aren't worth previewing
+    private static final long PREVIEW_DELAY_NANOS = 100 * 1000 * 1000;
+    //The most of a download kept in memory to decode a preview from
+    private static final int MAX_PREVIEW_BYTES = 64 * 1024;
+    //Number of previews shown. Only used on the UI thread.
+    private int mPreviewCount;
 
-    //Creates the parcelable ArrayLists
-    protected ImageLoader(Parcel in) {
-        mUrl = in.createStringArrayList();
-        mBitmap = in.createTypedArrayList(Bitmap.CREATOR);
+    //Where the timings, cache tier counts and failures of every load are reported
+    private volatile Metrics mMetrics = Metrics.NONE;
+    //Whether warmUp has been called. Only used on the UI thread.
+    private boolean mWarmedUp;
+
+    /**
+     * @param maxCacheBytes the byte budget of the bitmap memory cache, see
+     *                      BitmapMemoryCache.getDefaultMaxBytes
+     * @param maxPoolBytes the byte budget of the bitmap pool, see BitmapPool.getDefaultMaxBytes
+     */
+    public ImageLoader(int maxCacheBytes, int maxPoolBytes){
+        mMemoryCache = new BitmapMemoryCache(maxCacheBytes);
+        mBitmapPool = new BitmapPool(maxPoolBytes);
+        mMemoryCache.setOnRemovedListener(mOnRemovedListener);
     }
 
-    public static final Creator<ImageLoader> CREATOR = new Creator<ImageLoader>() {
-        @Override
-        public ImageLoader createFromParcel(Parcel in) {
-            return new ImageLoader(in);
-        }
 
-        @Override
-        public ImageLoader[] newArray(int size) {
-            return new ImageLoader[size];
+    /**
+     * Returns the loader shared by the whole process, with the default memory and pool budgets
+     * and the shared disk cache. Because it isn't tied to an activity, the bitmaps it has cached
+     * are still there after a rotation. Must be called on the UI thread.
+     * @param context any context, only used to size the caches the first time
+     */
+    public static ImageLoader getInstance(Context context) {
+        if (sInstance == null) {
+            StartupTrace.beginSection("ImageLoader.getInstance");
+            try {
+                sInstance = new ImageLoader(BitmapMemoryCache.getDefaultMaxBytes(context),
+                        BitmapPool.getDefaultMaxBytes(context));
+                sInstance.setDiskCache(DiskImageCache.getInstance(context));
+                MemoryTrimmer.addListener(context, new MemoryTrimmer.OnTrimMemoryListener() {
+                    @Override
+                    public void onTrimMemory(int level) {
+                        sInstance.trimMemory(level);
+                    }
+                });
+            } finally {
+                StartupTrace.endSection();
+            }
         }
-    };
+        return sInstance;
+    }
+
+    /**
+     * Sheds a share of the memory cache and the bitmap pool for a memory warning, see
+     * MemoryTrimmer.getTrimmedSize. The disk cache is left alone, so a trimmed image comes back
+     * from disk rather than the network. Must be called on the UI thread, like any change to the
+     * memory cache.
+     * @param level one of the ComponentCallbacks2.TRIM_MEMORY levels
+     */
+    public void trimMemory(int level) {
+        int cacheBytes = mMemoryCache.size();
+        int poolBytes = mBitmapPool.size();
+        mMemoryCache.trimToSize(MemoryTrimmer.getTrimmedSize(cacheBytes, level));
+        //After the cache, whose evictions that are no longer displayed go into the pool
+        mBitmapPool.trimToSize(MemoryTrimmer.getTrimmedSize(mBitmapPool.size(), level));
+        Log.d(TAG, String.format("Trimmed memory cache %dKB to %dKB, pool %dKB to %dKB",
+                cacheBytes / 1024, mMemoryCache.size() / 1024, poolBytes / 1024,
+                mBitmapPool.size() / 1024));
+    }
+
+    /**
+     * Called on the UI thread whenever a bitmap leaves the memory cache. It goes into the pool
+     * straight away unless a view is still showing it.
+     */
+    private final BitmapMemoryCache.OnRemovedListener mOnRemovedListener =
+            new BitmapMemoryCache.OnRemovedListener() {
+                @Override
+                public void onRemoved(Bitmap bitmap) {
+                    mRetired.add(bitmap);
+                    recycleRetired();
+                }
+            };
 
     /**
      * Simple function for loading a bitmap image from the web
@@ -84,162 +262,931 @@ public class ImageLoader implements Parcelable {
     public void load(final String url, final ImageView imageView) {
         //If the URL is empty somthing has gone wrong throw exception
         if (TextUtils.isEmpty(url)) {
-            throw new InvalidParameterException(Resources.getSystem().getString(R.string.url_null));
+            throw new InvalidParameterException(URL_NULL);
+        }
+        load(ImageIds.getId(url), imageView);
+    }
+
+    /**
+     * Loads the image with an id from ImageIds, such as Cake.getImageId.
+     * @param imageId the id of the image url
+     * @param imageView view to set image too.
+     */
+    public void load(int imageId, ImageView imageView) {
+        if (imageId == ImageIds.NO_IMAGE) {
+            throw new InvalidParameterException(URL_NULL);
+        }
+
+        // Can you think of a way to improve loading of bitmaps
+        // that have already been loaded previously??
+        //Yes... The memory cache is a hash lookup, so a bitmap that is already cached is set
+        //straight away on the UI thread without starting a background task at all.
+        int width = getTargetWidth(imageView);
+        int height = getTargetHeight(imageView);
+        long key = ImageIds.getCacheKey(imageId, width, height);
+
+        //A recycled view may still be waiting for the image of the row it showed before
+        PendingImage previous = (PendingImage) imageView.getTag(R.id.image_request);
+        if (previous != null) {
+            if (previous.mKey == key) {
+                return;
+            }
+            detach(imageView, previous);
+        }
+
+        Bitmap cached = mMemoryCache.get(key);
+        if (cached != null) {
+            mMetrics.count(Metrics.COUNTER_IMAGE_MEMORY_HIT, 1);
+            setImageView(imageView, cached);
+            return;
+        }
+
+        //Don't leave the previous row's image showing while this one loads, show its preview
+        //if it has one or nothing
+        Bitmap preview = mTwoPass
+                ? mMemoryCache.get(ImageIds.getPreviewKey(imageId, width, height)) : null;
+        setImageView(imageView, preview);
+        if (preview == null && !mBlankSince.containsKey(imageView)) {
+            mBlankSince.put(imageView, SystemClock.uptimeMillis());
+        }
+
+        //If the image is already on its way, wait for that load instead of starting another
+        PendingImage pending = mInFlight.get(key);
+        if (pending != null) {
+            mCoalescedCount++;
+            attach(imageView, pending);
+            if (mPrefetches.remove(key) != null) {
+                //The row has scrolled into view before its prefetch finished, so it can't wait
+                //behind the other prefetches any more. One that is already running carries on.
+                pending.setPriority(PriorityExecutor.PRIORITY_VISIBLE);
+            }
+            return;
+        }
+
+        //If the URL is valid and not cached, load the image in the background
+        pending = new PendingImage(key, imageId, width, height);
+        attach(imageView, pending);
+        mInFlight.put(key, pending);
+        pending.start(new imageDownloader(pending), PriorityExecutor.PRIORITY_VISIBLE);
+    }
+
+    /**
+     * Warms the memory cache with images for rows that are about to scroll into view, so they
+     * are ready by the time the rows are bound. Prefetches run at PRIORITY_PREFETCH, behind every
+     * load for a visible row, and no more than the prefetch budget run at once, so they never
+     * hold up the rows on screen. A row that scrolls into view while its image is being
+     * prefetched takes the load over at visible priority.
+     *
+     * Each call replaces the previous one: prefetches for images that are no longer in the list
+     * are cancelled, so an empty list stops prefetching altogether. A prefetch that failed isn't
+     * tried again while its image stays in the list.
+     * @param imageIds the ids of the images to prefetch, most wanted first. NO_IMAGE entries are
+     *                 skipped.
+     * @param width the width they will be displayed at
+     * @param height the height they will be displayed at
+     */
+    public void prefetch(int[] imageIds, int width, int height) {
+        mPrefetchIds = imageIds.clone();
+        mPrefetchWidth = width;
+        mPrefetchHeight = height;
+
+        HashSet<Long> wanted = new HashSet<>();
+        for (int imageId : imageIds) {
+            if (imageId != ImageIds.NO_IMAGE) {
+                wanted.add(ImageIds.getCacheKey(imageId, width, height));
+            }
+        }
+        //Failures that have left the window get another go if they come back into it
+        mFailedPrefetches.retainAll(wanted);
+        Iterator<PendingImage> iterator = mPrefetches.values().iterator();
+        while (iterator.hasNext()) {
+            PendingImage pending = iterator.next();
+            if (!wanted.contains(pending.mKey)) {
+                iterator.remove();
+                cancel(pending);
+            }
+        }
+        fillPrefetches();
+    }
+
+    /**
+     * Starts prefetches from the last list given to prefetch until the budget is used up.
+     */
+    private void fillPrefetches() {
+        List<PendingImage> started = new ArrayList<>();
+        for (int imageId : mPrefetchIds) {
+            if (mPrefetches.size() >= mPrefetchBudget) {
+                break;
+            }
+            if (imageId == ImageIds.NO_IMAGE) {
+                continue;
+            }
+            long key = ImageIds.getCacheKey(imageId, mPrefetchWidth, mPrefetchHeight);
+            if (mInFlight.containsKey(key) || mMemoryCache.get(key) != null
+                    || mFailedPrefetches.contains(key)) {
+                continue;
+            }
+            PendingImage pending = new PendingImage(key, imageId, mPrefetchWidth,
+                    mPrefetchHeight);
+            mInFlight.put(key, pending);
+            mPrefetches.put(key, pending);
+            started.add(pending);
+        }
+        //The executor runs the newest task first, so submit the nearest row last
+        for (int i = started.size() - 1; i >= 0; i--) {
+            PendingImage pending = started.get(i);
+            pending.start(new imageDownloader(pending), PriorityExecutor.PRIORITY_PREFETCH);
+            mPrefetchCount++;
+        }
+    }
+
+    /**
+     * Lets prefetches that failed be tried again, such as when a new version of the feed has
+     * loaded and the images it points at may have been fixed. Must be called on the UI thread.
+     */
+    public void forgetFailedPrefetches() {
+        mFailedPrefetches.clear();
+    }
+
+    /**
+     * @param prefetchBudget the most images that may be prefetched at once. Keeping it below the
+     *                       thread count means there is always a thread free for a visible row.
+     */
+    public void setPrefetchBudget(int prefetchBudget) {
+        mPrefetchBudget = prefetchBudget;
+    }
+
+    /**
+     * Clears a view that no longer has an image to show, such as a recycled row whose new cake
+     * has no picture, and stops it waiting for the image it was loading.
+     */
+    public void cancel(ImageView imageView) {
+        PendingImage previous = (PendingImage) imageView.getTag(R.id.image_request);
+        if (previous != null) {
+            detach(imageView, previous);
+        }
+        setImageView(imageView, null);
+        mBlankSince.remove(imageView);
+    }
+
+    /**
+     * @param threadCount the number of images that may be downloaded at once
+     */
+    public void setFetchThreadCount(int threadCount) {
+        mFetchStage.setThreadCount(threadCount);
+    }
+
+    /**
+     * @param threadCount the number of images that may be decoded at once. The number of
+     *                    downloads that may wait for a decode stays as it was.
+     */
+    public void setDecodeThreadCount(int threadCount) {
+        mDecodeStage.setThreadCount(threadCount);
+    }
+
+    private static void attach(ImageView imageView, PendingImage pending) {
+        pending.mTargets.add(imageView);
+        imageView.setTag(R.id.image_request, pending);
+    }
+
+    /**
+     * Stops the view waiting for the request, and cancels the request if nothing else is
+     * waiting for it either.
+     */
+    private void detach(ImageView imageView, PendingImage pending) {
+        pending.mTargets.remove(imageView);
+        imageView.setTag(R.id.image_request, null);
+        if (pending.mTargets.isEmpty()) {
+            cancel(pending);
+        }
+    }
+
+    private void cancel(PendingImage pending) {
+        pending.cancelTask();
+        if (mInFlight.get(pending.mKey) == pending) {
+            mInFlight.remove(pending.mKey);
+        }
+    }
+
+    /**
+     * Reads the disk cache's journal on a fetch thread before any image is asked for, rather
+     * than in the first load, which would otherwise wait for the whole of it to be replayed. It
+     * is only a head start: it runs behind any load already queued, and a load that gets to the
+     * disk cache first reads the journal itself. Must be called on the UI thread.
+     */
+    public void warmUp() {
+        final DiskImageCache diskCache = mDiskCache;
+        if (mWarmedUp || diskCache == null) {
+            return;
+        }
+        mWarmedUp = true;
+        mFetchStage.trySubmit(new Runnable() {
+            @Override
+            public void run() {
+                StartupTrace.beginSection("image cache open");
+                try {
+                    diskCache.open();
+                } catch (IOException e) {
+                    //The first load will fail the same way and report it
+                    Log.e(TAG, "Could not open the disk cache: " + e.getMessage());
+                } finally {
+                    StartupTrace.endSection();
+                }
+            }
+        }, PriorityExecutor.PRIORITY_PREFETCH);
+    }
+
+    /**
+     * @param metrics where to report the time each load spends queued, on the network and
+     *                decoding, which cache tier answered it, and failures. Metrics.NONE by
+     *                default.
+     */
+    public void setMetrics(Metrics metrics) {
+        mMetrics = metrics;
+    }
+
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @param twoPass whether to show a low quality preview of an image that is slow to download
+     *                until the image itself arrives. On by default.
+     */
+    public void setTwoPass(boolean twoPass) {
+        mTwoPass = twoPass;
+    }
+
+    /**
+     * @param allowRgb565 whether JPEGs may be decoded to RGB_565, which halves their memory use
+     *                    at the cost of some colour banding. On by default.
+     */
+    public void setAllowRgb565(boolean allowRgb565) {
+        mAllowRgb565 = allowRgb565;
+    }
+
+    /**
+     * @param maxImageBytes the largest encoded image that will be downloaded, anything larger
+     *                      fails with a StreamTooLargeException. 4MB by default.
+     */
+    public void setMaxImageBytes(int maxImageBytes) {
+        mMaxImageBytes = maxImageBytes;
+    }
+
+    /**
+     * @return the width the image will be displayed at. Rows that have just been inflated
+     * haven't been measured yet, so fall back to the width in the layout.
+     */
+    static int getTargetWidth(ImageView imageView) {
+        int width = imageView.getWidth();
+        if (width <= 0) {
+            ViewGroup.LayoutParams params = imageView.getLayoutParams();
+            width = params != null ? params.width : 0;
+        }
+        return Math.max(width, 0);
+    }
+
+    /**
+     * @return the height the image will be displayed at, see getTargetWidth
+     */
+    static int getTargetHeight(ImageView imageView) {
+        int height = imageView.getHeight();
+        if (height <= 0) {
+            ViewGroup.LayoutParams params = imageView.getLayoutParams();
+            height = params != null ? params.height : 0;
+        }
+        return Math.max(height, 0);
+    }
+
+    /**
+     * Adds a disk tier behind the memory cache. The disk cache is not parcelled so this has to
+     * be called again on a restored ImageLoader.
+     * @param diskCache the disk cache, or null to go straight to the network on a memory miss
+     */
+    public void setDiskCache(DiskImageCache diskCache) {
+        mDiskCache = diskCache;
+        //An image at a given URL is not expected to change, so unless the server gives it a
+        //max-age it is kept until it is evicted
+        mHttpClient = diskCache != null ? new CachingHttpClient(diskCache, Long.MAX_VALUE) : null;
+    }
+
+    /**
+     * @return the memory cache, exposing its size, hit, miss and eviction counts
+     */
+    public BitmapMemoryCache getMemoryCache() {
+        return mMemoryCache;
+    }
+
+    /**
+     * @return the bitmap pool, exposing its size and reuse counts
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * @return the disk cache, exposing its size, hit and miss counts, or null if there is none
+     */
+    public DiskImageCache getDiskCache() {
+        return mDiskCache;
+    }
+
+    /**
+     * @return the client images are fetched through, exposing the round trips and bytes the
+     * HTTP cache headers saved, or null if there is no disk cache
+     */
+    public CachingHttpClient getHttpClient() {
+        return mHttpClient;
+    }
+
+    /**
+     * @return the number of images that were fetched from the network because neither cache
+     * tier held them
+     */
+    public int getNetworkCount() {
+        return mNetworkCount.get();
+    }
+
+    /**
+     * @return the stage that downloads images, for its queue depth and throughput
+     */
+    public PipelineStage getFetchStage() {
+        return mFetchStage;
+    }
+
+    /**
+     * @return the stage that decodes images, for its queue depth and throughput
+     */
+    public PipelineStage getDecodeStage() {
+        return mDecodeStage;
+    }
+
+    /**
+     * @return the number of images decoded into bitmaps
+     */
+    public int getDecodeCount() {
+        return mDecodeCount.get();
+    }
+
+    /**
+     * @return the number of images prefetched for rows before they were bound. Must be called
+     * on the UI thread.
+     */
+    public int getPrefetchCount() {
+        return mPrefetchCount;
+    }
+
+    /**
+     * @return the total time views spent blank waiting for their image, in milliseconds. Rows
+     * whose image was prefetched or cached are never blank, and a preview ends the wait as far
+     * as this is concerned. Must be called on the UI thread.
+     */
+    public long getBlankTimeMillis() {
+        return mBlankMillis;
+    }
+
+    /**
+     * @return the number of times a view was blank until its image arrived. Must be called on
+     * the UI thread.
+     */
+    public int getBlankCount() {
+        return mBlankCount;
+    }
+
+    /**
+     * @return the number of previews shown for images that were slow to download. Must be
+     * called on the UI thread.
+     */
+    public int getPreviewCount() {
+        return mPreviewCount;
+    }
+
+    /**
+     * @return the number of requests that shared a load already in flight instead of starting
+     * their own. Must be called on the UI thread.
+     */
+    public int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * @return the number of loads, visible and prefetch, that have not been delivered yet, so 0
+     * once every row on screen has its image or has given up on it. Must be called on the UI
+     * thread.
+     */
+    public int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    /**
+     * The fetch stage of a load. With a disk cache the response is fetched through
+     * CachingHttpClient into the cache, and the decode stage decodes it from the file. A download
+     * is held in memory as well until the cache has stored it, so that if the cache can't, the
+     * image is decoded from memory rather than downloaded a second time. Without a disk cache it
+     * is read into a byte array, sized from the Content-Length when the server sends one.
+     * @param pending the load, which is given the file or the bytes to decode
+     */
+    private void fetch(PendingImage pending) throws IOException {
+        String url = ImageIds.getUrl(pending.mImageId);
+        CachingHttpClient httpClient = mHttpClient;
+        if (httpClient == null) {
+            pending.mData = loadImageData(url);
+            return;
         }
+        File file;
+        byte[] data = null;
+        long start = System.nanoTime();
+        CachingHttpClient.Response response = httpClient.open(url, mMaxImageBytes);
+        try {
+            if (response.getSource() == CachingHttpClient.SOURCE_NETWORK) {
+                InputStream in = response.getInputStream();
+                if (mTwoPass) {
+                    //The bytes the preview is decoded from are read again below, with the rest
+                    in = new BufferedInputStream(in, MAX_PREVIEW_BYTES);
+                    in.mark(MAX_PREVIEW_BYTES);
+                    readPreview(pending, in);
+                    in.reset();
+                }
+                data = StreamUtils.readFully(in, -1, mMaxImageBytes);
+            }
+            //A cached response is already a file, a download is one once it is committed
+            file = response.toFile();
+        } finally {
+            response.close();
+        }
+        recordFetch(mMetrics, response.getSource(), response.getTiming(), start);
+        if (file != null) {
+            pending.mFile = file;
+        } else {
+            //The disk cache couldn't store the download, so it is decoded from memory
+            pending.mData = data;
+        }
+    }
+
+    /**
+     * The decode stage of a load, decoding what fetch left in it at the size it will be shown
+     * at.
+     * @return the bitmap, or null if the image could not be decoded
+     */
+    private Bitmap decode(PendingImage pending) {
+        mDecodeCount.incrementAndGet();
+        long start = System.nanoTime();
+        Bitmap bitmap;
+        if (pending.mFile != null) {
+            bitmap = BitmapDecoder.decode(pending.mFile, pending.mWidth, pending.mHeight,
+                    mAllowRgb565, mBitmapPool);
+        } else {
+            bitmap = BitmapDecoder.decode(pending.mData, pending.mWidth, pending.mHeight,
+                    mAllowRgb565, mBitmapPool);
+            pending.mData = null;
+        }
+        mMetrics.recordTime(Metrics.TIMER_DECODE, System.nanoTime() - start);
+        return bitmap;
+    }
 
-        //If the URL is valid, load the image in the background
-                new imageDownloader().execute(url, imageView);
+    /**
+     * Reads the start of a download, and if it is slow to arrive hands what has arrived so far
+     * to the decode stage to be decoded as a preview and shown while the rest downloads. The
+     * bytes read here still go into the cache along with the rest of the body.
+     */
+    private void readPreview(final PendingImage pending, InputStream in) throws IOException {
+        final byte[] prefix = new byte[MAX_PREVIEW_BYTES];
+        int count = 0;
+        long previewAt = System.nanoTime() + PREVIEW_DELAY_NANOS;
+        while (count < MIN_PREVIEW_BYTES || System.nanoTime() < previewAt) {
+            if (count == prefix.length) {
+                //Arriving quickly, the image itself won't be long
+                return;
+            }
+            int read = in.read(prefix, count, prefix.length - count);
+            if (read == -1) {
+                //It has all arrived already
+                return;
+            }
+            count += read;
+        }
+        if (pending.mCancelled) {
+            return;
+        }
+        final int length = count;
+        //A preview is only worth having straight away, so it is skipped rather than waited for
+        //if the decode stage is full, and this thread goes back to downloading either way
+        mDecodeStage.trySubmit(new Runnable() {
+            @Override
+            public void run() {
+                if (pending.mCancelled) {
+                    return;
+                }
+                Bitmap preview = BitmapDecoder.decodePreview(prefix, length, pending.mWidth,
+                        pending.mHeight, mAllowRgb565);
+                if (preview != null) {
+                    deliverPreview(pending, preview);
+                }
+            }
+        }, pending.getPriority());
+    }
 
-                // Can you think of a way to improve loading of bitmaps
-                // that have already been loaded previously??
-                //Yes... By caching the URL we can tell if the image has been displayed or not,
-                //by running a quick for-loop over a list we add the URL to we can find out if it
-                //has already been used, and find the corrosponding position in another ArryList
-                //of Bitmaps.
+    /**
+     * Caches a preview and shows it on every view still waiting for its image, unless the image
+     * has been delivered or given up on already.
+     */
+    private void deliverPreview(final PendingImage pending, final Bitmap preview) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mInFlight.get(pending.mKey) != pending) {
+                    return;
+                }
+                mMemoryCache.put(pending.mPreviewKey, preview);
+                for (ImageView imageView : pending.mTargets) {
+                    setImageView(imageView, preview);
+                }
+                mPreviewCount++;
+            }
+        });
     }
 
+    /**
+     * Reports which tier an image came from, and for a request that went to the network how
+     * long it took and how much it transferred.
+     */
+    private void recordFetch(Metrics metrics, int source, HttpConnections.RequestTiming timing,
+                             long start) {
+        if (source == CachingHttpClient.SOURCE_CACHE) {
+            metrics.count(Metrics.COUNTER_IMAGE_DISK_HIT, 1);
+            return;
+        }
+        if (source == CachingHttpClient.SOURCE_NETWORK) {
+            mNetworkCount.incrementAndGet();
+            metrics.count(Metrics.COUNTER_IMAGE_NETWORK, 1);
+        } else {
+            metrics.count(Metrics.COUNTER_IMAGE_NOT_MODIFIED, 1);
+        }
+        metrics.recordTime(Metrics.TIMER_NETWORK, System.nanoTime() - start);
+        if (timing != null) {
+            metrics.count(Metrics.COUNTER_BYTES_TRANSFERRED, timing.getBytes());
+        }
+    }
 
     /**
      * This method connects with the internet to retrieve data from a URL using an input stream.
      * @param url the image url of the picture to be displayed
-     * @return
-     * @throws IOException
+     * @return the encoded image
+     * @throws IOException if the image could not be downloaded, or is larger than the limit
      */
-    private static byte[] loadImageData(String url) throws IOException {
-        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    private byte[] loadImageData(String url) throws IOException {
+        //Images are already compressed, so they are asked for as they are
+        HttpURLConnection connection = HttpConnections.open(url, false);
+        HttpConnections.RequestTiming timing = HttpConnections.connect(connection);
+        int responseCode = connection.getResponseCode();
+        if (responseCode / 100 != 2) {
+            // The body of an error response is not an image, so report the failure and throw
+            // the body away
+            HttpConnections.discard(connection);
+            throw new IOException("HTTP " + responseCode + " for " + url);
+        }
+
         InputStream inputStream = null;
+        boolean complete = false;
         try {
-            try {
-                // Read data from workstation
-                inputStream = connection.getInputStream();
-            } catch (IOException e) {
-                // Read the error from the workstation
-                inputStream = connection.getErrorStream();
-            }
+            // Read data from workstation
+            inputStream = HttpConnections.getBody(connection, timing);
 
             // Can you think of a way to make the entire
             // HTTP more efficient using HTTP headers??
             //Again, by caching headers I believe you can cache the results and have access to them
             //without actually creating more network access. I have done it a different way by
             //caching the URL and Bitmap once thaty have been access in the code.
+            //CachingHttpClient now does this properly - it keeps the ETag, Last-Modified and
+            //max-age with the disk cache entry, and sends If-None-Match/If-Modified-Since so the
+            //server can answer 304. This method is only used when there is no disk cache.
 
-            return StreamUtils.readUnknownFully(inputStream);
+            long start = System.nanoTime();
+            byte[] data = StreamUtils.readFully(inputStream, connection.getContentLength(),
+                    mMaxImageBytes);
+            complete = true;
+            //Only the transfer is timed from here, the connection was made before it
+            recordFetch(mMetrics, CachingHttpClient.SOURCE_NETWORK, timing, start);
+            Log.d(TAG, url + " " + timing);
+            return data;
         } finally {
-            // Close the input stream if it exists.
-            StreamUtils.close(inputStream);
-
-            // Disconnect the connection
-            connection.disconnect();
+            // Close the input stream, which hands the connection back to be reused, unless the
+            // image wasn't read to the end
+            HttpConnections.release(connection, inputStream, complete);
         }
     }
 
-
-    private static Bitmap convertToBitmap(byte[] data) {
-        return BitmapFactory.decodeByteArray(data, 0, data.length);
-    }
-
-    private static void setImageView(ImageView imageView, Bitmap bitmap) {
+    /**
+     * Shows the bitmap and keeps track of it, so that the bitmap it replaces can be pooled if it
+     * has already left the cache.
+     */
+    private void setImageView(ImageView imageView, Bitmap bitmap) {
         imageView.setImageBitmap(bitmap);
+        if (bitmap != null) {
+            Long blankSince = mBlankSince.remove(imageView);
+            if (blankSince != null) {
+                mBlankMillis += SystemClock.uptimeMillis() - blankSince;
+                mBlankCount++;
+            }
+        }
+        Bitmap previous = mDisplayed.put(imageView, bitmap);
+        if (previous != null && previous != bitmap) {
+            recycleRetired();
+        }
     }
 
     /**
-     * Method of parcelable that produces a bit mask to represent objects?
-     * @return the identifier of the object
+     * Moves the retired bitmaps that no view is showing any more into the pool.
      */
-    @Override
-    public int describeContents() {
-        return 0;
+    private void recycleRetired() {
+        Iterator<Bitmap> iterator = mRetired.iterator();
+        while (iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            if (!mDisplayed.containsValue(bitmap)) {
+                iterator.remove();
+                mBitmapPool.put(bitmap);
+            }
+        }
     }
 
     /**
-     * Method of parcelable that defines what form the object will take. In this case two arraylists
-     * @param parcel the parcel that will package when the object is sent via an intent or saved
-     *               instantstate
-     * @param i
+     * A load of one URL that is in flight, along with every ImageView waiting for it. The URL is
+     * only looked up from its id when the load runs.
+     *
+     * The load is fetched and then decoded, in two pipeline stages, and is in one of them at a
+     * time. It goes back to be fetched again if the disk cache evicts the file it fetched before
+     * it is decoded. The UI thread may reprioritise or cancel the load's task in its current
+     * stage while another thread is moving it on to the next, so the stage, task and future are
+     * locked.
      */
-    @Override
-    public void writeToParcel(Parcel parcel, int i) {
-        parcel.writeList(mUrl);
-        parcel.writeList(mBitmap);
-    }
+    private class PendingImage {
 
+        final long mKey;
+        final long mPreviewKey;
+        final int mImageId;
+        final int mWidth;
+        final int mHeight;
+        //Views waiting for the image. Only used on the UI thread.
+        final List<ImageView> mTargets = new ArrayList<>();
+        //Set once no view is waiting any more, checked by the tasks between steps
+        volatile boolean mCancelled;
+        //What the fetch stage leaves for the decode stage: the image in the disk cache, or its
+        //bytes without one. Handed over through the decode stage's queue.
+        File mFile;
+        byte[] mData;
+        //Whether the load has been sent back to fetch already, so it is only done once. Only
+        //used by the decode stage.
+        boolean mRefetched;
 
-    /**
-     * This class runs in the background and is created when an image needs to be displayed from
-     * a URL.
-     */
-    public class imageDownloader extends AsyncTask<Object, Void, Void> {
+        //The stage the load is in, its task there and that task's future. Guarded by this.
+        private PipelineStage mStage;
+        private Runnable mTask;
+        private Future<?> mFuture;
+        //The priority its tasks are queued at. Guarded by this.
+        private int mPriority;
 
+        PendingImage(long key, int imageId, int width, int height) {
+            mKey = key;
+            mPreviewKey = ImageIds.getPreviewKey(imageId, width, height);
+            mImageId = imageId;
+            mWidth = width;
+            mHeight = height;
+        }
 
         /**
-         * Constructor that instantiates the handler to run the UI Thread publications
+         * Queues the load in the fetch stage, which never waits.
          */
-        public imageDownloader(){
-            mHandler = new Handler();
+        synchronized void start(Runnable task, int priority) {
+            mPriority = priority;
+            mStage = mFetchStage;
+            mTask = task;
+            mFuture = mFetchStage.trySubmit(task, priority);
         }
 
         /**
-         * Method that runs in the background that checks to see if the image at the URL has
-         * already been displayed, and if so, simply bring it from the cached location in code, or
-         * if not retreive it from the URL through a network connection.
-         * @param objects - the parameters that the task is given when started. In this case
-         *                the URL and the Image View to display the image
-         * @return
+         * Moves the load on to the decode stage, waiting for room there. Called by the fetch
+         * thread, without holding the lock while it waits.
+         * @throws InterruptedException if the fetch thread was interrupted while waiting
          */
-        @Override
-        protected Void doInBackground(Object... objects) {
-            String url = (String) objects[0];
-            //The Image View to display the URL image
-            final ImageView imageView = (ImageView) objects[1];
-            //Boolean to determine logic if image is cached or not
-            boolean isCached = false;
-            //Position in Bitmap Array List to be accessed for image
-            int a = -1;
-
-            //Iterate through the list of cached URLs to check if the iamge has been accessed
-            for (int i = 0; i < mUrl.size(); i++) {
-                if (url.equals(mUrl.get(i))) {
-                    //It has been cached previously, set a to the correct pos
-                    a = i;
-                    isCached = true;
+        void moveToDecode(Runnable task) throws InterruptedException {
+            int priority = getPriority();
+            Future<?> future = mDecodeStage.submit(task, priority);
+            synchronized (this) {
+                mStage = mDecodeStage;
+                mTask = task;
+                mFuture = future;
+                //Cancelled or brought forward while waiting for room
+                if (mCancelled) {
+                    mDecodeStage.cancel(future);
+                } else if (mPriority != priority) {
+                    mFuture = mDecodeStage.resubmit(future, task, mPriority);
                 }
             }
+        }
 
+        /**
+         * Sends the load back to the fetch stage, which never waits. Called by the decode
+         * thread.
+         */
+        synchronized void moveToFetch(Runnable task) {
+            if (mCancelled) {
+                return;
+            }
+            mStage = mFetchStage;
+            mTask = task;
+            mFuture = mFetchStage.trySubmit(task, mPriority);
+        }
 
-            if (!isCached){
-                //Cache the URL identified for the image
-                mUrl.add(url);
-                try {
-                    //Call logic to get the bitmap from the URL
-                    final Bitmap bitmap = convertToBitmap(loadImageData(url));
-                    //Cache the bitmap
-                    mBitmap.add(bitmap);
-                    //Access the UI Thread from the background thread to public result
-                    UIthread(imageView, bitmap);
-                } catch (IOException e) {
-                    Log.e(TAG, e.getMessage());
-                }
-            } else {
-                //It has already been loaded previously so no network access is required
-                UIthread(imageView, mBitmap.get(a));
+        synchronized int getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * Queues the load's task again at another priority, if it hasn't started yet. A task
+         * that has started is left running and simply adopted, only the next stage's task is
+         * queued at the new priority.
+         */
+        synchronized void setPriority(int priority) {
+            mPriority = priority;
+            if (!mStage.hasStarted(mFuture)) {
+                //Which checks again, in case a thread takes it in the meantime
+                mFuture = mStage.resubmit(mFuture, mTask, priority);
             }
-            return null;
         }
 
         /**
-         * Simple method the uses the handler to manage a runnable that access the UI Thread and
-         * updates the ImageView with the correct bitmap
-         * @param imageView ImageView the bitmap will be displayed in
-         * @param bitmap the image to be displayed
+         * Stops the load's task from running if it hasn't started. If it has, it stops itself
+         * at its next step.
          */
-        public void UIthread(final ImageView imageView, final Bitmap bitmap){
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
+        synchronized void cancelTask() {
+            mCancelled = true;
+            mStage.cancel(mFuture);
+        }
+
+        /**
+         * Sets the bitmap on every waiting view. A null bitmap means the load failed.
+         */
+        void deliver(Bitmap bitmap) {
+            for (ImageView imageView : mTargets) {
+                imageView.setTag(R.id.image_request, null);
+                if (bitmap != null) {
                     setImageView(imageView, bitmap);
+                } else {
+                    //It won't be coming, so it isn't waiting any more
+                    mBlankSince.remove(imageView);
+                }
+            }
+            mTargets.clear();
+        }
+    }
+
+    /**
+     * This class runs in the background and is created when an image needs to be displayed from
+     * a URL that isn't already being loaded. It is the fetch stage of the load, and hands the
+     * downloaded image on to an ImageDecodeTask.
+     */
+    private class imageDownloader implements Runnable {
+
+        private final PendingImage mPending;
+        //When the task was queued, for the queue wait metric
+        private final long mQueuedAt = System.nanoTime();
+
+        imageDownloader(PendingImage pending) {
+            mPending = pending;
+        }
+
+        /**
+         * Method that runs in the background that retreives the image from the disk cache or the
+         * URL through a network connection. The memory cache was already checked by load, and is
+         * not read here - a bitmap taken from it on this thread could be evicted and pooled
+         * before it reached the views.
+         */
+        @Override
+        public void run() {
+            PendingImage pending = mPending;
+            Metrics metrics = mMetrics;
+            metrics.recordTime(Metrics.TIMER_QUEUE_WAIT, System.nanoTime() - mQueuedAt);
+            reportQueueDepths(metrics);
+
+            try {
+                fetch(pending);
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage());
+                metrics.count(Metrics.COUNTER_IMAGE_ERROR, 1);
+                metrics.recordError(ImageIds.getUrl(pending.mImageId), e);
+                if (!pending.mCancelled) {
+                    UIthread(pending, null);
+                }
+                return;
+            }
+            //The image is in the disk cache now, but if no row wants it any more there is no
+            //point decoding it. Nobody is waiting for it, and detach has already forgotten the
+            //load.
+            if (pending.mCancelled) {
+                return;
+            }
+            try {
+                pending.moveToDecode(new ImageDecodeTask(pending));
+            } catch (InterruptedException e) {
+                //Only when the process is going away
+                Thread.currentThread().interrupt();
+                UIthread(pending, null);
+            }
+        }
+    }
+
+    /**
+     * The decode stage of a load, which decodes what imageDownloader fetched and hands the bitmap
+     * to the UI thread.
+     */
+    private class ImageDecodeTask implements Runnable {
+
+        private final PendingImage mPending;
+        //When the download finished, for the decode wait metric
+        private final long mFetchedAt = System.nanoTime();
+
+        ImageDecodeTask(PendingImage pending) {
+            mPending = pending;
+        }
+
+        @Override
+        public void run() {
+            PendingImage pending = mPending;
+            Metrics metrics = mMetrics;
+            metrics.recordTime(Metrics.TIMER_DECODE_WAIT, System.nanoTime() - mFetchedAt);
+            reportQueueDepths(metrics);
+            if (pending.mCancelled) {
+                return;
+            }
+
+            //Decoded at the size of the view
+            Bitmap bitmap = decode(pending);
+            if (bitmap == null && pending.mFile != null && !pending.mFile.exists()
+                    && !pending.mRefetched) {
+                //Evicted from the disk cache while the load waited for room here, which makes
+                //it a miss after all rather than an image that won't decode
+                pending.mRefetched = true;
+                pending.mFile = null;
+                pending.moveToFetch(new imageDownloader(pending));
+                return;
+            }
+            if (bitmap == null) {
+                if (pending.mCancelled) {
+                    return;
                 }
-            });
+                String url = ImageIds.getUrl(pending.mImageId);
+                Log.e(TAG, "Could not decode " + url);
+                metrics.count(Metrics.COUNTER_IMAGE_ERROR, 1);
+                metrics.recordError("Could not decode " + url, null);
+            }
+            //Access the UI Thread from the background thread to public result
+            UIthread(pending, bitmap);
         }
     }
 
+    private void reportQueueDepths(Metrics metrics) {
+        metrics.setGauge(Metrics.GAUGE_FETCH_QUEUE_DEPTH, mFetchStage.getQueueDepth());
+        metrics.setGauge(Metrics.GAUGE_DECODE_QUEUE_DEPTH, mDecodeStage.getQueueDepth());
+    }
+
+    /**
+     * Simple method the uses the handler to manage a runnable that access the UI Thread,
+     * caches the bitmap and hands it to every ImageView waiting for it. The load is no longer
+     * in flight after this, even if it failed, so the next request for the URL tries again.
+     * @param pending the load that has finished
+     * @param bitmap the image to be displayed, or null if it could not be loaded
+     */
+    private void UIthread(final PendingImage pending, final Bitmap bitmap){
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                //A cancelled load may have been replaced by a new one for the same image
+                if (mInFlight.get(pending.mKey) == pending) {
+                    mInFlight.remove(pending.mKey);
+                }
+                if (bitmap != null) {
+                    //Cache the bitmap
+                    mMemoryCache.put(pending.mKey, bitmap);
+                    mMetrics.setGauge(Metrics.GAUGE_BITMAP_CACHE_BYTES, mMemoryCache.size());
+                    mMetrics.setGauge(Metrics.GAUGE_BITMAP_POOL_BYTES,
+                            mBitmapPool.size());
+                }
+                pending.deliver(bitmap);
+                if (bitmap != null) {
+                    //The views have swapped the preview for the image, so it is only
+                    //taking up room in the cache now
+                    mMemoryCache.remove(pending.mPreviewKey);
+                }
+                if (mPrefetches.get(pending.mKey) == pending) {
+                    //A prefetch finished, so there is room in the budget for another
+                    mPrefetches.remove(pending.mKey);
+                    if (bitmap == null) {
+                        mFailedPrefetches.add(pending.mKey);
+                    }
+                    fillPrefetches();
+                }
+            }
+        });
+    }
+
 }
@@ -0,0 +1,120 @@
+package com.waracle.androidtest;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.widget.AbsListView;
+import android.widget.ImageView;
+
+/**
+ * Watches a list scroll and asks the ImageLoader to prefetch the images of the next few rows in
+ * the direction of travel, so that they are usually in the memory cache by the time the rows are
+ * bound and never show blank.
+ *
+ * Prefetching stops during a fling, or whenever the list is moving faster than prefetching could
+ * keep up with. Images fetched then would have scrolled past before they were needed, and would
+ * only take threads and cache space from the rows the list finally settles on.
+ */
+public class ImagePrefetcher implements AbsListView.OnScrollListener {
+
+    private static final String TAG = ImagePrefetcher.class.getSimpleName();
+
+    //Rows prefetched ahead unless changed with setLookahead
+    private static final int DEFAULT_LOOKAHEAD = 6;
+    //Faster than this many rows a second, prefetches would be out of date before they finished
+    private static final float MAX_PREFETCH_ROWS_PER_SECOND = 15f;
+    private static final int[] NO_IMAGES = new int[0];
+
+    /**
+     * Gives the prefetcher the image of a row.
+     */
+    public interface ImageIdSource {
+        /**
+         * @return the id of the row's image from ImageIds, or ImageIds.NO_IMAGE if it has none
+         */
+        int getImageId(int position);
+    }
+
+    private final ImageLoader mImageLoader;
+    private final ImageIdSource mSource;
+    private int mLookahead = DEFAULT_LOOKAHEAD;
+
+    private int mScrollState = SCROLL_STATE_IDLE;
+    private int mFirstVisible = -1;
+    private long mFirstVisibleTime;
+    //1 scrolling down the list, -1 scrolling up
+    private int mDirection = 1;
+    private float mRowsPerSecond;
+
+    /**
+     * @param imageLoader the loader to prefetch with
+     * @param source gives the image of each row
+     */
+    public ImagePrefetcher(ImageLoader imageLoader, ImageIdSource source) {
+        mImageLoader = imageLoader;
+        mSource = source;
+    }
+
+    /**
+     * @param lookahead the number of rows past the edge of the screen to prefetch
+     */
+    public void setLookahead(int lookahead) {
+        mLookahead = lookahead;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        mScrollState = scrollState;
+        if (scrollState == SCROLL_STATE_IDLE) {
+            //The list has stopped, so it is as slow as it gets
+            mRowsPerSecond = 0;
+            Log.d(TAG, "Blank rows: " + mImageLoader.getBlankCount() + " for "
+                    + mImageLoader.getBlankTimeMillis() + "ms in total, "
+                    + mImageLoader.getPrefetchCount() + " images prefetched");
+        }
+        update(view, view.getFirstVisiblePosition(), view.getChildCount(), view.getCount());
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                         int totalItemCount) {
+        //Called every frame while scrolling, only act when a row crosses the edge
+        if (firstVisibleItem == mFirstVisible) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (mFirstVisible >= 0) {
+            int rows = firstVisibleItem - mFirstVisible;
+            mDirection = rows > 0 ? 1 : -1;
+            mRowsPerSecond = Math.abs(rows) * 1000f / Math.max(1, now - mFirstVisibleTime);
+        }
+        mFirstVisible = firstVisibleItem;
+        mFirstVisibleTime = now;
+        update(view, firstVisibleItem, visibleItemCount, totalItemCount);
+    }
+
+    private void update(AbsListView view, int firstVisible, int visibleCount, int totalCount) {
+        if (mScrollState == SCROLL_STATE_FLING || mRowsPerSecond > MAX_PREFETCH_ROWS_PER_SECOND
+                || visibleCount == 0) {
+            mImageLoader.prefetch(NO_IMAGES, 0, 0);
+            return;
+        }
+
+        //Every row's image is the same size, so measure it on a row that is showing
+        View row = view.getChildAt(0);
+        ImageView image = row != null ? (ImageView) row.findViewById(R.id.image) : null;
+        int width = image != null ? ImageLoader.getTargetWidth(image) : 0;
+        int height = image != null ? ImageLoader.getTargetHeight(image) : 0;
+        if (width == 0 || height == 0) {
+            return;
+        }
+
+        int start = mDirection > 0 ? firstVisible + visibleCount : firstVisible - 1;
+        int end = Math.max(-1, Math.min(totalCount, start + mLookahead * mDirection));
+        int[] imageIds = new int[Math.abs(end - start)];
+        for (int i = 0; i < imageIds.length; i++) {
+            imageIds[i] = mSource.getImageId(start + i * mDirection);
+        }
+        mImageLoader.prefetch(imageIds, width, height);
+    }
+}
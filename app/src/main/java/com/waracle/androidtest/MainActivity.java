@@ -1,34 +1,37 @@
 package com.waracle.androidtest;
 
-import android.annotation.SuppressLint;
 import android.app.Activity;
+import android.content.Context;
+import android.content.ComponentCallbacks2;
+import android.content.pm.ApplicationInfo;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v4.app.ListFragment;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.AsyncTaskLoader;
 import android.support.v4.content.Loader;
 import android.support.v7.app.AppCompatActivity;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.widget.BaseAdapter;
+import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * The initial crashing was solved by correcting the IDs that were being searched for. The loading
@@ -49,6 +52,11 @@ import java.net.URL;
  * the ImageLoader class it is possible to  make that class parcelable and save it in a bundle,
  * so that when the activity is called again, it can use that saved version of the ImageLoader and
  * have access to all saved images and URLs - quickly fitting the images back to how they were.
+ * Parcelling every bitmap was too big for a bundle, so one ImageLoader is now shared by the whole
+ * process instead and only the scroll position is saved.
+ *
+ * The last feed that loaded is kept on disk and shown as soon as the app starts, even offline,
+ * while the feed is checked for changes in the background. The refresh button does the same check.
  *
  * String resources, dimen resources were used as to conform to best practise in an effort to make
  * the code mroe extensible and scalable - meaning change in just one area rather than many
@@ -69,6 +77,8 @@ import java.net.URL;
  * The URL works, but it won't appear in the image view whilst all the rest do. I thought it could
  * be to do with the size of image butthat doesnt make much sense so i am guessing it might be a
  * problem with the way the bytes are read from the input stream.
+ * It was the size of the image - the photo was decoded at full resolution, which is too large for
+ * a texture. Images are now decoded at the size of the ImageView, see BitmapDecoder.
  *
  * My knowledge was not as strong on reading bytes from input stream, so my answer to the question
  * asked in StreamUtils is by best guess after some research.
@@ -82,25 +92,153 @@ import java.net.URL;
 public class MainActivity extends AppCompatActivity {
 
     //The location of the information - considered making a class to store all static variables
-    private static String JSON_URL = "https://gist.githubusercontent.com/hart88/198f29ec5114a3ec3460/" +
-            "raw/8dd19a88f9b8d24c23d9960f3300d0c917a4f07c/cake.json";
+    //It now comes from the build, see feedUrl in build.gradle
+    private static final String JSON_URL = BuildConfig.FEED_URL;
 
+    /**
+     * Loads the feed from this url instead, such as a local stand-in server in a load test. The
+     * images are loaded from wherever the feed says they are.
+     */
+    public static final String EXTRA_FEED_URL = "com.waracle.androidtest.FEED_URL";
 
     /**
-     * OnCreate creates a fragment and adds it to the container view through a transaction
+     * Sets the image loader up in onCreate, ahead of the first frame, as the app used to, so that
+     * launches with and without deferring it can be compared on the same build. See StartupTrace.
+     */
+    public static final String EXTRA_EAGER_INIT = "com.waracle.androidtest.EAGER_INIT";
+
+    //Shared by the whole process, like the ImageLoader. Only used on the UI thread.
+    private static Metrics sMetrics;
+
+
+    /**
+     * OnCreate creates a fragment and adds it to the container view through a transaction.
+     * Nothing the first frame shows needs the image loader, so it is set up once that frame has
+     * been drawn, unless a row needs it before then.
      * @param savedInstanceState
      */
     @Override
     protected void onCreate(Bundle savedInstanceState) {
-        super.onCreate(savedInstanceState);
-        setContentView(R.layout.activity_main);
+        final boolean eagerInit = getIntent().getBooleanExtra(EXTRA_EAGER_INIT, false);
+        //A rotation recreates the activity too, but isn't a launch
         if (savedInstanceState == null) {
-            getSupportFragmentManager().beginTransaction()
-                    .add(R.id.container, new PlaceholderFragment())
-                    .commit();
+            StartupTrace.beginLaunch(eagerInit ? "eager init" : null);
+        }
+        StartupTrace.beginSection("MainActivity.onCreate");
+        try {
+            super.onCreate(savedInstanceState);
+            setContentView(R.layout.activity_main);
+            if (eagerInit) {
+                initDeferred();
+            }
+            runAfterFirstFrame(new Runnable() {
+                @Override
+                public void run() {
+                    StartupTrace.mark(StartupTrace.FIRST_FRAME);
+                    if (!eagerInit) {
+                        initDeferred();
+                    }
+                }
+            });
+            if (savedInstanceState == null) {
+                getSupportFragmentManager().beginTransaction()
+                        .add(R.id.container, new PlaceholderFragment())
+                        .commit();
+            }
+        } finally {
+            StartupTrace.endSection();
+        }
+    }
+
+    /**
+     * Runs a task on the UI thread once the activity's first frame has been drawn.
+     */
+    private void runAfterFirstFrame(final Runnable task) {
+        final View decorView = getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+                    @Override
+                    public boolean onPreDraw() {
+                        decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                        //Posted from here it runs after the frame is drawn, not before
+                        decorView.post(task);
+                        return true;
+                    }
+                });
+    }
+
+    /**
+     * Sets up what the first frame didn't need: the image loader with its caches and threads,
+     * and the disk cache's index, which is read in the background so the first image doesn't
+     * wait for it.
+     */
+    private void initDeferred() {
+        StartupTrace.beginSection("MainActivity.initDeferred");
+        try {
+            getImageLoader(this).warmUp();
+        } finally {
+            StartupTrace.endSection();
+        }
+    }
+
+    /**
+     * @return the ImageLoader shared by the whole process, reporting to the shared Metrics
+     */
+    static ImageLoader getImageLoader(Context context) {
+        ImageLoader imageLoader = ImageLoader.getInstance(context);
+        imageLoader.setMetrics(getMetrics(context));
+        return imageLoader;
+    }
+
+    /**
+     * Debuggable builds keep histograms of where the time goes, which are printed by
+     * "adb shell dumpsys activity com.waracle.androidtest". Release builds record nothing.
+     */
+    static Metrics getMetrics(Context context) {
+        if (sMetrics == null) {
+            boolean debuggable = (context.getApplicationInfo().flags
+                    & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+            sMetrics = debuggable ? new HistogramMetrics() : Metrics.NONE;
+        }
+        return sMetrics;
+    }
+
+    /**
+     * @return the url of the feed, from the intent if it was given one
+     */
+    String getFeedUrl() {
+        String url = getIntent().getStringExtra(EXTRA_FEED_URL);
+        return url != null ? url : JSON_URL;
+    }
+
+    /**
+     * From Ice Cream Sandwich MemoryTrimmer hears about this through the application context,
+     * before that this is the only warning there is.
+     */
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            MemoryTrimmer.dispatch(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
         }
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (sMetrics instanceof HistogramMetrics) {
+            writer.println(prefix + "Metrics:");
+            ((HistogramMetrics) sMetrics).dump(prefix + "  ", writer);
+        }
+        writer.println(prefix + "Startup:");
+        StartupTrace.dump(prefix + "  ", writer);
+        //How deep the image queues are and how much has gone through them, for tuning the
+        //thread counts
+        ImageLoader imageLoader = getImageLoader(this);
+        writer.println(prefix + "Image fetch: " + imageLoader.getFetchStage());
+        writer.println(prefix + "Image decode: " + imageLoader.getDecodeStage());
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
@@ -117,6 +255,11 @@ public class MainActivity extends AppCompatActivity {
 
         //noinspection SimplifiableIfStatement
         if (id == R.id.action_refresh) {
+            PlaceholderFragment fragment = (PlaceholderFragment) getSupportFragmentManager()
+                    .findFragmentById(R.id.container);
+            if (fragment != null) {
+                fragment.refresh();
+            }
             return true;
 
         }
@@ -130,17 +273,27 @@ public class MainActivity extends AppCompatActivity {
      * Fix any crashes - Done
      * Improve any performance issues - Done
      * Use good coding practices to make code more secure ---
-     * I believe I have done. By implementing Loader callbacks, and specifically using JSONArray
-     * it removes the possibility that a developer make a mistake and use something else.
+     * I believe I have done. By implementing Loader callbacks, and specifically using a list of
+     * immutable Cake records it removes the possibility that a developer make a mistake and use
+     * something else.
      */
-    public static class PlaceholderFragment extends ListFragment implements LoaderManager.LoaderCallbacks<JSONArray> {
+    public static class PlaceholderFragment extends ListFragment implements LoaderManager.LoaderCallbacks<List<Cake>>,
+            CakeFeedLoader.OnBatchLoadedListener {
 
         private static final String TAG = PlaceholderFragment.class.getSimpleName();
 
         //The List View
         private ListView mListView;
         private ProgressBar mProgressBar;
-        //The ImageLoader class
+        //The search box, and the index of the feed it searches, built in the background once
+        //the feed has loaded
+        private EditText mFilterView;
+        private CakeSearchIndex mSearchIndex;
+        private SearchIndexTask mSearchIndexTask;
+        //What has been typed, and the rows it matched, for the next keystroke to narrow down
+        private String mQuery = "";
+        private CakeSearchIndex.Result mSearchResult;
+        //The ImageLoader class, looked up on the first bind, see getImageLoader
         private ImageLoader mImageLoader;
         //The Adapter for the List View
         private MyAdapter mAdapter;
@@ -149,19 +302,58 @@ public class MainActivity extends AppCompatActivity {
         //Loader ID
         private static final int HTTP_List_LOADER_ID = 0;
 
+        //Saved state keys, the scroll position is all that is saved
+        private static final String STATE_POSITION = "position";
+        private static final String STATE_OFFSET = "offset";
+        //The scroll position to restore once the list has that many rows, or -1
+        private int mRestorePosition = -1;
+        private int mRestoreOffset;
 
 
+
+        /**
+         * Lets go of the feed's decoded strings when memory is short. The rows themselves stay
+         * in the catalogue's mapping, which the system can page out and back in without our
+         * help, so only what has been decoded onto the heap is trimmed.
+         */
+        private final MemoryTrimmer.OnTrimMemoryListener mOnTrimMemoryListener =
+                new MemoryTrimmer.OnTrimMemoryListener() {
+                    @Override
+                    public void onTrimMemory(int level) {
+                        if (mAdapter != null) {
+                            mAdapter.trimMemory(level);
+                        }
+                    }
+                };
+
         /**
          * Empty Constructor
          */
         public PlaceholderFragment() { /**/ }
 
         /**
-         * Method to create the view of the fragment. In this case due to saving the state of the
-         * list when onDestory is called (by rotating or any other means) the bundle is checked to
-         * retrieve the parcelable ImageLoader object holding all the cached images so that the
-         * ImageLoader class can quickly redisplay the images without having to do undergo costly
-         * networking use.
+         * The fragment is retained, so this and onDestroy are only called once for it rather
+         * than for every rotation.
+         */
+        @Override
+        public void onCreate(Bundle savedInstanceState) {
+            super.onCreate(savedInstanceState);
+            MemoryTrimmer.addListener(mActivity, mOnTrimMemoryListener);
+        }
+
+        @Override
+        public void onDestroy() {
+            MemoryTrimmer.removeListener(mOnTrimMemoryListener);
+            if (mSearchIndexTask != null) {
+                mSearchIndexTask.cancel(false);
+            }
+            super.onDestroy();
+        }
+
+        /**
+         * Method to create the view of the fragment. The cached images used to be parcelled into
+         * the saved state so they survived rotation. They now live in the process wide
+         * ImageLoader, so the saved state only holds the scroll position, which is restored here.
          * @param inflater the inflator to display the layout
          * @param container the view the fragment is displayed in
          * @param savedInstanceState the state of certain aspects of the application previously
@@ -170,9 +362,19 @@ public class MainActivity extends AppCompatActivity {
         @Override
         public View onCreateView(LayoutInflater inflater, ViewGroup container,
                                  Bundle savedInstanceState) {
-            if (savedInstanceState != null){
-                mImageLoader = (ImageLoader) savedInstanceState.get(getResources()
-                        .getString(R.string.frag_key));
+            StartupTrace.beginSection("PlaceholderFragment.onCreateView");
+            try {
+                return createView(inflater, container, savedInstanceState);
+            } finally {
+                StartupTrace.endSection();
+            }
+        }
+
+        private View createView(LayoutInflater inflater, ViewGroup container,
+                                Bundle savedInstanceState) {
+            if (savedInstanceState != null) {
+                mRestorePosition = savedInstanceState.getInt(STATE_POSITION, -1);
+                mRestoreOffset = savedInstanceState.getInt(STATE_OFFSET);
             }
             View rootView = inflater.inflate(R.layout.fragment_main, container, false);
             setRetainInstance(true);
@@ -181,98 +383,195 @@ public class MainActivity extends AppCompatActivity {
             //.id.list to correctly find the ID.
             mListView = (ListView) rootView.findViewById(android.R.id.list);
             mProgressBar = (ProgressBar) rootView.findViewById(R.id.list_progress);
+            mFilterView = (EditText) rootView.findViewById(R.id.filter);
             return rootView;
         }
 
         @Override
         public void onActivityCreated(Bundle savedInstanceState) {
-            super.onActivityCreated(savedInstanceState);
+            StartupTrace.beginSection("PlaceholderFragment.onActivityCreated");
+            try {
+                super.onActivityCreated(savedInstanceState);
+                initList(savedInstanceState);
+            } finally {
+                StartupTrace.endSection();
+            }
+        }
 
+        private void initList(Bundle savedInstanceState) {
             // Create and set the list adapter.
-            mAdapter = new MyAdapter();
+            mAdapter = new MyAdapter(new ArrayList<Cake>());
             mListView.setAdapter(mAdapter);
+            //Looked up again for the new list, to give it a prefetcher
+            mImageLoader = null;
             //Initiate the loader that will run in the background to retrieve the information
             //from JSON to go into the List
-            getLoaderManager().initLoader(HTTP_List_LOADER_ID, savedInstanceState, this);
-            mProgressBar.setVisibility(View.VISIBLE);
+            StartupTrace.beginSection("initLoader");
+            CakeFeedLoader loader;
+            try {
+                loader = (CakeFeedLoader) getLoaderManager()
+                        .initLoader(HTTP_List_LOADER_ID, savedInstanceState, this);
+            } finally {
+                StartupTrace.endSection();
+            }
+            loader.setOnBatchLoadedListener(this);
 
+            //If this is a rotation part way through the load, show what has loaded already
+            List<Cake> loaded = loader.getLoadedCakes();
+            if (!loaded.isEmpty()) {
+                mAdapter.setItems(loaded);
+                restoreScrollPosition();
+            }
+            mProgressBar.setVisibility(mAdapter.isEmpty() ? View.VISIBLE : View.INVISIBLE);
+            //Also called when the search box restores its text after a rotation
+            mFilterView.addTextChangedListener(mFilterWatcher);
+            applyFilter();
         }
 
         /**
-         * Saves the state of the information displayed in the list when app is restarted
-         * @param outState - the state of the app
+         * The image loader is set up once the activity's first frame has been drawn, or here
+         * when the first row is bound if that is sooner. One ImageLoader is shared by the whole
+         * process, so after a rotation its cache still holds every image that was on screen.
          */
-        @Override
-        public void onSaveInstanceState(Bundle outState) {
-            super.onSaveInstanceState(outState);
-            //Put the ImageLoader class in the bundle to be saved - it contains all the cached
-            //bitmaps
-            outState.putParcelable(getResources().getString(R.string.frag_key), mImageLoader);
+        private ImageLoader getImageLoader() {
+            if (mImageLoader == null) {
+                mImageLoader = MainActivity.getImageLoader(mActivity);
+                //Load the images of the rows that are about to scroll into view ahead of time
+                mListView.setOnScrollListener(new ImagePrefetcher(mImageLoader, mAdapter));
+            }
+            return mImageLoader;
         }
 
         /**
-         * This method now gets called from the background using a loader. More explanation at top
-         * of class
-         * @return JSONArray containing the information
-         * @throws IOException
-         * @throws JSONException
+         * Filters the list on every keystroke.
          */
-        private JSONArray loadData() throws IOException, JSONException {
+        private final TextWatcher mFilterWatcher = new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
 
-            URL url = new URL(JSON_URL);
-            HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-            try {
-                InputStream in = new BufferedInputStream(urlConnection.getInputStream());
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
 
-                // Can you think of a way to improve the performance of loading data
-                // using HTTP headers??? - Did some research on HTTP Headers and it would
-                //appear that by caching a header it can be stored for later use and the
-                //application can access what is stored in the header rather than creating
-                //a new network access.
-                //AsyncTask Loader. Provides background computation freeing
-                //UI Thread, but also responds well to interruptions and rotations.
+            @Override
+            public void afterTextChanged(Editable s) {
+                mQuery = s.toString();
+                applyFilter();
+            }
+        };
 
-                // Also, Do you trust any utils thrown your way????
-                //I had a bit of difficulty here - in the StreamUtils i go into this further
-                //by stating that a check should be included to make sure whatever is read in
-                // is not a huge file that could damage the phones memory, be slow, or be harmful
-                //to the application.
+        /**
+         * Shows only the rows matching what has been typed. A query that adds to the last one
+         * only has to look through the rows the last one matched. Until the feed has been
+         * indexed every row is shown, and the query is applied once the index is ready.
+         */
+        private void applyFilter() {
+            if (mAdapter == null || mSearchIndex == null || !mAdapter.isIndexedBy(mSearchIndex)) {
+                return;
+            }
+            long start = System.nanoTime();
+            mSearchResult = mSearchIndex.search(mQuery, mSearchResult);
+            getMetrics(mActivity).recordTime(Metrics.TIMER_SEARCH, System.nanoTime() - start);
+            mAdapter.setFilter(mSearchResult.isEverything() ? null : mSearchResult);
+        }
 
-                byte[] bytes = StreamUtils.readUnknownFully(in);
+        /**
+         * Builds the search index for a feed in the background, unless it has one already.
+         */
+        private void indexFeed(List<Cake> cakes) {
+            if (mSearchIndex != null && mSearchIndex.isFor(cakes)) {
+                applyFilter();
+                return;
+            }
+            if (mSearchIndexTask != null) {
+                if (mSearchIndexTask.mCakes == cakes) {
+                    return;
+                }
+                mSearchIndexTask.cancel(false);
+            }
+            mSearchIndexTask = new SearchIndexTask(cakes);
+            mSearchIndexTask.execute();
+        }
 
-                // Read in charset of HTTP content.
-                String charset = parseCharset(urlConnection.getRequestProperty(getResources()
-                        .getString(R.string.request_prop)));
+        /**
+         * Saves the state of the information displayed in the list when app is restarted
+         * @param outState - the state of the app
+         */
+        @Override
+        public void onSaveInstanceState(Bundle outState) {
+            super.onSaveInstanceState(outState);
+            //Only the scroll position - the images stay in the ImageLoader, which outlives the
+            //activity, and the feed stays in its loader
+            if (mListView != null) {
+                View first = mListView.getChildAt(0);
+                outState.putInt(STATE_POSITION, mListView.getFirstVisiblePosition());
+                outState.putInt(STATE_OFFSET, first != null ? first.getTop() : 0);
+            }
+        }
 
-                // Convert byte array to appropriate encoded string.
-                String jsonText = new String(bytes, charset);
+        /**
+         * Checks the feed for changes, showing the current one until the check is done.
+         */
+        public void refresh() {
+            Loader<List<Cake>> loader = getLoaderManager().getLoader(HTTP_List_LOADER_ID);
+            if (loader != null) {
+                loader.forceLoad();
+            }
+        }
 
-                // Read string as JSON.
-                return new JSONArray(jsonText);
-            } finally {
-                urlConnection.disconnect();
+        /**
+         * Scrolls back to the saved position once the rows it refers to have been loaded.
+         */
+        private void restoreScrollPosition() {
+            if (mRestorePosition >= 0 && mRestorePosition < mAdapter.getCount()) {
+                mListView.setSelectionFromTop(mRestorePosition, mRestoreOffset);
+                mRestorePosition = -1;
             }
         }
 
         /**
-         * Returns the charset specified in the Content-Type of this header,
-         * or the HTTP default (ISO-8859-1) if none can be found.
+         * Shows each batch of cakes as soon as the loader has parsed it, rather than waiting
+         * for the whole feed. More explanation in CakeFeedLoader.
+         * @param batch the cakes parsed since the previous batch
          */
-        public static String parseCharset(String contentType) {
-            if (contentType != null) {
-                String[] params = contentType.split(",");
-                for (int i = 1; i < params.length; i++) {
-                    String[] pair = params[i].trim().split("=");
-                    if (pair.length == 2) {
-                        if (pair[0].equals("charset")) {
-                            return pair[1];
-                        }
-                    }
+        @Override
+        public void onBatchLoaded(List<Cake> batch) {
+            StartupTrace.beginSection("onBatchLoaded");
+            try {
+                boolean first = mAdapter.isEmpty();
+                mAdapter.addItems(batch);
+                restoreScrollPosition();
+                if (first) {
+                    mProgressBar.setVisibility(View.INVISIBLE);
+                    reportTimeToFirstRow();
                 }
+            } finally {
+                StartupTrace.endSection();
             }
-            return "UTF-8";
         }
 
+        /**
+         * Logs how long it took from starting the load until the first rows were laid out.
+         */
+        private void reportTimeToFirstRow() {
+            final Loader<List<Cake>> loader = getLoaderManager().getLoader(HTTP_List_LOADER_ID);
+            if (!(loader instanceof CakeFeedLoader)) {
+                return;
+            }
+            final long firstBatchTime = SystemClock.elapsedRealtime();
+            //Posted runnables run once the list has been laid out with the new rows
+            mListView.post(new Runnable() {
+                @Override
+                public void run() {
+                    StartupTrace.mark(StartupTrace.FIRST_ROW);
+                    long timeToFirstBatch = ((CakeFeedLoader) loader).getTimeToFirstBatch();
+                    long layoutTime = SystemClock.elapsedRealtime() - firstBatchTime;
+                    Log.i(TAG, "Time to first row: " + (timeToFirstBatch + layoutTime) + "ms ("
+                            + timeToFirstBatch + "ms to first batch)");
+                }
+            });
+        }
 
         @Override
         public void onAttach(Activity activity) {
@@ -282,62 +581,89 @@ public class MainActivity extends AppCompatActivity {
         }
 
         /**
-         * This method houses the return of an AsyncTaskLoader that contains two methods; onStartLoading
-         * and loadInBackground. onStartLoading checks to make sure the data hasn't already been
-         * made, doInBackground loads the data from methods in the background thread
+         * This method houses the return of a CakeFeedLoader, an AsyncTaskLoader that loads the
+         * feed in the background thread and publishes it in batches as it is parsed.
          * @param id
          * @param args
          * @return
          */
         @Override
-        public Loader<JSONArray> onCreateLoader(int id, Bundle args) {
-            return new AsyncTaskLoader<JSONArray>(mActivity) {
-
-                //The JSONArray
-                JSONArray array = null;
-
-                @Override
-                protected void onStartLoading() {
-                    super.onStartLoading();
-
-                    if (array != null){
-                        //If the array is populated we can go ahead and set the info to the adapter
-                        mAdapter.setItems(array);
-                    } else {
-                        //Otherwhise, load the data
-                        forceLoad();
-                    }
-                }
-
-                @Override
-                public JSONArray loadInBackground() {
-
-                    try {
-                        //Load data in background
-                        array = loadData();
+        public Loader<List<Cake>> onCreateLoader(int id, Bundle args) {
+            CakeFeedLoader loader = new CakeFeedLoader(mActivity,
+                    ((MainActivity) mActivity).getFeedUrl());
+            loader.setMetrics(getMetrics(mActivity));
+            return loader;
+        }
 
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    } catch (JSONException e) {
-                        e.printStackTrace();
-                    }
-                    return array;
+        @Override
+        public void onLoadFinished(Loader<List<Cake>> loader, List<Cake> data) {
+            //A first load has already added every batch to the adapter, so then this only
+            //needs to catch up if batches were missed. A revalidation of a feed that was already
+            //showing (the snapshot, or a refresh) delivers the whole feed here to be diffed.
+            StartupTrace.beginSection("onLoadFinished");
+            try {
+                mProgressBar.setVisibility(View.INVISIBLE);
+                if (data != null) {
+                    mAdapter.applyFeed(data);
+                    indexFeed(data);
+                    //The feed may point at different images now, or the same ones fixed
+                    getImageLoader().forgetFailedPrefetches();
                 }
-            };
+                restoreScrollPosition();
+            } finally {
+                StartupTrace.endSection();
+            }
         }
 
         @Override
-        public void onLoadFinished(Loader<JSONArray> loader, JSONArray data) {
-            //When the load has finished, automatically create the adapter with the new information
-            mProgressBar.setVisibility(View.INVISIBLE);
-            mAdapter = new MyAdapter(data);
-            mListView.setAdapter(mAdapter);
+        public void onLoaderReset(Loader<List<Cake>> loader) {
 
         }
 
-        @Override
-        public void onLoaderReset(Loader<JSONArray> loader) {
+        /**
+         * Builds the search index of a feed off the UI thread - reading every row of a big feed
+         * takes far longer than a frame. The fragment is retained, so the index outlives a
+         * rotation along with it.
+         */
+        private class SearchIndexTask extends AsyncTask<Void, Void, CakeSearchIndex> {
 
+            final List<Cake> mCakes;
+
+            SearchIndexTask(List<Cake> cakes) {
+                mCakes = cakes;
+            }
+
+            @Override
+            protected CakeSearchIndex doInBackground(Void... params) {
+                long start = SystemClock.elapsedRealtime();
+                CakeSearchIndex index = CakeSearchIndex.build(mCakes);
+                Log.d(TAG, "Indexed " + mCakes.size() + " cakes, " + index.getWordCount()
+                        + " words, in " + (SystemClock.elapsedRealtime() - start) + "ms");
+                return index;
+            }
+
+            @Override
+            protected void onPostExecute(CakeSearchIndex index) {
+                mSearchIndexTask = null;
+                mSearchIndex = index;
+                mSearchResult = null;
+                applyFilter();
+            }
+        }
+
+        /**
+         * The views of a row, found once when the row is inflated and kept in its tag.
+         */
+        private static class ViewHolder {
+            final TextView title;
+            final TextView desc;
+            final ImageView image;
+
+            ViewHolder(View root) {
+                title = (TextView) root.findViewById(R.id.title);
+                desc = (TextView) root.findViewById(R.id.desc);
+                image = (ImageView) root.findViewById(R.id.image);
+            }
         }
 
         /**
@@ -347,85 +673,214 @@ public class MainActivity extends AppCompatActivity {
          * 'findviewbyid' method, btu only once. These views are recycled and only the data is
          * changed.
          */
-        private class MyAdapter extends BaseAdapter {
+        private class MyAdapter extends BaseAdapter implements ImagePrefetcher.ImageIdSource {
+
+            private static final int BIND_LOG_INTERVAL = 100;
 
             // Can you think of a better way to represent these items???
-            private JSONArray mItems;
+            //Yes... As the immutable Cake records the feed is parsed into. Once the feed has
+            //loaded it is a CakeCatalogue mapped from disk, and each row is only decoded when it
+            //is bound. The list is never copied, and is only added to once it is the adapter's own.
+            private List<Cake> mItems;
+            private boolean mItemsOwned;
+            //The rows matching the search box, or null to show every row
+            private CakeSearchIndex.Result mFilter;
+
+            private final LayoutInflater mInflater;
+
+            //Bind timing, only used on the UI thread
+            private int mBindCount;
+            private int mInflateCount;
+            private long mBindNanos;
+
+            public MyAdapter(List<Cake> items) {
+                mInflater = LayoutInflater.from(mActivity);
+                //The adapter grows as batches arrive so it needs a list of its own
+                mItems = new ArrayList<>(items);
+                mItemsOwned = true;
+            }
 
-            public MyAdapter() {
-                this(new JSONArray());
+            @Override
+            public int getCount() {
+                return mFilter != null ? mFilter.size() : mItems.size();
             }
 
-            public MyAdapter(JSONArray items) {
-                mItems = items;
-                //If the ImageLoader class has not been saved from last time then it needs to be
-                //made
-                if (mImageLoader == null) {
-                    mImageLoader = new ImageLoader();
-                }
+            /**
+             * @return the position in the feed of the row at a position in the list
+             */
+            private int toRow(int position) {
+                return mFilter != null ? mFilter.getRow(position) : position;
             }
 
             @Override
-            public int getCount() {
-                return mItems.length();
+            public Cake getItem(int position) {
+                return mItems.get(toRow(position));
             }
 
             @Override
-            public Object getItem(int position) {
-                try {
-                    return mItems.getJSONObject(position);
-                } catch (JSONException e) {
-                    Log.e("", e.getMessage());
+            public int getImageId(int position) {
+                if (mItems instanceof CakeCatalogue) {
+                    //Prefetching only needs the url, not the whole row
+                    return ImageIds.getId(((CakeCatalogue) mItems).getImage(toRow(position)));
                 }
-                return null;
+                return getItem(position).getImageId();
             }
 
             @Override
             public long getItemId(int position) {
-                return 0;
+                return CakeCatalogue.getId(mItems, toRow(position));
+            }
+
+            @Override
+            public boolean hasStableIds() {
+                //The ids come from the cakes themselves, so they follow a cake when a refresh
+                //moves it
+                return true;
             }
 
             /**
-             * Method that populates a View Holder with information from JSON.
+             * Method that populates a View Holder with information from the Cake. Rows that have
+             * scrolled off screen come back as convertView and are reused, so the layout is only
+             * inflated for the first screen or so of rows, and the views in it are looked up once
+             * per row rather than once per bind.
              * @param position position of the viewHolder in the list
-             * @param convertView
+             * @param convertView a row that has scrolled off screen, or null
              * @param parent the viewgroup that view holder is containing with
              * @return return the root view
              */
-            @SuppressLint("ViewHolder")
             @Override
             public View getView(int position, View convertView, ViewGroup parent) {
-                LayoutInflater inflater = LayoutInflater.from(getActivity());
-                View root = inflater.inflate(R.layout.list_item_layout, parent, false);
-
-                //If the root has been made, it's information views can be found and populated
-                if (root != null) {
-                    TextView title = (TextView) root.findViewById(R.id.title);
-                    TextView desc = (TextView) root.findViewById(R.id.desc);
-                    ImageView image = (ImageView) root.findViewById(R.id.image);
-                    try {
-                        //Added String Resources for better extensibility
-                        JSONObject object = (JSONObject) getItem(position);
-                        title.setText(object.getString(getResources()
-                                .getString(R.string.cake_title_label)));
-                        desc.setText(object.getString(getResources()
-                                .getString(R.string.cake_description_label)));
-                        String url = object.getString(getResources()
-                                .getString(R.string.cake_image_label));
-
-                        //Call ImageLoader helper class, to find the correct images
-                         mImageLoader.load(url, image);
-
-                    } catch (JSONException e) {
-                        e.printStackTrace();
-                    }
+                long start = System.nanoTime();
+
+                View root = convertView;
+                ViewHolder holder;
+                if (root == null) {
+                    root = mInflater.inflate(R.layout.list_item_layout, parent, false);
+                    holder = new ViewHolder(root);
+                    root.setTag(holder);
+                    mInflateCount++;
+                } else {
+                    holder = (ViewHolder) root.getTag();
                 }
 
+                Cake cake = getItem(position);
+                holder.title.setText(cake.getTitle());
+                holder.desc.setText(cake.getDesc());
+
+                //Call ImageLoader helper class, to find the correct images
+                if (cake.getImageId() != ImageIds.NO_IMAGE) {
+                    getImageLoader().load(cake.getImageId(), holder.image);
+                } else {
+                    //A recycled row would otherwise keep the picture of the cake it showed before
+                    getImageLoader().cancel(holder.image);
+                }
+
+                recordBind(System.nanoTime() - start);
                 return root;
             }
 
-            public void setItems(JSONArray items) {
+            /**
+             * Keeps a running average of how long getView takes, and logs it every
+             * BIND_LOG_INTERVAL rows along with how many of them had to be inflated. A row has to
+             * be bound well inside a 16ms frame for scrolling not to drop frames.
+             */
+            private void recordBind(long nanos) {
+                getMetrics(mActivity).recordTime(Metrics.TIMER_BIND, nanos);
+                mBindCount++;
+                mBindNanos += nanos;
+                if (mBindCount % BIND_LOG_INTERVAL == 0) {
+                    Log.d(TAG, String.format("Bound %d rows, %d inflated, average %dus per row",
+                            mBindCount, mInflateCount, mBindNanos / mBindCount / 1000));
+                }
+            }
+
+            /**
+             * Trims the strings decoded from the catalogue, see MemoryTrimmer.getTrimmedSize. A
+             * feed that is still arriving in batches is parsed cakes the list has nowhere else
+             * to get from, so it is left alone.
+             */
+            public void trimMemory(int level) {
+                if (mItems instanceof CakeCatalogue) {
+                    CakeCatalogue catalogue = (CakeCatalogue) mItems;
+                    catalogue.trimDecodedStrings(MemoryTrimmer.getTrimmedSize(
+                            catalogue.getDecodedStringCount(), level));
+                }
+            }
+
+            public void setItems(List<Cake> items) {
                 mItems = items;
+                mItemsOwned = false;
+                mFilter = null;
+                notifyDataSetChanged();
+            }
+
+            /**
+             * @param filter the rows to show, from an index of the items, or null for all of them
+             */
+            public void setFilter(CakeSearchIndex.Result filter) {
+                if (filter == null && mFilter == null) {
+                    return;
+                }
+                mFilter = filter;
+                notifyDataSetChanged();
+            }
+
+            /**
+             * @return whether the index is of the items being shown
+             */
+            public boolean isIndexedBy(CakeSearchIndex index) {
+                return index.isFor(mItems);
+            }
+
+            /**
+             * Replaces the items with a new version of the feed. Rows whose cake hasn't changed
+             * are left alone - if the number of rows is the same, only the visible rows that show
+             * a different cake are bound again, rather than refreshing the whole list.
+             */
+            public void applyFeed(List<Cake> items) {
+                CakeFeedDiff diff = CakeFeedDiff.compute(mItems, items);
+                //Even when nothing changed, the cakes parsed in batches are swapped for the
+                //catalogue, which is the same rows but off the heap
+                mItems = items;
+                mItemsOwned = false;
+                if (!diff.hasChanges()) {
+                    //A filter still picks out the same rows, until the new list is indexed
+                    return;
+                }
+                Log.d(TAG, "Feed changed: " + diff);
+                if (mFilter != null) {
+                    //The filter was of the old feed, so every row shows until the new one has
+                    //been indexed
+                    mFilter = null;
+                    notifyDataSetChanged();
+                    return;
+                }
+                if (diff.isSizeChanged()) {
+                    notifyDataSetChanged();
+                    return;
+                }
+                int first = mListView.getFirstVisiblePosition();
+                for (int i = 0; i < mListView.getChildCount(); i++) {
+                    if (diff.isChanged(first + i)) {
+                        getView(first + i, mListView.getChildAt(i), mListView);
+                    }
+                }
+            }
+
+            public void addItems(List<Cake> items) {
+                mFilter = null;
+                if (mItems.isEmpty()) {
+                    //Such as the snapshot, which should stay mapped rather than be copied
+                    mItems = items;
+                    mItemsOwned = false;
+                } else {
+                    if (!mItemsOwned) {
+                        mItems = new ArrayList<>(mItems);
+                        mItemsOwned = true;
+                    }
+                    mItems.addAll(items);
+                }
+                notifyDataSetChanged();
             }
         }
 
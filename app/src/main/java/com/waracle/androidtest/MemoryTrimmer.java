@@ -0,0 +1,131 @@
+package com.waracle.androidtest;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Passes the system's memory warnings on to whatever is holding memory it could do without, so
+ * caches shrink while the system is running short rather than the process being killed in the
+ * background, or running into an OutOfMemoryError in the foreground.
+ *
+ * Each trim level keeps a share of what is cached. While the app is in the foreground the share
+ * falls as memory gets tighter, so the rows on screen can mostly still be redrawn from memory.
+ * Once the UI is hidden nothing is on screen, so half is enough for coming straight back, and
+ * once the process is in the background everything goes - it is the next in line to be killed,
+ * and anything still cached would have to be paged back in anyway. Only what is held in memory
+ * is trimmed, the disk cache and the feed snapshot are left alone.
+ *
+ * The callbacks come from the application context from Ice Cream Sandwich. Before that there is
+ * only the activity's onLowMemory, which MainActivity passes on as TRIM_MEMORY_COMPLETE.
+ */
+public final class MemoryTrimmer {
+
+    private static final String TAG = MemoryTrimmer.class.getSimpleName();
+
+    /**
+     * Told about each memory warning, on the UI thread.
+     */
+    public interface OnTrimMemoryListener {
+        /**
+         * @param level one of the ComponentCallbacks2.TRIM_MEMORY levels, see getTrimmedSize
+         */
+        void onTrimMemory(int level);
+    }
+
+    //Only used on the UI thread
+    private static final List<OnTrimMemoryListener> sListeners = new ArrayList<>();
+    private static boolean sRegistered;
+
+    private MemoryTrimmer() {
+        //Static methods only
+    }
+
+    /**
+     * Starts telling the listener about memory warnings until it is removed.
+     * @param context any context, the callbacks are registered on the application context
+     */
+    public static void addListener(Context context, OnTrimMemoryListener listener) {
+        if (!sRegistered && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            context.getApplicationContext().registerComponentCallbacks(new Callbacks());
+            sRegistered = true;
+        }
+        sListeners.add(listener);
+    }
+
+    public static void removeListener(OnTrimMemoryListener listener) {
+        sListeners.remove(listener);
+    }
+
+    /**
+     * Tells every listener about a memory warning. Must be called on the UI thread.
+     */
+    static void dispatch(int level) {
+        Log.d(TAG, "Trimming memory, level " + level + ", keeping " + getRetainedPercent(level)
+                + "%");
+        //A listener may remove itself
+        List<OnTrimMemoryListener> listeners = new ArrayList<>(sListeners);
+        for (OnTrimMemoryListener listener : listeners) {
+            listener.onTrimMemory(level);
+        }
+    }
+
+    /**
+     * @return the percentage of what is cached to keep at a trim level
+     */
+    static int getRetainedPercent(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            return 50;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 25;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return 50;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return 75;
+        }
+        return 100;
+    }
+
+    /**
+     * Works out what a cache should be trimmed to at a trim level:
+     *
+     *   RUNNING_MODERATE   three quarters
+     *   RUNNING_LOW        a half
+     *   RUNNING_CRITICAL   a quarter
+     *   UI_HIDDEN          a half
+     *   BACKGROUND and up  nothing
+     *
+     * @param size how much the cache holds now, in whatever unit it counts
+     * @return the size to trim it to
+     */
+    public static int getTrimmedSize(int size, int level) {
+        return (int) ((long) size * getRetainedPercent(level) / 100);
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static class Callbacks implements ComponentCallbacks2 {
+
+        @Override
+        public void onTrimMemory(int level) {
+            dispatch(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            dispatch(TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+            //Nothing to do
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.waracle.androidtest;
+
+/**
+ * Where the image pipeline and the feed loader report how long things took, how often each cache
+ * tier answered, and what went wrong. Implementations are called from the UI thread and from
+ * every loader thread, often once per row, so they must be thread safe and cheap - the timers,
+ * counters and gauges are picked by int constant rather than by name so that recording one is
+ * no more than an array update.
+ *
+ * NONE records nothing and is what everything uses until it is given something else.
+ * HistogramMetrics keeps a histogram of each timer and can be dumped on demand.
+ */
+public interface Metrics {
+
+    //Timers, in nanoseconds
+    //From a load being queued until a fetch thread starts it
+    int TIMER_QUEUE_WAIT = 0;
+    //An image request that went to the network, including a 304
+    int TIMER_NETWORK = 1;
+    //Decoding an image into a bitmap
+    int TIMER_DECODE = 2;
+    //The adapter binding a row
+    int TIMER_BIND = 3;
+    //Parsing the feed, from its first byte being read to its last cake
+    int TIMER_FEED_PARSE = 4;
+    //A whole feed load, from starting the request to having the feed
+    int TIMER_FEED_LOAD = 5;
+    //From an image being downloaded until a decode thread starts it, including any wait for
+    //room in the decode stage
+    int TIMER_DECODE_WAIT = 6;
+    //Filtering the list for what has been typed into the search box, once per keystroke
+    int TIMER_SEARCH = 7;
+    int TIMER_COUNT = 8;
+
+    //Counters
+    //An image was already in the memory cache when its row was bound
+    int COUNTER_IMAGE_MEMORY_HIT = 0;
+    //An image was fresh in the disk cache
+    int COUNTER_IMAGE_DISK_HIT = 1;
+    //An image was in the disk cache and the server said it hadn't changed
+    int COUNTER_IMAGE_NOT_MODIFIED = 2;
+    //An image had to be downloaded
+    int COUNTER_IMAGE_NETWORK = 3;
+    //An image could not be loaded or decoded
+    int COUNTER_IMAGE_ERROR = 4;
+    //Body bytes read from the network, images and feed, after decompression
+    int COUNTER_BYTES_TRANSFERRED = 5;
+    //The feed had changed and was parsed, rather than answered with a 304
+    int COUNTER_FEED_PARSED = 6;
+    //The feed could not be loaded
+    int COUNTER_FEED_ERROR = 7;
+    int COUNTER_COUNT = 8;
+
+    //Gauges, the latest value is all that is kept
+    //Bytes of bitmaps in the memory cache
+    int GAUGE_BITMAP_CACHE_BYTES = 0;
+    //Bytes of bitmaps waiting in the pool to be decoded into
+    int GAUGE_BITMAP_POOL_BYTES = 1;
+    //Image loads waiting for a fetch thread
+    int GAUGE_FETCH_QUEUE_DEPTH = 2;
+    //Downloaded images waiting for a decode thread
+    int GAUGE_DECODE_QUEUE_DEPTH = 3;
+    int GAUGE_COUNT = 4;
+
+    /**
+     * Records nothing.
+     */
+    Metrics NONE = new Metrics() {
+        @Override
+        public void recordTime(int timer, long nanos) {
+        }
+
+        @Override
+        public void count(int counter, long delta) {
+        }
+
+        @Override
+        public void setGauge(int gauge, long value) {
+        }
+
+        @Override
+        public void recordError(String where, Throwable error) {
+        }
+    };
+
+    /**
+     * @param timer one of the TIMER constants
+     * @param nanos how long it took, from System.nanoTime
+     */
+    void recordTime(int timer, long nanos);
+
+    /**
+     * @param counter one of the COUNTER constants
+     * @param delta how much to add to it
+     */
+    void count(int counter, long delta);
+
+    /**
+     * @param gauge one of the GAUGE constants
+     * @param value its value now
+     */
+    void setGauge(int gauge, long value);
+
+    /**
+     * Told about a failure that was handled, such as an image that could not be downloaded,
+     * which used to go no further than the log.
+     * @param where what failed, such as the url
+     * @param error why, may be null
+     */
+    void recordError(String where, Throwable error);
+}
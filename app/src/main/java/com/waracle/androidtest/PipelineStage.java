@@ -0,0 +1,220 @@
+package com.waracle.androidtest;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of the image pipeline - fetching or decoding - with threads of its own and a limit on
+ * how much work may be queued or running in it at once. Downloads spend most of their time
+ * waiting on the network, so the fetch stage can have plenty of threads, while decodes are pure
+ * CPU and gain nothing from having more threads than there are cores.
+ *
+ * A stage with a capacity makes whoever submits to it wait for room, so a stage that falls behind
+ * slows down the one feeding it rather than letting work pile up between them - fetched images
+ * waiting to be decoded would otherwise each hold a file open or a whole encoded image in
+ * memory. trySubmit is for work that can be skipped instead, such as previews.
+ *
+ * Tasks are ordered by priority as in PriorityExecutor. Cancel and resubmit through the stage
+ * rather than through the Future, so the room a task was holding is given back or kept. The
+ * Future can't be trusted to say whether a task has started - FutureTask.cancel(false) succeeds
+ * on a running task too - so each task is claimed, either by the thread that runs it or by
+ * whoever cancels or resubmits it, and only once.
+ */
+public class PipelineStage {
+
+    //For stages that are fed from the UI thread, which must never wait
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    private final PriorityExecutor mExecutor;
+    private final int mCapacity;
+    //Room for tasks that are queued or running
+    private final Semaphore mRoom;
+    private final AtomicLong mCompletedCount = new AtomicLong();
+    //Times a submit had to wait for room, and how long it waited in all
+    private final AtomicLong mBlockedCount = new AtomicLong();
+    private final AtomicLong mBlockedNanos = new AtomicLong();
+
+    /**
+     * @param name used to name the threads
+     * @param threadCount the number of tasks that may run at once
+     * @param capacity the number of tasks that may be queued or running at once, or UNBOUNDED
+     */
+    public PipelineStage(String name, int threadCount, int capacity) {
+        mExecutor = new PriorityExecutor(threadCount, name);
+        mCapacity = capacity;
+        mRoom = new Semaphore(capacity);
+    }
+
+    /**
+     * Queues a task, first waiting for room if the stage is full.
+     * @param priority higher priorities run first, see PriorityExecutor.PRIORITY_VISIBLE
+     * @throws InterruptedException if the thread was interrupted while waiting, the task has not
+     * been queued
+     */
+    public Future<?> submit(Runnable task, int priority) throws InterruptedException {
+        if (!mRoom.tryAcquire()) {
+            long start = System.nanoTime();
+            mRoom.acquire();
+            mBlockedCount.incrementAndGet();
+            mBlockedNanos.addAndGet(System.nanoTime() - start);
+        }
+        return mExecutor.submit(new StageTask(task), priority);
+    }
+
+    /**
+     * Queues a task if there is room for it.
+     * @return the task's future, or null if the stage is full
+     */
+    public Future<?> trySubmit(Runnable task, int priority) {
+        if (!mRoom.tryAcquire()) {
+            return null;
+        }
+        return mExecutor.submit(new StageTask(task), priority);
+    }
+
+    /**
+     * Stops a task from running if it hasn't started, and gives its room back. A task that has
+     * started runs to the end, it can check a flag of its own to finish early.
+     * @return whether the task was stopped
+     */
+    public boolean cancel(Future<?> future) {
+        if (!claim(future)) {
+            //Running or done, it gives its room back itself when it finishes
+            return false;
+        }
+        future.cancel(false);
+        //Otherwise it would sit in the queue until a thread took it
+        mExecutor.remove((Runnable) future);
+        mRoom.release();
+        return true;
+    }
+
+    /**
+     * Queues a task again at another priority if it hasn't started yet. It keeps its room, so
+     * this never waits.
+     * @param future what submit returned for the task
+     * @param task the task that was submitted
+     * @return the task's new future, or the old one if the task had already started
+     */
+    public Future<?> resubmit(Future<?> future, Runnable task, int priority) {
+        if (!claim(future)) {
+            //Already running, queueing it again would run it twice
+            return future;
+        }
+        future.cancel(false);
+        mExecutor.remove((Runnable) future);
+        return mExecutor.submit(new StageTask(task), priority);
+    }
+
+    /**
+     * @return whether the task has started - or been cancelled or resubmitted, after which this
+     * future no longer stands for it - so is no longer waiting in the queue
+     */
+    public boolean hasStarted(Future<?> future) {
+        return ((StageTask) PriorityExecutor.getTask(future)).mClaimed.get();
+    }
+
+    /**
+     * @return whether the task was claimed by this call, in which case it will never run
+     */
+    private static boolean claim(Future<?> future) {
+        return ((StageTask) PriorityExecutor.getTask(future)).mClaimed.compareAndSet(false, true);
+    }
+
+    /**
+     * Changes how many tasks may run at once. The capacity stays as it is.
+     */
+    public void setThreadCount(int threadCount) {
+        mExecutor.setThreadCount(threadCount);
+    }
+
+    public int getThreadCount() {
+        return mExecutor.getMaximumPoolSize();
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return the number of tasks waiting for a thread
+     */
+    public int getQueueDepth() {
+        return mExecutor.getQueue().size();
+    }
+
+    /**
+     * @return the number of tasks running
+     */
+    public int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    /**
+     * @return the room left for tasks, for tests
+     */
+    int getAvailableRoom() {
+        return mRoom.availablePermits();
+    }
+
+    /**
+     * @return the number of tasks that have run to the end, for working out throughput
+     */
+    public long getCompletedCount() {
+        return mCompletedCount.get();
+    }
+
+    /**
+     * @return the number of times a submit had to wait for room
+     */
+    public long getBlockedCount() {
+        return mBlockedCount.get();
+    }
+
+    /**
+     * @return how long submits have spent waiting for room, in nanoseconds
+     */
+    public long getBlockedNanos() {
+        return mBlockedNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PipelineStage[threads=%d,capacity=%s,queued=%d,active=%d,"
+                        + "completed=%d,blocked=%d,blockedMs=%d]", getThreadCount(),
+                mCapacity == UNBOUNDED ? "unbounded" : String.valueOf(mCapacity),
+                getQueueDepth(), getActiveCount(), getCompletedCount(), getBlockedCount(),
+                getBlockedNanos() / 1000000);
+    }
+
+    /**
+     * Gives the task's room back once it has run, whether or not it threw.
+     */
+    private class StageTask implements Runnable {
+
+        private final Runnable mTask;
+        //Set by whichever comes first: the thread running the task, or a cancel or resubmit
+        final AtomicBoolean mClaimed = new AtomicBoolean();
+
+        StageTask(Runnable task) {
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            if (!mClaimed.compareAndSet(false, true)) {
+                //Cancelled or resubmitted just as a thread took it, which gave its room back or
+                //passed it on
+                return;
+            }
+            try {
+                mTask.run();
+            } finally {
+                mCompletedCount.incrementAndGet();
+                mRoom.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.waracle.androidtest;
+
+import android.os.Process;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed size pool of background threads whose queue is ordered by priority, and within the
+ * same priority by the most recently submitted task first. A list asks for the rows that have
+ * just scrolled into view last, so running the newest requests first means the rows the user is
+ * looking at load before the ones that have already scrolled away.
+ *
+ * Tasks have to be submitted through submit(Runnable, int) so they can be ordered.
+ */
+public class PriorityExecutor extends ThreadPoolExecutor {
+
+    //Work for rows that are on screen
+    public static final int PRIORITY_VISIBLE = 10;
+    //Work for rows that are about to scroll into view, only run when nothing visible is waiting
+    public static final int PRIORITY_PREFETCH = 0;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    //Orders tasks submitted with the same priority
+    private final AtomicLong mSequence = new AtomicLong();
+
+    /**
+     * @param threadCount the number of tasks that may run at once
+     * @param name used to name the threads
+     */
+    public PriorityExecutor(int threadCount, String name) {
+        super(threadCount, threadCount, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new BackgroundThreadFactory(name));
+        //Let the threads go when there is nothing to load
+        allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param task the work to run
+     * @param priority higher priorities run first, see PRIORITY_VISIBLE
+     * @return a future that can be cancelled to stop the task running if it hasn't started
+     */
+    public Future<?> submit(Runnable task, int priority) {
+        PriorityTask future = new PriorityTask(task, priority, mSequence.incrementAndGet());
+        execute(future);
+        return future;
+    }
+
+    /**
+     * @param future what submit returned
+     * @return the task it runs
+     */
+    static Runnable getTask(Future<?> future) {
+        return ((PriorityTask) future).mTask;
+    }
+
+    /**
+     * Changes how many tasks may run at once.
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount > getMaximumPoolSize()) {
+            setMaximumPoolSize(threadCount);
+            setCorePoolSize(threadCount);
+        } else {
+            setCorePoolSize(threadCount);
+            setMaximumPoolSize(threadCount);
+        }
+    }
+
+    private static class PriorityTask extends FutureTask<Void>
+            implements Comparable<PriorityTask> {
+
+        private final Runnable mTask;
+        private final int mPriority;
+        private final long mSequence;
+
+        PriorityTask(Runnable task, int priority, long sequence) {
+            super(task, null);
+            mTask = task;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(PriorityTask other) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority ? -1 : 1;
+            }
+            //Newest first
+            return mSequence > other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Makes threads that run at background priority so they don't compete with the UI thread.
+     */
+    private static class BackgroundThreadFactory implements ThreadFactory {
+
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        BackgroundThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, mName + "-" + mCount.incrementAndGet());
+        }
+    }
+}
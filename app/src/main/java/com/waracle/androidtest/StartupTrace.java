@@ -0,0 +1,258 @@
+package com.waracle.androidtest;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A timeline of each launch of the app, from the activity being created to the first rows of the
+ * feed being drawn. Everything on the way there, on any thread, can be wrapped in a named section,
+ * and one-off moments such as the first frame are marked. MainActivity.dump prints the timeline
+ * of the last launch, and how long the launches before it took, with
+ * "adb shell dumpsys activity com.waracle.androidtest".
+ *
+ * Sections nest per thread, like android.os.Trace, and are passed on to it from Jelly Bean MR2 so
+ * that they show up in systrace under the same names. Outside of a launch they only go to
+ * systrace. A launch is finished once FIRST_ROW is marked; one that never gets that far, such as
+ * an offline start with no snapshot, is finished by the next one.
+ *
+ * A cold start is the first launch in the process, a warm start is the activity being launched
+ * again in a process that is still running. Both are measured from the activity's onCreate: the
+ * platform can't tell the app when its process started on the versions it is built against, so
+ * the time spent before that - forking the process and loading the app - is only in the total
+ * that "adb shell am start -W" reports.
+ */
+public final class StartupTrace {
+
+    private static final String TAG = StartupTrace.class.getSimpleName();
+
+    //The first frame of the activity has been drawn, with or without any rows
+    public static final String FIRST_FRAME = "first frame";
+    //The first rows of the feed have been drawn, which finishes the launch
+    public static final String FIRST_ROW = "first row";
+
+    //Launches summarised by dump, so a change can be compared with the launches before it
+    private static final int HISTORY_SIZE = 10;
+
+    //The launch being traced, or the last one. Guarded by the class.
+    private static StartupTrace sLaunch;
+    private static final LinkedList<String> sHistory = new LinkedList<>();
+    //The sections open on each thread, innermost last. A section begun outside a launch is null.
+    private static final ThreadLocal<List<Event>> sOpenSections =
+            new ThreadLocal<List<Event>>() {
+                @Override
+                protected List<Event> initialValue() {
+                    return new ArrayList<>();
+                }
+            };
+
+    private final boolean mCold;
+    private final String mMode;
+    //System.nanoTime at the start of the launch, what the times in the timeline are relative to
+    private final long mOriginNanos;
+    private final List<Event> mEvents = new ArrayList<>();
+    //Relative to the origin, or -1 until they are marked
+    private long mFirstFrameNanos = -1;
+    private long mFirstRowNanos = -1;
+    private boolean mFinished;
+
+    private StartupTrace(boolean cold, String mode, long originNanos) {
+        mCold = cold;
+        mMode = mode;
+        mOriginNanos = originNanos;
+    }
+
+    /**
+     * Starts the timeline of a launch, finishing the last one if it was still open.
+     * @param mode what was different about this launch, such as how it was initialised, shown
+     *             in its summary to tell launches apart. May be null.
+     */
+    public static synchronized void beginLaunch(String mode) {
+        boolean cold = sLaunch == null;
+        if (!cold && !sLaunch.mFinished) {
+            sLaunch.finish();
+        }
+        sLaunch = new StartupTrace(cold, mode, System.nanoTime());
+    }
+
+    /**
+     * Opens a section on this thread, which must be closed with endSection on the same thread.
+     */
+    public static void beginSection(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            SystemTrace.beginSection(name);
+        }
+        Event event = null;
+        long now = System.nanoTime();
+        List<Event> open = sOpenSections.get();
+        synchronized (StartupTrace.class) {
+            if (sLaunch != null && !sLaunch.mFinished) {
+                event = new Event(name, now, open.size(), false);
+                sLaunch.mEvents.add(event);
+            }
+        }
+        open.add(event);
+    }
+
+    /**
+     * Closes the innermost section open on this thread.
+     */
+    public static void endSection() {
+        long now = System.nanoTime();
+        List<Event> open = sOpenSections.get();
+        if (open.isEmpty()) {
+            throw new IllegalStateException("No section is open on this thread");
+        }
+        Event event = open.remove(open.size() - 1);
+        if (event != null) {
+            synchronized (StartupTrace.class) {
+                event.mEndNanos = now;
+            }
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            SystemTrace.endSection();
+        }
+    }
+
+    /**
+     * Marks a moment in the launch being traced. FIRST_FRAME and FIRST_ROW only count the first
+     * time, and FIRST_ROW finishes the launch.
+     */
+    public static synchronized void mark(String name) {
+        StartupTrace launch = sLaunch;
+        if (launch == null || launch.mFinished) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (FIRST_FRAME.equals(name)) {
+            if (launch.mFirstFrameNanos >= 0) {
+                return;
+            }
+            launch.mFirstFrameNanos = now - launch.mOriginNanos;
+        }
+        launch.mEvents.add(new Event(name, now, 0, true));
+        if (FIRST_ROW.equals(name)) {
+            launch.mFirstRowNanos = now - launch.mOriginNanos;
+            launch.finish();
+        }
+    }
+
+    /**
+     * Prints how long the recent launches took, then the timeline of the last one.
+     */
+    public static synchronized void dump(String prefix, PrintWriter writer) {
+        for (String summary : sHistory) {
+            writer.println(prefix + summary);
+        }
+        if (sLaunch == null) {
+            return;
+        }
+        if (!sLaunch.mFinished) {
+            writer.println(prefix + sLaunch.summarise() + ", still going");
+        }
+        writer.println(prefix + "Timeline of the last launch, ms:");
+        List<Event> events = new ArrayList<>(sLaunch.mEvents);
+        Collections.sort(events, new Comparator<Event>() {
+            @Override
+            public int compare(Event a, Event b) {
+                return a.mStartNanos < b.mStartNanos ? -1 : a.mStartNanos > b.mStartNanos ? 1 : 0;
+            }
+        });
+        for (Event event : events) {
+            StringBuilder indent = new StringBuilder();
+            for (int i = 0; i < event.mDepth; i++) {
+                indent.append("  ");
+            }
+            String duration;
+            if (event.mEndNanos < 0) {
+                duration = event.mMark ? "" : "open";
+            } else {
+                duration = "+" + (event.mEndNanos - event.mStartNanos) / 1000000;
+            }
+            writer.println(prefix + String.format("  %6d %6s  %-16s %s%s",
+                    (event.mStartNanos - sLaunch.mOriginNanos) / 1000000, duration,
+                    event.mThread, indent, event.mName));
+        }
+    }
+
+    /**
+     * @return the summary of each launch that has finished, oldest first
+     */
+    static synchronized List<String> getHistory() {
+        return new ArrayList<>(sHistory);
+    }
+
+    /**
+     * Forgets every launch, for tests.
+     */
+    static synchronized void reset() {
+        sLaunch = null;
+        sHistory.clear();
+    }
+
+    private void finish() {
+        mFinished = true;
+        String summary = summarise();
+        Log.i(TAG, summary);
+        sHistory.add(summary);
+        if (sHistory.size() > HISTORY_SIZE) {
+            sHistory.removeFirst();
+        }
+    }
+
+    private String summarise() {
+        StringBuilder summary = new StringBuilder(mCold ? "Cold start" : "Warm start");
+        if (mMode != null) {
+            summary.append(" (").append(mMode).append(')');
+        }
+        summary.append(": ").append(format(mFirstFrameNanos)).append(" to first frame, ")
+                .append(format(mFirstRowNanos)).append(" to first row");
+        return summary.toString();
+    }
+
+    private static String format(long nanos) {
+        return nanos < 0 ? "no time" : nanos / 1000000 + "ms";
+    }
+
+    /**
+     * A section, or a mark, which is a moment rather than a span of time.
+     */
+    private static class Event {
+
+        final String mName;
+        final String mThread = Thread.currentThread().getName();
+        final long mStartNanos;
+        //The number of sections it is inside of on its thread
+        final int mDepth;
+        final boolean mMark;
+        //Or -1 while the section is open. Guarded by StartupTrace.
+        long mEndNanos = -1;
+
+        Event(String name, long startNanos, int depth, boolean mark) {
+            mName = name;
+            mStartNanos = startNanos;
+            mDepth = depth;
+            mMark = mark;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static class SystemTrace {
+
+        static void beginSection(String name) {
+            Trace.beginSection(name);
+        }
+
+        static void endSection() {
+            Trace.endSection();
+        }
+    }
+}
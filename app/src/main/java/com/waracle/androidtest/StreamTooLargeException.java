@@ -0,0 +1,23 @@
+package com.waracle.androidtest;
+
+import java.io.IOException;
+
+/**
+ * Thrown by StreamUtils when a stream is longer than the caller was prepared to read.
+ */
+public class StreamTooLargeException extends IOException {
+
+    private final long mLimit;
+
+    public StreamTooLargeException(long limit) {
+        super("Stream is longer than the limit of " + limit + " bytes");
+        mLimit = limit;
+    }
+
+    /**
+     * @return the limit that was exceeded, in bytes
+     */
+    public long getLimit() {
+        return mLimit;
+    }
+}
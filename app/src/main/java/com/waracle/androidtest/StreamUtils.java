@@ -3,9 +3,11 @@ package com.waracle.androidtest;
 import android.util.Log;
 
 import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.io.OutputStream;
+import java.util.Arrays;
 
 /**
  * Created by Riad on 20/05/2015.
@@ -13,34 +15,140 @@ import java.util.ArrayList;
 public class StreamUtils {
     private static final String TAG = StreamUtils.class.getSimpleName();
 
+    //Cap used by readUnknownFully, nothing this app downloads should come close
+    public static final int DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private static final int CHUNK_SIZE = 8192;
+
+    //Scratch buffer for copy, one per thread so copies never allocate after the first
+    private static final ThreadLocal<byte[]> sCopyBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        }
+    };
+
     // Can you see what's wrong with this???
-    //I have been looking but it seems to make sense to me. The input stream is read until
-    //-1 is reached (the first empty space signalling the end) - given that the bytes could be of
-    //any size an Array List is used and converted to array when the size is known.
-    //
-    // Unless that is the problem where we don't have a safety check to make sure that the size
-    //of what is in the input stream is too big and could crash, or potentially harm the application
-    // or device. If that is the problem then a check could me bade to ensure the data is not above
-    // a certain number - also provides security.
+    //It used to read a byte at a time into an ArrayList<Byte>, boxing every byte and copying the
+    //whole list again at the end - many times the size of the data in garbage, and a method call
+    //per byte. It also read for as long as the server kept sending, so a large or hostile response
+    //could take all the memory the app had. It now reads in chunks with a size limit, see
+    //readFully.
     public static byte[] readUnknownFully(InputStream stream) throws IOException {
-        // Read in stream of bytes
-        ArrayList<Byte> data = new ArrayList<>();
+        return readFully(stream, -1, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Reads a stream to the end into a byte array. The stream is read in chunks straight into
+     * the array, which starts at the expected length when there is one (so it is usually filled
+     * exactly, with no copying) and otherwise grows by doubling.
+     * @param stream the stream to read, not closed
+     * @param expectedLength the length the stream is expected to have, such as a Content-Length,
+     *                       or -1 if it isn't known
+     * @param maxBytes the most that will be read
+     * @return the bytes read
+     * @throws StreamTooLargeException if the stream is, or claims to be, longer than maxBytes
+     */
+    public static byte[] readFully(InputStream stream, long expectedLength, int maxBytes)
+            throws IOException {
+        if (expectedLength > maxBytes) {
+            throw new StreamTooLargeException(maxBytes);
+        }
+        byte[] buffer = new byte[expectedLength >= 0 ? (int) expectedLength
+                : Math.min(CHUNK_SIZE, maxBytes)];
+        int count = 0;
         while (true) {
-            int result = stream.read();
-            if (result == -1) {
-                break;
+            if (count == buffer.length) {
+                //Full - either the stream is longer than expected or it is time to grow. Check
+                //for the end of the stream first so an exact length doesn't cause a copy.
+                int next = stream.read();
+                if (next == -1) {
+                    return buffer;
+                }
+                if (count >= maxBytes) {
+                    throw new StreamTooLargeException(maxBytes);
+                }
+                int newLength = (int) Math.min((long) Math.max(buffer.length, CHUNK_SIZE) * 2,
+                        maxBytes);
+                buffer = Arrays.copyOf(buffer, newLength);
+                buffer[count++] = (byte) next;
+            }
+            int read = stream.read(buffer, count, buffer.length - count);
+            if (read == -1) {
+                return count == buffer.length ? buffer : Arrays.copyOf(buffer, count);
             }
-            data.add((byte) result);
+            count += read;
         }
+    }
 
-        // Convert ArrayList<Byte> to byte[]
-        byte[] bytes = new byte[data.size()];
-        for (int i = 0; i < bytes.length; i++) {
-            bytes[i] = data.get(i);
+    /**
+     * Copies a stream to another in chunks, without holding the data in memory, so it can be
+     * written straight to a file or into a decoder.
+     * @param in the stream to read, not closed
+     * @param out where to write the data, not closed
+     * @param maxBytes the most that will be copied
+     * @return the number of bytes copied
+     * @throws StreamTooLargeException if the stream is longer than maxBytes. Whatever was copied
+     * before the limit was reached has been written to out.
+     */
+    public static long copy(InputStream in, OutputStream out, long maxBytes) throws IOException {
+        byte[] buffer = sCopyBuffer.get();
+        long count = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            count += read;
+            if (count > maxBytes) {
+                throw new StreamTooLargeException(maxBytes);
+            }
+            out.write(buffer, 0, read);
         }
+        return count;
+    }
+
+    /**
+     * Wraps a stream so that reading more than maxBytes from it fails, for consumers such as a
+     * parser that read a stream to the end themselves.
+     * @param stream the stream to limit
+     * @param maxBytes the most that may be read
+     * @return a stream that throws a StreamTooLargeException once it passes maxBytes
+     */
+    public static InputStream limit(InputStream stream, final long maxBytes) {
+        return new FilterInputStream(stream) {
+
+            private long mCount;
+
+            @Override
+            public int read() throws IOException {
+                int result = super.read();
+                if (result != -1) {
+                    count(1);
+                }
+                return result;
+            }
 
-        // Return the raw byte array.
-        return bytes;
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    count(read);
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                count(skipped);
+                return skipped;
+            }
+
+            private void count(long read) throws StreamTooLargeException {
+                mCount += read;
+                if (mCount > maxBytes) {
+                    throw new StreamTooLargeException(maxBytes);
+                }
+            }
+        };
     }
 
     public static void close(Closeable closeable) {
@@ -0,0 +1,103 @@
+package com.waracle.androidtest;
+
+/**
+ * Hands out one shared String for each distinct value it is given, so that a feed that repeats
+ * the same titles, descriptions and urls hundreds of times holds each of them once rather than
+ * once per cake.
+ *
+ * Unlike String.intern the pool belongs to whoever made it and is collected with them, and it
+ * takes a CharSequence, so a parser can look up the characters it has just read without making a
+ * String for a value the pool already has.
+ *
+ * Not thread safe - each parse has a pool of its own.
+ */
+public class StringPool {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    //Open addressing, the capacity is always a power of two and at most half full
+    private String[] mTable = new String[INITIAL_CAPACITY];
+    private int mSize;
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * @return the pooled String equal to chars, added to the pool if it isn't there yet
+     */
+    public String intern(CharSequence chars) {
+        int hash = hash(chars);
+        int mask = mTable.length - 1;
+        int index = spread(hash) & mask;
+        String value;
+        while ((value = mTable[index]) != null) {
+            //A String caches its hashCode, so most mismatches never compare characters
+            if (value.hashCode() == hash && value.contentEquals(chars)) {
+                mHitCount++;
+                return value;
+            }
+            index = (index + 1) & mask;
+        }
+        mMissCount++;
+        value = chars.toString();
+        mTable[index] = value;
+        if (++mSize * 2 > mTable.length) {
+            grow();
+        }
+        return value;
+    }
+
+    /**
+     * @return the number of distinct strings in the pool
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the number of times intern returned a string that was already pooled
+     */
+    public int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return the number of strings that were added to the pool
+     */
+    public int getMissCount() {
+        return mMissCount;
+    }
+
+    private void grow() {
+        String[] old = mTable;
+        mTable = new String[old.length * 2];
+        int mask = mTable.length - 1;
+        for (String value : old) {
+            if (value != null) {
+                int index = spread(value.hashCode()) & mask;
+                while (mTable[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                mTable[index] = value;
+            }
+        }
+    }
+
+    /**
+     * The same hash as String.hashCode, so it can be compared with the one a pooled String has
+     * cached.
+     */
+    private static int hash(CharSequence chars) {
+        int hash = 0;
+        for (int i = 0; i < chars.length(); i++) {
+            hash = 31 * hash + chars.charAt(i);
+        }
+        return hash;
+    }
+
+    /**
+     * Mixes the high bits into the low ones, which are all that pick a slot.
+     */
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
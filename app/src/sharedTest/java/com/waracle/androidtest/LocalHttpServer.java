@@ -0,0 +1,410 @@
+package com.waracle.androidtest;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A very small HTTP/1.1 server on the loopback interface that stands in for the real feed and
+ * image hosts in tests. Each path is given a canned Resource; the server answers conditional
+ * requests against the resource's ETag and Last-Modified the way a real server would, and records
+ * every request so tests can check what the client sent.
+ *
+ * Connections are kept alive between requests, as a real server would, and each runs on its own
+ * thread. Bodies are gzipped for clients that accept it, if gzip has been turned on.
+ *
+ * For load tests it can also behave like a slow or unreliable network: every response can be
+ * delayed, every connection can share a limited bandwidth, and a fraction of the paths can fail.
+ * Which paths fail depends only on the path, not on the order requests arrive in, so a run that
+ * is repeated fails the same requests.
+ */
+public class LocalHttpServer {
+
+    /**
+     * What the server returns for a path.
+     */
+    public static class Resource {
+        public final int code;
+        public final byte[] body;
+        public final String etag;
+        public final String lastModified;
+        public final String cacheControl;
+        public final String contentType;
+
+        public Resource(int code, byte[] body, String etag, String lastModified,
+                        String cacheControl, String contentType) {
+            this.code = code;
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.cacheControl = cacheControl;
+            this.contentType = contentType;
+        }
+    }
+
+    /**
+     * A request the server received, with header names lower cased.
+     */
+    public static class Request {
+        public final String method;
+        public final String path;
+        public final Map<String, String> headers;
+
+        Request(String method, String path, Map<String, String> headers) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+        }
+    }
+
+    //Failing paths are answered with a 500
+    public static final int ERROR_STATUS = 0;
+    //Failing paths send their headers and half their body, then the connection is dropped
+    public static final int ERROR_DISCONNECT = 1;
+
+    //The bandwidth limit is applied this many bytes at a time, about a TCP segment
+    private static final int CHUNK_SIZE = 1460;
+
+    private final ServerSocket mServerSocket;
+    private final Map<String, Resource> mResources = new HashMap<>();
+    private final List<Request> mRequests = new ArrayList<>();
+    private final List<Socket> mSockets = new ArrayList<>();
+    private long mBodyBytesSent;
+    private int mConnectionCount;
+    private boolean mGzipEnabled;
+    private Thread mThread;
+
+    private long mLatencyMillis;
+    private long mBytesPerSecond;
+    //When the shared link will have finished sending what has been written to it, in nanoTime
+    private long mLinkBusyUntil;
+    private String mErrorPathPrefix;
+    private double mErrorRate;
+    private int mErrorMode;
+    private int mErrorCount;
+
+    public LocalHttpServer() throws IOException {
+        this(0);
+    }
+
+    /**
+     * @param port the port to listen on, or 0 for any free one
+     */
+    public LocalHttpServer(int port) throws IOException {
+        mServerSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+    }
+
+    public void start() {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        final Socket socket = mServerSocket.accept();
+                        synchronized (LocalHttpServer.this) {
+                            mConnectionCount++;
+                            mSockets.add(socket);
+                        }
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }, "LocalHttpServer connection").start();
+                    } catch (IOException e) {
+                        //Closed by shutdown
+                    }
+                }
+            }
+        }, "LocalHttpServer");
+        mThread.start();
+    }
+
+    public void shutdown() throws IOException, InterruptedException {
+        mServerSocket.close();
+        if (mThread != null) {
+            mThread.join();
+        }
+        synchronized (this) {
+            for (Socket socket : mSockets) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * @return the url of a path on this server
+     */
+    public String url(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    public synchronized void setResource(String path, Resource resource) {
+        mResources.put(path, resource);
+    }
+
+    /**
+     * @param gzipEnabled whether to gzip bodies for requests that send Accept-Encoding: gzip
+     */
+    public synchronized void setGzipEnabled(boolean gzipEnabled) {
+        mGzipEnabled = gzipEnabled;
+    }
+
+    /**
+     * @param latencyMillis how long to wait before answering each request, like a round trip
+     *                      to a distant server
+     */
+    public synchronized void setLatencyMillis(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    /**
+     * @param bytesPerSecond the bandwidth shared by every connection, like a mobile link, or 0
+     *                       for no limit
+     */
+    public synchronized void setBytesPerSecond(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Makes a fraction of the paths fail, always the same ones for the same paths.
+     * @param pathPrefix only paths starting with this can fail, such as "/images/"
+     * @param rate the fraction of those paths that fail, between 0 and 1
+     * @param mode ERROR_STATUS or ERROR_DISCONNECT
+     */
+    public synchronized void setErrors(String pathPrefix, double rate, int mode) {
+        mErrorPathPrefix = pathPrefix;
+        mErrorRate = rate;
+        mErrorMode = mode;
+    }
+
+    /**
+     * @return the number of requests that were made to fail
+     */
+    public synchronized int getErrorCount() {
+        return mErrorCount;
+    }
+
+    /**
+     * @return whether a path is one of those setErrors picked to fail
+     */
+    public synchronized boolean isFailing(String path) {
+        if (mErrorPathPrefix == null || !path.startsWith(mErrorPathPrefix)) {
+            return false;
+        }
+        //Mix the bits of the hash so that paths differing only in a number are spread out
+        int hash = path.hashCode() * 0x9E3779B9;
+        hash ^= hash >>> 16;
+        return (hash & 0x7fffffff) % 10000 < mErrorRate * 10000;
+    }
+
+    /**
+     * @return the number of connections accepted, which is less than the number of requests
+     * when clients reuse their connections
+     */
+    public synchronized int getConnectionCount() {
+        return mConnectionCount;
+    }
+
+    public synchronized List<Request> getRequests() {
+        return new ArrayList<>(mRequests);
+    }
+
+    public synchronized int getRequestCount() {
+        return mRequests.size();
+    }
+
+    public synchronized Request getLastRequest() {
+        return mRequests.isEmpty() ? null : mRequests.get(mRequests.size() - 1);
+    }
+
+    /**
+     * @return the response body bytes sent so far, after compression, not counting headers
+     */
+    public synchronized long getBodyBytesSent() {
+        return mBodyBytesSent;
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            while (handle(socket, reader)) {
+                //Keep serving requests on this connection until the client closes it
+            }
+        } catch (IOException e) {
+            //The client went away, or shutdown closed the socket
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //Nothing more to do
+            }
+        }
+    }
+
+    /**
+     * @return whether the connection should be kept open for another request
+     */
+    private boolean handle(Socket socket, BufferedReader reader) throws IOException {
+        String requestLine = reader.readLine();
+        if (requestLine == null) {
+            return false;
+        }
+        String[] parts = requestLine.split(" ");
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).trim().toLowerCase(),
+                    line.substring(colon + 1).trim());
+        }
+        Request request = new Request(parts[0], parts[1], headers);
+
+        Resource resource;
+        boolean gzipEnabled;
+        long latencyMillis;
+        int errorMode;
+        boolean failing = isFailing(request.path);
+        synchronized (this) {
+            mRequests.add(request);
+            resource = mResources.get(request.path);
+            gzipEnabled = mGzipEnabled;
+            latencyMillis = mLatencyMillis;
+            errorMode = mErrorMode;
+            if (failing) {
+                mErrorCount++;
+            }
+        }
+        if (resource == null) {
+            resource = new Resource(404, new byte[0], null, null, null, null);
+        }
+        if (failing && errorMode == ERROR_STATUS) {
+            resource = new Resource(500, new byte[0], null, null, null, null);
+        }
+        if (latencyMillis > 0) {
+            sleepNanos(TimeUnit.MILLISECONDS.toNanos(latencyMillis));
+        }
+
+        int code = resource.code;
+        byte[] body = resource.body;
+        if (code == 200 && isNotModified(resource, headers)) {
+            code = 304;
+            body = new byte[0];
+        }
+        String acceptEncoding = headers.get("accept-encoding");
+        boolean gzip = gzipEnabled && code != 304 && acceptEncoding != null
+                && acceptEncoding.contains("gzip");
+        if (gzip) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            GZIPOutputStream out = new GZIPOutputStream(compressed);
+            out.write(body);
+            out.close();
+            body = compressed.toByteArray();
+        }
+        boolean close = "close".equalsIgnoreCase(headers.get("connection"));
+
+        StringBuilder response = new StringBuilder();
+        response.append("HTTP/1.1 ").append(code).append(' ').append(reason(code)).append("\r\n");
+        appendHeader(response, "ETag", resource.etag);
+        appendHeader(response, "Last-Modified", resource.lastModified);
+        appendHeader(response, "Cache-Control", resource.cacheControl);
+        if (code != 304) {
+            appendHeader(response, "Content-Type", resource.contentType);
+            appendHeader(response, "Content-Encoding", gzip ? "gzip" : null);
+            appendHeader(response, "Content-Length", Integer.toString(body.length));
+        }
+        response.append(close ? "Connection: close\r\n\r\n" : "\r\n");
+
+        OutputStream out = socket.getOutputStream();
+        byte[] head = response.toString().getBytes("ISO-8859-1");
+        send(out, head, head.length);
+        if (failing && errorMode == ERROR_DISCONNECT) {
+            send(out, body, body.length / 2);
+            socket.close();
+            return false;
+        }
+        send(out, body, body.length);
+        synchronized (this) {
+            mBodyBytesSent += body.length;
+        }
+        return !close;
+    }
+
+    /**
+     * Writes the first length bytes of data, no faster than the bandwidth limit allows.
+     */
+    private void send(OutputStream out, byte[] data, int length) throws IOException {
+        for (int offset = 0; offset < length; offset += CHUNK_SIZE) {
+            int count = Math.min(CHUNK_SIZE, length - offset);
+            long sendAt = 0;
+            synchronized (this) {
+                if (mBytesPerSecond > 0) {
+                    //Every connection queues for the same link, as they would for a phone's
+                    long now = System.nanoTime();
+                    sendAt = Math.max(now, mLinkBusyUntil);
+                    mLinkBusyUntil = sendAt
+                            + count * TimeUnit.SECONDS.toNanos(1) / mBytesPerSecond;
+                }
+            }
+            if (sendAt > 0) {
+                sleepNanos(sendAt - System.nanoTime());
+            }
+            out.write(data, offset, count);
+        }
+        out.flush();
+    }
+
+    private static void sleepNanos(long nanos) throws IOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+
+    private static boolean isNotModified(Resource resource, Map<String, String> headers) {
+        String ifNoneMatch = headers.get("if-none-match");
+        if (ifNoneMatch != null) {
+            return ifNoneMatch.equals(resource.etag);
+        }
+        String ifModifiedSince = headers.get("if-modified-since");
+        return ifModifiedSince != null && ifModifiedSince.equals(resource.lastModified);
+    }
+
+    private static void appendHeader(StringBuilder builder, String name, String value) {
+        if (value != null) {
+            builder.append(name).append(": ").append(value).append("\r\n");
+        }
+    }
+
+    private static String reason(int code) {
+        switch (code) {
+            case 200:
+                return "OK";
+            case 304:
+                return "Not Modified";
+            case 404:
+                return "Not Found";
+            case 500:
+                return "Internal Server Error";
+            default:
+                return "Status";
+        }
+    }
+}
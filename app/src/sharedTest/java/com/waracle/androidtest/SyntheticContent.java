@@ -0,0 +1,140 @@
+package com.waracle.androidtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Feeds and images for LocalHttpServer to serve, generated from fixed seeds so every run serves
+ * the same bytes. The images are real PNGs, so the app decodes them as it would a photo.
+ */
+public final class SyntheticContent {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] PNG_SIGNATURE = {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    //Side of the squares of colour the images are made of. Smaller squares compress less.
+    private static final int BLOCK_SIZE = 4;
+
+    private SyntheticContent() {
+        //Static methods only
+    }
+
+    /**
+     * @param rows the number of cakes in the feed
+     * @param imageUrlPrefix put in front of each image's name, such as a LocalHttpServer url
+     * @param distinctImages how many different images the rows cycle through, the real feed
+     *                       repeats a handful of cakes many times
+     * @return the feed as JSON, with images named imageUrlPrefix + n + ".png"
+     */
+    public static byte[] feed(int rows, String imageUrlPrefix, int distinctImages) {
+        StringBuilder feed = new StringBuilder(rows * 120);
+        feed.append('[');
+        for (int i = 0; i < rows; i++) {
+            int image = i % distinctImages;
+            if (i > 0) {
+                feed.append(",\n");
+            }
+            feed.append("{\"title\":\"Cake ").append(i)
+                    .append("\",\"desc\":\"Synthetic cake number ").append(i)
+                    .append("\",\"image\":\"").append(imageUrlPrefix).append(image)
+                    .append(".png\"}");
+        }
+        feed.append(']');
+        return feed.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * @return an opaque RGB PNG of random squares of colour, different for each seed
+     */
+    public static byte[] png(int width, int height, long seed) {
+        try {
+            Random random = new Random(seed);
+            int blocksAcross = (width + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            byte[] blockColours = new byte[blocksAcross * 3];
+            //Each row of pixels starts with its filter type, 0 for none
+            byte[] row = new byte[1 + width * 3];
+            ByteArrayOutputStream pixels = new ByteArrayOutputStream();
+            DeflaterOutputStream deflater = new DeflaterOutputStream(pixels, new Deflater());
+            for (int y = 0; y < height; y++) {
+                if (y % BLOCK_SIZE == 0) {
+                    random.nextBytes(blockColours);
+                }
+                for (int x = 0; x < width; x++) {
+                    System.arraycopy(blockColours, x / BLOCK_SIZE * 3, row, 1 + x * 3, 3);
+                }
+                deflater.write(row);
+            }
+            deflater.close();
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream headerData = new DataOutputStream(header);
+            headerData.writeInt(width);
+            headerData.writeInt(height);
+            //8 bits per channel, RGB, deflate, adaptive filtering, not interlaced
+            headerData.write(new byte[]{8, 2, 0, 0, 0});
+
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(png);
+            out.write(PNG_SIGNATURE);
+            writeChunk(out, "IHDR", header.toByteArray());
+            writeChunk(out, "IDAT", pixels.toByteArray());
+            writeChunk(out, "IEND", new byte[0]);
+            out.close();
+            return png.toByteArray();
+        } catch (IOException e) {
+            //Only ever writing to memory
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data)
+            throws IOException {
+        byte[] typeBytes = type.getBytes(UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(typeBytes);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * @return the feed as a 200 that has to be revalidated every time, like the real one
+     */
+    public static LocalHttpServer.Resource feedResource(byte[] feed) {
+        return new LocalHttpServer.Resource(200, feed, "\"feed-" + feed.length + "\"", null,
+                "no-cache", "application/json; charset=utf-8");
+    }
+
+    /**
+     * @return the image as a 200 that can be cached for a day
+     */
+    public static LocalHttpServer.Resource imageResource(byte[] png, long seed) {
+        return new LocalHttpServer.Resource(200, png, "\"image-" + seed + "\"", null,
+                "max-age=86400", "image/png");
+    }
+
+    /**
+     * Serves a feed at feedPath and the images it refers to, under imagePath.
+     * @param imagePath where the images are served from, such as "/images/"
+     * @return the url of the feed
+     */
+    public static String serve(LocalHttpServer server, String feedPath, int rows,
+                               String imagePath, int distinctImages, int imageWidth,
+                               int imageHeight) {
+        for (int i = 0; i < distinctImages; i++) {
+            server.setResource(imagePath + i + ".png",
+                    imageResource(png(imageWidth, imageHeight, i), i));
+        }
+        server.setResource(feedPath,
+                feedResource(feed(rows, server.url(imagePath), distinctImages)));
+        return server.url(feedPath);
+    }
+}
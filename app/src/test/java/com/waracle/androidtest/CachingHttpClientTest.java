@@ -0,0 +1,276 @@
+package com.waracle.androidtest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs CachingHttpClient against LocalHttpServer to check which requests are conditional, which
+ * are answered from the cache and what that saves, and that connections are reused and feeds
+ * gzipped.
+ */
+public class CachingHttpClientTest {
+
+    private static final String PATH = "/cakes.json";
+    private static final byte[] BODY = "[{\"title\":\"Lemon cheesecake\"}]".getBytes();
+    private static final byte[] NEW_BODY = "[{\"title\":\"Victoria sponge\"}]".getBytes();
+    private static final String LAST_MODIFIED = "Wed, 20 May 2015 10:00:00 GMT";
+    private static final long MAX_BYTES = 1024 * 1024;
+
+    private LocalHttpServer mServer;
+    private File mDirectory;
+    private DiskImageCache mCache;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new LocalHttpServer();
+        mServer.start();
+        mDirectory = File.createTempFile("http-cache", "");
+        mDirectory.delete();
+        mCache = new DiskImageCache(mDirectory, MAX_BYTES);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void etagIsRevalidatedAndServedFromCacheOn304() throws IOException {
+        mServer.setResource(PATH, resource(BODY, "\"v1\"", null, null));
+        CachingHttpClient client = new CachingHttpClient(mCache, 0);
+
+        assertFetch(client, CachingHttpClient.SOURCE_NETWORK, BODY);
+        assertNull(mServer.getLastRequest().headers.get("if-none-match"));
+
+        assertFetch(client, CachingHttpClient.SOURCE_NOT_MODIFIED, BODY);
+        assertEquals("\"v1\"", mServer.getLastRequest().headers.get("if-none-match"));
+
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(BODY.length, mServer.getBodyBytesSent());
+        assertEquals(1, client.getNotModifiedCount());
+        assertEquals(0, client.getRoundTripsSaved());
+        assertEquals(BODY.length, client.getBytesSaved());
+    }
+
+    @Test
+    public void entryEvictedDuringA304IsDownloadedAndCountedOnce() throws IOException {
+        mServer.setResource(PATH, resource(BODY, "\"v1\"", null, null));
+        CachingHttpClient client = new CachingHttpClient(mCache, 0);
+        assertFetch(client, CachingHttpClient.SOURCE_NETWORK, BODY);
+
+        //Gone from under the cache, which still has it in its index
+        assertTrue(mCache.get(mServer.url(PATH)).delete());
+        assertFetch(client, CachingHttpClient.SOURCE_NETWORK, BODY);
+
+        //The 304, then the download without a validator
+        assertEquals(3, mServer.getRequestCount());
+        assertNull(mServer.getLastRequest().headers.get("if-none-match"));
+        assertEquals(2, client.getRequestCount());
+        assertEquals(0, client.getNotModifiedCount());
+        assertEquals(0, client.getBytesSaved());
+    }
+
+    @Test
+    public void lastModifiedIsSentAsIfModifiedSince() throws IOException {
+        mServer.setResource(PATH, resource(BODY, null, LAST_MODIFIED, null));
+        CachingHttpClient client = new CachingHttpClient(mCache, 0);
+
+        assertFetch(client, CachingHttpClient.SOURCE_NETWORK, BODY);
+        assertFetch(client, CachingHttpClient.SOURCE_NOT_MODIFIED, BODY);
+        assertEquals(LAST_MODIFIED, mServer.getLastRequest().headers.get("if-modified-since"));
+    }
+
+    @Test
+    public void freshResponseSkipsTheNetwork() throws IOException {
+        mServer.setResource(PATH, resource(BODY, "\"v1\"", null, "public, max-age=60"));
+        CachingHttpClient client = new CachingHttpClient(mCache, 0);
+
+        assertFetch(client, CachingHttpClient.SOURCE_NETWORK, BODY);
+        assertFetch(client, CachingHttpClient.SOURCE_CACHE, BODY);
+        assertFetch(client, CachingHttpClient.SOURCE_CACHE, BODY);
+
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(2, client.getRoundTripsSaved());
+        assertEquals(2 * BODY.length, client.getBytesSaved());
+    }
+
+    @Test
+    public void changedResponseIsDownloadedAgain() throws IOException {
+        mServer.setResource(PATH, resource(BODY, "\"v1\"", null, null));
+        CachingHttpClient client = new CachingHttpClient(mCache, 0);
+        assertFetch(client, CachingHttpClient.SOURCE_NETWORK, BODY);
+
+        mServer.setResource(PATH, resource(NEW_BODY, "\"v2\"", null, null));
+        assertFetch(client, CachingHttpClient.SOURCE_NETWORK, NEW_BODY);
+        //The new ETag replaced the old one
+        assertFetch(client, CachingHttpClient.SOURCE_NOT_MODIFIED, NEW_BODY);
+        assertEquals("\"v2\"", mServer.getLastRequest().headers.get("if-none-match"));
+    }
+
+    @Test
+    public void noCacheOverridesTheDefaultMaxAge() throws IOException {
+        mServer.setResource(PATH, resource(BODY, "\"v1\"", null, "no-cache"));
+        CachingHttpClient client = new CachingHttpClient(mCache, Long.MAX_VALUE);
+
+        assertFetch(client, CachingHttpClient.SOURCE_NETWORK, BODY);
+        assertFetch(client, CachingHttpClient.SOURCE_NOT_MODIFIED, BODY);
+    }
+
+    @Test
+    public void partlyReadResponseIsNotCached() throws IOException {
+        mServer.setResource(PATH, resource(BODY, "\"v1\"", null, "max-age=60"));
+        CachingHttpClient client = new CachingHttpClient(mCache, 0);
+
+        CachingHttpClient.Response response = client.open(mServer.url(PATH), MAX_BYTES);
+        response.getInputStream().read();
+        response.close();
+
+        assertNull(mCache.get(mServer.url(PATH)));
+        assertFetch(client, CachingHttpClient.SOURCE_NETWORK, BODY);
+    }
+
+    @Test
+    public void errorResponseIsNotCached() throws IOException {
+        CachingHttpClient client = new CachingHttpClient(mCache, 0);
+        try {
+            client.open(mServer.url("/missing.json"), MAX_BYTES);
+            fail("Expected an IOException for a 404");
+        } catch (IOException e) {
+            //Expected
+        }
+        assertNull(mCache.get(mServer.url("/missing.json")));
+    }
+
+    @Test
+    public void headersSurviveANewCacheInstance() throws IOException {
+        mServer.setResource(PATH, resource(BODY, "\"v1\"", null, null));
+        assertFetch(new CachingHttpClient(mCache, 0), CachingHttpClient.SOURCE_NETWORK, BODY);
+
+        //As if the process had been restarted
+        DiskImageCache reopened = new DiskImageCache(mDirectory, MAX_BYTES);
+        assertFetch(new CachingHttpClient(reopened, 0), CachingHttpClient.SOURCE_NOT_MODIFIED,
+                BODY);
+    }
+
+    @Test
+    public void connectionIsReusedOnceTheBodyIsRead() throws IOException {
+        mServer.setResource(PATH, resource(BODY, null, null, null));
+        CachingHttpClient client = new CachingHttpClient(null, 0);
+
+        assertFetch(client, CachingHttpClient.SOURCE_NETWORK, BODY);
+        assertFetch(client, CachingHttpClient.SOURCE_NETWORK, BODY);
+        assertFetch(client, CachingHttpClient.SOURCE_NETWORK, BODY);
+
+        assertEquals(3, mServer.getRequestCount());
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void gzippedBodyIsDecompressedAndCachedDecompressed() throws IOException {
+        byte[] feed = repeat(BODY, 100);
+        mServer.setGzipEnabled(true);
+        mServer.setResource(PATH, resource(feed, "\"v1\"", null, null));
+        CachingHttpClient client = new CachingHttpClient(mCache, 0);
+        client.setAcceptGzip(true);
+
+        assertFetch(client, CachingHttpClient.SOURCE_NETWORK, feed);
+        assertEquals("gzip", mServer.getLastRequest().headers.get("accept-encoding"));
+        assertTrue(mServer.getBodyBytesSent() < feed.length / 10);
+        assertFetch(client, CachingHttpClient.SOURCE_NOT_MODIFIED, feed);
+    }
+
+    @Test
+    public void gzipIsNotAskedForByDefault() throws IOException {
+        mServer.setGzipEnabled(true);
+        mServer.setResource(PATH, resource(BODY, null, null, null));
+        CachingHttpClient client = new CachingHttpClient(null, 0);
+
+        assertFetch(client, CachingHttpClient.SOURCE_NETWORK, BODY);
+        assertEquals("identity", mServer.getLastRequest().headers.get("accept-encoding"));
+        assertEquals(BODY.length, mServer.getBodyBytesSent());
+    }
+
+    @Test
+    public void requestTimingIsRecorded() throws IOException {
+        mServer.setResource(PATH, resource(BODY, null, null, null));
+        CachingHttpClient client = new CachingHttpClient(null, 0);
+
+        CachingHttpClient.Response response = client.open(mServer.url(PATH), MAX_BYTES);
+        try {
+            assertEquals(-1, response.getTiming().getTransferMillis());
+            readAll(response.getInputStream());
+            HttpConnections.RequestTiming timing = response.getTiming();
+            assertTrue(timing.getConnectMillis() >= 0);
+            assertTrue(timing.getFirstByteMillis() >= 0);
+            assertTrue(timing.getTransferMillis() >= 0);
+            assertEquals(BODY.length, timing.getBytes());
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void parseMaxAge() {
+        assertEquals(CacheHeaders.UNKNOWN_MAX_AGE, CacheHeaders.parseMaxAge(null));
+        assertEquals(CacheHeaders.UNKNOWN_MAX_AGE, CacheHeaders.parseMaxAge("public"));
+        assertEquals(60000, CacheHeaders.parseMaxAge("public, max-age=60"));
+        assertEquals(60000, CacheHeaders.parseMaxAge("Public, MAX-AGE=60"));
+        assertEquals(0, CacheHeaders.parseMaxAge("max-age=60, no-cache"));
+        assertEquals(0, CacheHeaders.parseMaxAge("no-store"));
+        assertEquals(0, CacheHeaders.parseMaxAge("max-age=soon"));
+    }
+
+    private void assertFetch(CachingHttpClient client, int expectedSource, byte[] expectedBody)
+            throws IOException {
+        CachingHttpClient.Response response = client.open(mServer.url(PATH), MAX_BYTES);
+        try {
+            assertEquals(expectedSource, response.getSource());
+            assertArrayEquals(expectedBody, readAll(response.getInputStream()));
+        } finally {
+            response.close();
+        }
+    }
+
+    private static LocalHttpServer.Resource resource(byte[] body, String etag,
+                                                     String lastModified, String cacheControl) {
+        return new LocalHttpServer.Resource(200, body, etag, lastModified, cacheControl,
+                "application/json; charset=utf-8");
+    }
+
+    private static byte[] repeat(byte[] bytes, int times) {
+        byte[] result = new byte[bytes.length * times];
+        for (int i = 0; i < times; i++) {
+            System.arraycopy(bytes, 0, result, i * bytes.length, bytes.length);
+        }
+        return result;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,140 @@
+package com.waracle.androidtest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CakeCatalogueTest {
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("cakes", ".catalogue");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void rowsAreDecodedByPosition() throws IOException {
+        List<Cake> cakes = Arrays.asList(
+                new Cake("Lemon cheesecake", "A cheesecake made of lemon", "http://a/1.jpg", 0),
+                new Cake("Victoria sponge", null, null, 0),
+                new Cake("Banana cake", "", "http://a/3.jpg", 0));
+        CakeCatalogue catalogue = writeAndMap(cakes);
+
+        assertEquals(3, catalogue.size());
+        assertEquals(cakes.get(2), catalogue.get(2));
+        assertNull(catalogue.get(1).getDesc());
+        assertNull(catalogue.getImage(1));
+        assertEquals("http://a/3.jpg", catalogue.getImage(2));
+        for (int i = 0; i < cakes.size(); i++) {
+            assertEquals(cakes.get(i).getId(), catalogue.getId(i));
+            assertEquals(cakes.get(i).getId(), CakeCatalogue.getId(cakes, i));
+        }
+    }
+
+    @Test
+    public void repeatedStringsArePooled() throws IOException {
+        List<Cake> cakes = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            cakes.add(new Cake("Lemon cheesecake", "A cheesecake made of lemon",
+                    "http://a/" + (i % 10) + ".jpg", i));
+        }
+        CakeCatalogue catalogue = writeAndMap(cakes);
+
+        //Title, description and ten urls
+        assertEquals(12, catalogue.getStringCount());
+        assertEquals(cakes, catalogue);
+        //Not much more than the row table itself
+        assertTrue(mFile.length() < cakes.size() * 24);
+    }
+
+    @Test
+    public void positionOutOfRangeThrows() throws IOException {
+        CakeCatalogue catalogue = writeAndMap(Arrays.asList(new Cake("Carrot cake", "", "", 0)));
+        try {
+            catalogue.get(1);
+            fail("Expected an IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException e) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void corruptCountIsRejected() throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile));
+        CakeCatalogue.write(Arrays.asList(new Cake("Carrot cake", "", "", 0)), out);
+        out.close();
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(8);
+        file.writeInt(Integer.MAX_VALUE);
+        file.close();
+        try {
+            CakeCatalogue.map(mFile);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void stringIndexOutOfRangeIsRejected() throws IOException {
+        //The title of the first row
+        assertCorruptionRejected(24, 2);
+        assertCorruptionRejected(24, -2);
+    }
+
+    @Test
+    public void stringOffsetOutOfOrderIsRejected() throws IOException {
+        //The start of the second string, after the one row and the first offset
+        assertCorruptionRejected(40, 20);
+        assertCorruptionRejected(36, -1);
+    }
+
+    /**
+     * Writes a one row catalogue, with the strings "Carrot cake" and "", overwrites an int in it
+     * and checks that map turns it away.
+     */
+    private void assertCorruptionRejected(int position, int value) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile));
+        CakeCatalogue.write(Arrays.asList(new Cake("Carrot cake", "", "", 0)), out);
+        out.close();
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(position);
+        file.writeInt(value);
+        file.close();
+        try {
+            CakeCatalogue.map(mFile);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            //Expected
+        }
+    }
+
+    private CakeCatalogue writeAndMap(List<Cake> cakes) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(mFile)));
+        CakeCatalogue.write(cakes, out);
+        out.close();
+        return CakeCatalogue.map(mFile);
+    }
+}
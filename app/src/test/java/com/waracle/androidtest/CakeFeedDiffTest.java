@@ -0,0 +1,62 @@
+package com.waracle.androidtest;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CakeFeedDiffTest {
+
+    private static final Cake LEMON = new Cake("Lemon cheesecake", "Lemon", "http://a/1.jpg", 0);
+    private static final Cake LEMON_AGAIN =
+            new Cake("Lemon cheesecake", "Lemon", "http://a/1.jpg", 1);
+    private static final Cake SPONGE = new Cake("Victoria sponge", "Sponge", "http://a/2.jpg", 0);
+    private static final Cake CARROT = new Cake("Carrot cake", "Carrot", "http://a/3.jpg", 0);
+
+    @Test
+    public void sameFeedHasNoChanges() {
+        List<Cake> feed = Arrays.asList(LEMON, SPONGE, LEMON_AGAIN);
+        CakeFeedDiff diff = CakeFeedDiff.compute(feed,
+                Arrays.asList(copy(LEMON, 0), copy(SPONGE, 0), copy(LEMON, 1)));
+        assertFalse(diff.hasChanges());
+    }
+
+    @Test
+    public void replacedRowIsTheOnlyChange() {
+        CakeFeedDiff diff = CakeFeedDiff.compute(Arrays.asList(LEMON, SPONGE, LEMON_AGAIN),
+                Arrays.asList(LEMON, CARROT, LEMON_AGAIN));
+        assertTrue(diff.hasChanges());
+        assertFalse(diff.isSizeChanged());
+        assertFalse(diff.isChanged(0));
+        assertTrue(diff.isChanged(1));
+        assertFalse(diff.isChanged(2));
+        assertEquals(1, diff.getAddedCount());
+        assertEquals(1, diff.getRemovedCount());
+    }
+
+    @Test
+    public void editedCakeCountsAsChanged() {
+        Cake edited = new Cake("Victoria sponge", "Now with jam", "http://a/2.jpg", 0);
+        CakeFeedDiff diff = CakeFeedDiff.compute(Arrays.asList(LEMON, SPONGE),
+                Arrays.asList(LEMON, edited));
+        assertEquals(1, diff.getChangedCount());
+        assertTrue(diff.isChanged(1));
+    }
+
+    @Test
+    public void insertedRowChangesTheSize() {
+        CakeFeedDiff diff = CakeFeedDiff.compute(Arrays.asList(LEMON, SPONGE),
+                Arrays.asList(CARROT, LEMON, SPONGE));
+        assertTrue(diff.isSizeChanged());
+        assertEquals(1, diff.getAddedCount());
+        assertEquals(0, diff.getRemovedCount());
+    }
+
+    private static Cake copy(Cake cake, int occurrence) {
+        return new Cake(cake.getTitle(), cake.getDesc(), cake.getImage(), occurrence);
+    }
+}
@@ -0,0 +1,148 @@
+package com.waracle.androidtest;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parses synthetic feeds shaped like the real one - the same handful of cakes repeated - to check
+ * the records come out right and that the repeats share their strings and image ids.
+ */
+public class CakeFeedParserTest {
+
+    private static final int DISTINCT_CAKES = 20;
+    private static final int FEED_ROWS = 10000;
+
+    @Test
+    public void parsesTitleDescAndImage() throws IOException {
+        CakeFeedParser parser = new CakeFeedParser(new StringReader(
+                "[{\"title\":\"Lemon cheesecake\",\"desc\":\"A \\\"cheesecake\\\"\","
+                        + "\"image\":\"http://a/1.jpg\",\"rating\":[1,{\"x\":null}]},"
+                        + " {\"title\":\"Victoria sponge\",\"image\":false}]"));
+        Cake lemon = parser.next();
+        Cake sponge = parser.next();
+        assertNull(parser.next());
+
+        assertEquals("Lemon cheesecake", lemon.getTitle());
+        assertEquals("A \"cheesecake\"", lemon.getDesc());
+        assertEquals("http://a/1.jpg", lemon.getImage());
+        assertEquals("Victoria sponge", sponge.getTitle());
+        assertNull(sponge.getImage());
+        assertEquals(ImageIds.NO_IMAGE, sponge.getImageId());
+    }
+
+    @Test
+    public void repeatedCakesShareStringsAndImageIds() throws IOException {
+        List<Cake> cakes = parse(syntheticFeed(FEED_ROWS));
+        assertEquals(FEED_ROWS, cakes.size());
+
+        Cake first = cakes.get(0);
+        Cake repeat = cakes.get(DISTINCT_CAKES);
+        assertEquals(first.getTitle(), repeat.getTitle());
+        assertSame(first.getTitle(), repeat.getTitle());
+        assertSame(first.getDesc(), repeat.getDesc());
+        assertSame(first.getImage(), repeat.getImage());
+        assertEquals(first.getImageId(), repeat.getImageId());
+        assertTrue(first.getId() != repeat.getId());
+        assertEquals(first.getImage(), ImageIds.getUrl(first.getImageId()));
+    }
+
+    /**
+     * The before and after of pooling on a 10k row feed. Before is the same cakes with every
+     * string a copy of its own, which is what the parser made before it had a StringPool. The
+     * string bytes are estimated from the instances the cakes reach, which is exact about sharing
+     * and close enough about object layout; the heap the JVM reports is logged alongside.
+     */
+    @Test
+    public void pooledFeedHoldsFarLessStringData() throws IOException {
+        String feed = syntheticFeed(FEED_ROWS);
+
+        long heapBefore = usedHeap();
+        List<Cake> unpooled = copyStrings(parse(feed));
+        long unpooledHeap = usedHeap() - heapBefore;
+        long unpooledBytes = estimateStringBytes(unpooled);
+        unpooled = null;
+
+        heapBefore = usedHeap();
+        List<Cake> pooled = parse(feed);
+        long pooledHeap = usedHeap() - heapBefore;
+        long pooledBytes = estimateStringBytes(pooled);
+
+        System.out.println("10k row feed, string data: " + unpooledBytes + " bytes unpooled, "
+                + pooledBytes + " bytes pooled. Heap held by the feed: " + unpooledHeap
+                + " bytes unpooled, " + pooledHeap + " bytes pooled.");
+        assertEquals(FEED_ROWS, pooled.size());
+        //Three strings for each distinct cake, instead of three for every row
+        assertTrue(pooledBytes * (FEED_ROWS / DISTINCT_CAKES) / 2 < unpooledBytes);
+    }
+
+    private static List<Cake> parse(String feed) throws IOException {
+        CakeFeedParser parser = new CakeFeedParser(new StringReader(feed));
+        List<Cake> cakes = new ArrayList<>();
+        Cake cake;
+        while ((cake = parser.next()) != null) {
+            cakes.add(cake);
+        }
+        return cakes;
+    }
+
+    private static String syntheticFeed(int rows) {
+        StringBuilder feed = new StringBuilder("[");
+        for (int i = 0; i < rows; i++) {
+            int cake = i % DISTINCT_CAKES;
+            if (i > 0) {
+                feed.append(',');
+            }
+            feed.append("{\"title\":\"Cake number ").append(cake)
+                    .append("\",\"desc\":\"A description of cake ").append(cake)
+                    .append(", long enough to be like the ones in the real feed\"")
+                    .append(",\"image\":\"https://images.example.com/cakes/").append(cake)
+                    .append("/large-photo-of-the-cake.jpg\"}");
+        }
+        return feed.append(']').toString();
+    }
+
+    private static List<Cake> copyStrings(List<Cake> cakes) {
+        List<Cake> copies = new ArrayList<>(cakes.size());
+        for (Cake cake : cakes) {
+            copies.add(new Cake(cake.getId(), new String(cake.getTitle()),
+                    new String(cake.getDesc()), new String(cake.getImage())));
+        }
+        return copies;
+    }
+
+    /**
+     * Roughly what the distinct String instances cost on a 64 bit VM with compressed pointers:
+     * a 24 byte String and its char array, both rounded up to 8 bytes.
+     */
+    private static long estimateStringBytes(List<Cake> cakes) {
+        Map<String, Boolean> seen = new IdentityHashMap<>();
+        long bytes = 0;
+        for (Cake cake : cakes) {
+            for (String string : new String[]{cake.getTitle(), cake.getDesc(), cake.getImage()}) {
+                if (string != null && seen.put(string, Boolean.TRUE) == null) {
+                    bytes += 24 + ((16 + 2L * string.length() + 7) / 8) * 8;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
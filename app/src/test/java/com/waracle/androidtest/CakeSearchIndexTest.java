@@ -0,0 +1,216 @@
+package com.waracle.androidtest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which rows match a query, that narrowing a previous result as the user types gives the
+ * same rows as searching from scratch, and that each keystroke on a big feed is answered well
+ * within a frame.
+ */
+public class CakeSearchIndexTest {
+
+    private static final List<Cake> CAKES = Arrays.asList(
+            new Cake("Chocolate Fudge Cake", "Rich, dark and gooey", null, 0),
+            new Cake("Lemon cheesecake", "Zesty - with a biscuit base", null, 1),
+            new Cake("Carrot cake", null, null, 2),
+            new Cake("Banana cake", "Chocolate chips on top", null, 3),
+            new Cake("Victoria sponge", "Jam and cream", null, 4));
+
+    //A frame at 60fps
+    private static final long FRAME_NANOS = 16000000L;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("cakes", ".catalogue");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void wordsMatchByTheirStart() {
+        CakeSearchIndex index = CakeSearchIndex.build(CAKES);
+        assertRows(index.search("choc"), 0, 3);
+        assertRows(index.search("cake"), 0, 2, 3);
+        assertRows(index.search("cheese"), 1);
+        //Only the start of a word, not the middle
+        assertRows(index.search("ake"));
+        assertRows(index.search("xyz"));
+    }
+
+    @Test
+    public void everyWordOfTheQueryMustMatch() {
+        CakeSearchIndex index = CakeSearchIndex.build(CAKES);
+        assertRows(index.search("choc cake"), 0, 3);
+        assertRows(index.search("choc fudge"), 0);
+        assertRows(index.search("chips banana"), 3);
+        assertRows(index.search("choc sponge"));
+    }
+
+    @Test
+    public void caseAndPunctuationAreIgnored() {
+        CakeSearchIndex index = CakeSearchIndex.build(CAKES);
+        assertRows(index.search("CHOCOLATE"), 0, 3);
+        assertRows(index.search("  zesty, biscuit! "), 1);
+        assertRows(index.search("rich-dark"), 0);
+    }
+
+    @Test
+    public void anEmptyQueryMatchesEverything() {
+        CakeSearchIndex index = CakeSearchIndex.build(CAKES);
+        CakeSearchIndex.Result result = index.search(" - ");
+        assertTrue(result.isEverything());
+        assertRows(result, 0, 1, 2, 3, 4);
+        assertFalse(index.search("cake").isEverything());
+    }
+
+    @Test
+    public void aCatalogueIsIndexedTheSameAsAList() throws IOException {
+        CakeCatalogue catalogue = writeAndMap(CAKES);
+        CakeSearchIndex index = CakeSearchIndex.build(catalogue);
+        assertTrue(index.isFor(catalogue));
+        assertFalse(index.isFor(CAKES));
+        assertEquals(CakeSearchIndex.build(CAKES).getWordCount(), index.getWordCount());
+        assertRows(index.search("choc cake"), 0, 3);
+        assertRows(index.search("jam"), 4);
+        //Indexing reads the strings without leaving them decoded
+        assertEquals(0, catalogue.getDecodedStringCount());
+    }
+
+    @Test
+    public void typingNarrowsToTheSameRowsAsSearchingAgain() {
+        List<Cake> cakes = syntheticFeed(2000, new Random(42));
+        CakeSearchIndex index = CakeSearchIndex.build(cakes);
+        String[] queries = {"c", "ch", "cho", "choc", "choc ", "choc c", "choc ca", "choc car",
+                //Backspacing and retyping can't narrow, so these start again
+                "choc ca", "choc c", "choc ch", "choc che", "vanilla", "v"};
+        CakeSearchIndex.Result previous = null;
+        for (String query : queries) {
+            CakeSearchIndex.Result narrowed = index.search(query, previous);
+            assertSameRows(query, bruteForce(cakes, query), narrowed);
+            assertSameRows(query, index.search(query), narrowed);
+            previous = narrowed;
+        }
+    }
+
+    @Test
+    public void eachKeystrokeTakesLessThanAFrameOn50kRows() {
+        List<Cake> cakes = syntheticFeed(50000, new Random(7));
+        CakeSearchIndex index = CakeSearchIndex.build(cakes);
+        String query = "chocolate cake with cream";
+        //The best of a few goes, so a pause for garbage collection doesn't fail the test
+        for (int run = 0; run < 5; run++) {
+            long slowest = 0;
+            CakeSearchIndex.Result previous = null;
+            for (int i = 1; i <= query.length(); i++) {
+                long start = System.nanoTime();
+                previous = index.search(query.substring(0, i), previous);
+                slowest = Math.max(slowest, System.nanoTime() - start);
+            }
+            if (slowest < FRAME_NANOS) {
+                return;
+            }
+        }
+        throw new AssertionError("A keystroke took a frame or more in every run");
+    }
+
+    private static List<Cake> syntheticFeed(int rows, Random random) {
+        String[] flavours = {"Chocolate", "Lemon", "Carrot", "Vanilla", "Cherry", "Coffee",
+                "Caramel", "Cheese", "Coconut", "Strawberry"};
+        String[] kinds = {"cake", "sponge", "tart", "cupcake", "roll", "gateau", "brownie"};
+        String[] extras = {"with cream", "with cherries", "and chocolate chips",
+                "with caramel sauce", "topped with nuts", "with vanilla icing"};
+        List<Cake> cakes = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            String title = flavours[random.nextInt(flavours.length)] + " "
+                    + kinds[random.nextInt(kinds.length)] + " " + random.nextInt(500);
+            String desc = random.nextInt(4) == 0 ? null
+                    : "Baked fresh " + extras[random.nextInt(extras.length)];
+            cakes.add(new Cake(title, desc, null, i));
+        }
+        return cakes;
+    }
+
+    /**
+     * @return the rows matching a query, worked out the slow way
+     */
+    private static int[] bruteForce(List<Cake> cakes, String query) {
+        List<String> terms = new ArrayList<>();
+        CakeSearchIndex.tokenize(query, terms);
+        List<Integer> rows = new ArrayList<>();
+        for (int row = 0; row < cakes.size(); row++) {
+            List<String> words = new ArrayList<>();
+            Cake cake = cakes.get(row);
+            CakeSearchIndex.tokenize(cake.getTitle(), words);
+            if (cake.getDesc() != null) {
+                CakeSearchIndex.tokenize(cake.getDesc(), words);
+            }
+            boolean matched = true;
+            for (String term : terms) {
+                boolean found = false;
+                for (String word : words) {
+                    found |= word.startsWith(term);
+                }
+                matched &= found;
+            }
+            if (matched) {
+                rows.add(row);
+            }
+        }
+        int[] result = new int[rows.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = rows.get(i);
+        }
+        return result;
+    }
+
+    private static void assertRows(CakeSearchIndex.Result result, int... expected) {
+        assertSameRows("", expected, result);
+    }
+
+    private static void assertSameRows(String query, CakeSearchIndex.Result expected,
+                                       CakeSearchIndex.Result actual) {
+        int[] rows = new int[expected.size()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = expected.getRow(i);
+        }
+        assertSameRows(query, rows, actual);
+    }
+
+    private static void assertSameRows(String query, int[] expected,
+                                       CakeSearchIndex.Result actual) {
+        int[] rows = new int[actual.size()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = actual.getRow(i);
+        }
+        assertEquals("\"" + query + "\"", Arrays.toString(expected), Arrays.toString(rows));
+    }
+
+    private CakeCatalogue writeAndMap(List<Cake> cakes) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(mFile)));
+        CakeCatalogue.write(cakes, out);
+        out.close();
+        return CakeCatalogue.map(mFile);
+    }
+}
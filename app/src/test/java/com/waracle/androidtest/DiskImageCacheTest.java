@@ -0,0 +1,96 @@
+package com.waracle.androidtest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks which entries are evicted when a new one needs room, and that an entry too big for the
+ * cache is turned away rather than emptying it.
+ */
+public class DiskImageCacheTest {
+
+    private static final long MAX_BYTES = 1000;
+
+    private File mDirectory;
+    private DiskImageCache mCache;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("disk-cache", "");
+        mDirectory.delete();
+        mCache = new DiskImageCache(mDirectory, MAX_BYTES);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void olderEntriesAreEvictedToMakeRoom() throws IOException {
+        put("a", 400);
+        put("b", 400);
+        File c = put("c", 400);
+        assertNull(mCache.get("a"));
+        assertNotNull(mCache.get("b"));
+        assertTrue(c.exists());
+        assertEquals(800, mCache.size());
+        assertEquals(1, mCache.evictionCount());
+    }
+
+    @Test
+    public void anEntryAsBigAsTheCacheEvictsEverythingElseButItself() throws IOException {
+        put("a", 100);
+        File big = put("big", MAX_BYTES);
+        assertTrue(big.exists());
+        assertEquals(big, mCache.get("big"));
+        assertNull(mCache.get("a"));
+        assertEquals(MAX_BYTES, mCache.size());
+    }
+
+    @Test
+    public void anEntryBiggerThanTheCacheIsRejected() throws IOException {
+        put("a", 100);
+        try {
+            put("too big", MAX_BYTES + 1);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            //Expected
+        }
+        assertNull(mCache.get("too big"));
+        assertNotNull(mCache.get("a"));
+        assertEquals(100, mCache.size());
+        assertEquals(0, mCache.evictionCount());
+    }
+
+    @Test
+    public void replacingAnEntryOnlyNeedsRoomForTheDifference() throws IOException {
+        put("a", 500);
+        put("b", 400);
+        put("b", 500);
+        assertNotNull(mCache.get("a"));
+        assertEquals(1000, mCache.size());
+        assertEquals(0, mCache.evictionCount());
+    }
+
+    private File put(String url, long length) throws IOException {
+        return mCache.put(url, new ByteArrayInputStream(new byte[(int) length]), Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,91 @@
+package com.waracle.androidtest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class FeedSnapshotTest {
+
+    private File mFile;
+    private FeedSnapshot mSnapshot;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("feed", ".snapshot");
+        mFile.delete();
+        mSnapshot = new FeedSnapshot(mFile);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void missingSnapshotReadsAsNull() throws IOException {
+        assertNull(mSnapshot.read());
+    }
+
+    @Test
+    public void roundTripKeepsCakesAndIds() throws IOException {
+        List<Cake> cakes = Arrays.asList(
+                new Cake("Lemon cheesecake", "A cheesecake made of lemon", "http://a/1.jpg", 0),
+                new Cake("Lemon cheesecake", "A cheesecake made of lemon", "http://a/1.jpg", 1),
+                new Cake("Victoria sponge", null, null, 0),
+                new Cake("Banana cake", "Donkey kongs favourite \u00e9\u4e2d", "", 0));
+        mSnapshot.write(cakes);
+
+        List<Cake> read = mSnapshot.read();
+        assertEquals(cakes, read);
+        for (int i = 0; i < cakes.size(); i++) {
+            assertEquals(cakes.get(i).getId(), read.get(i).getId());
+        }
+    }
+
+    @Test
+    public void writeReplacesThePreviousSnapshot() throws IOException {
+        mSnapshot.write(Arrays.asList(new Cake("Old", "", "", 0)));
+        List<Cake> cakes = new ArrayList<>();
+        mSnapshot.write(cakes);
+        assertEquals(cakes, mSnapshot.read());
+    }
+
+    @Test
+    public void truncatedSnapshotFailsToRead() throws IOException {
+        mSnapshot.write(Arrays.asList(new Cake("Lemon cheesecake", "desc", "http://a/1.jpg", 0)));
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(file.length() - 4);
+        file.close();
+        try {
+            mSnapshot.read();
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void foreignFileFailsToRead() throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write("[{\"title\":\"not a snapshot\"}]".getBytes("UTF-8"));
+        out.close();
+        try {
+            mSnapshot.read();
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            //Expected
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.waracle.androidtest;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramMetricsTest {
+
+    @Test
+    public void percentilesAreBucketUpperBounds() {
+        HistogramMetrics metrics = new HistogramMetrics();
+        //90 fast decodes of 3us and 10 slow ones of 5ms
+        for (int i = 0; i < 90; i++) {
+            metrics.recordTime(Metrics.TIMER_DECODE, 3000);
+        }
+        for (int i = 0; i < 10; i++) {
+            metrics.recordTime(Metrics.TIMER_DECODE, 5000000);
+        }
+
+        assertEquals(100, metrics.getCount(Metrics.TIMER_DECODE));
+        assertEquals(4, metrics.getPercentileMicros(Metrics.TIMER_DECODE, 50));
+        assertEquals(4, metrics.getPercentileMicros(Metrics.TIMER_DECODE, 90));
+        assertEquals(8192, metrics.getPercentileMicros(Metrics.TIMER_DECODE, 99));
+        assertEquals(5000000, metrics.getMaxNanos(Metrics.TIMER_DECODE));
+        assertEquals(0, metrics.getPercentileMicros(Metrics.TIMER_BIND, 50));
+    }
+
+    @Test
+    public void countersGaugesAndErrorsAreDumped() {
+        HistogramMetrics metrics = new HistogramMetrics();
+        metrics.count(Metrics.COUNTER_IMAGE_MEMORY_HIT, 1);
+        metrics.count(Metrics.COUNTER_IMAGE_MEMORY_HIT, 1);
+        metrics.count(Metrics.COUNTER_BYTES_TRANSFERRED, 2048);
+        metrics.setGauge(Metrics.GAUGE_BITMAP_CACHE_BYTES, 100);
+        metrics.setGauge(Metrics.GAUGE_BITMAP_CACHE_BYTES, 50);
+        metrics.recordError("http://a/1.jpg", new IOException("HTTP 404"));
+
+        assertEquals(2, metrics.getCounter(Metrics.COUNTER_IMAGE_MEMORY_HIT));
+        assertEquals(50, metrics.getGauge(Metrics.GAUGE_BITMAP_CACHE_BYTES));
+        String dump = metrics.toString();
+        assertTrue(dump.contains("image memory hits: 2"));
+        assertTrue(dump.contains("bytes transferred: 2048"));
+        assertTrue(dump.contains("bitmap cache bytes: 50"));
+        assertTrue(dump.contains("http://a/1.jpg: java.io.IOException: HTTP 404"));
+
+        metrics.reset();
+        assertEquals(0, metrics.getCounter(Metrics.COUNTER_IMAGE_MEMORY_HIT));
+    }
+
+    @Test
+    public void noneRecordsNothing() {
+        //Only has to not throw
+        Metrics.NONE.recordTime(Metrics.TIMER_BIND, 1000);
+        Metrics.NONE.count(Metrics.COUNTER_FEED_ERROR, 1);
+        Metrics.NONE.setGauge(Metrics.GAUGE_BITMAP_POOL_BYTES, 1);
+        Metrics.NONE.recordError("feed", null);
+    }
+}
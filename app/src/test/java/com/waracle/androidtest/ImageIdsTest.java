@@ -0,0 +1,47 @@
+package com.waracle.androidtest;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the ids given to image urls, and that the memory cache keys built from them never
+ * collide - an image at one size, the same image at another and its preview are all separate
+ * entries.
+ */
+public class ImageIdsTest {
+
+    @Test
+    public void urlsKeepTheirIds() {
+        int id = ImageIds.getId("http://example.com/ids/1.jpg");
+        assertEquals(id, ImageIds.getId("http://example.com/ids/1.jpg"));
+        assertNotEquals(id, ImageIds.getId("http://example.com/ids/2.jpg"));
+        assertEquals("http://example.com/ids/1.jpg", ImageIds.getUrl(id));
+        assertEquals(ImageIds.NO_IMAGE, ImageIds.getId(""));
+        assertEquals(ImageIds.NO_IMAGE, ImageIds.getId(null));
+    }
+
+    @Test
+    public void cacheAndPreviewKeysAreAllDistinct() {
+        int[] ids = {0, 1, ImageIds.getId("http://example.com/ids/3.jpg"), Integer.MAX_VALUE};
+        int[] sizes = {0, 1, 128, 384, 4096, 32767};
+        Set<Long> keys = new HashSet<>();
+        int count = 0;
+        for (int id : ids) {
+            for (int width : sizes) {
+                for (int height : sizes) {
+                    keys.add(ImageIds.getCacheKey(id, width, height));
+                    keys.add(ImageIds.getPreviewKey(id, width, height));
+                    count += 2;
+                }
+            }
+        }
+        assertEquals(count, keys.size());
+        assertTrue(ImageIds.getPreviewKey(1, 128, 128) != ImageIds.getCacheKey(1, 128, 128));
+    }
+}
@@ -0,0 +1,171 @@
+package com.waracle.androidtest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the stand-in server slows down and fails requests the way the load tests rely on, and
+ * that the synthetic feeds and images it serves are what the app expects.
+ */
+public class LocalHttpServerTest {
+
+    private static final String PATH = "/images/1.png";
+
+    private LocalHttpServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new LocalHttpServer();
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void latencyDelaysEveryResponse() throws IOException {
+        mServer.setResource(PATH, SyntheticContent.imageResource(new byte[10], 1));
+        mServer.setLatencyMillis(200);
+
+        long start = System.nanoTime();
+        assertEquals(10, fetch(PATH).length);
+        assertTrue(System.nanoTime() - start >= 200000000L);
+    }
+
+    @Test
+    public void bandwidthLimitsTheTransfer() throws IOException {
+        byte[] body = new byte[50 * 1024];
+        mServer.setResource(PATH, SyntheticContent.imageResource(body, 1));
+        mServer.setBytesPerSecond(100 * 1024);
+
+        long start = System.nanoTime();
+        assertArrayEquals(body, fetch(PATH));
+        //Half a second for the body, less a little for the first chunk going straight out
+        assertTrue(System.nanoTime() - start >= 450000000L);
+    }
+
+    @Test
+    public void failingPathsAreTheSameEveryTime() throws Exception {
+        mServer.setErrors("/images/", 0.1, LocalHttpServer.ERROR_STATUS);
+        LocalHttpServer other = new LocalHttpServer();
+        other.setErrors("/images/", 0.1, LocalHttpServer.ERROR_STATUS);
+
+        int failing = 0;
+        for (int i = 0; i < 1000; i++) {
+            String path = "/images/" + i + ".png";
+            assertEquals(mServer.isFailing(path), other.isFailing(path));
+            if (mServer.isFailing(path)) {
+                failing++;
+            }
+        }
+        other.shutdown();
+        assertTrue("failing " + failing, failing > 60 && failing < 140);
+        assertFalse(mServer.isFailing("/feed.json"));
+    }
+
+    @Test
+    public void statusErrorsAre500() throws IOException {
+        mServer.setErrors("/images/", 0.5, LocalHttpServer.ERROR_STATUS);
+        String path = failingPath();
+        mServer.setResource(path, SyntheticContent.imageResource(new byte[10], 1));
+
+        HttpURLConnection connection = open(path);
+        assertEquals(500, connection.getResponseCode());
+        connection.disconnect();
+        assertEquals(1, mServer.getErrorCount());
+    }
+
+    @Test
+    public void disconnectErrorsCutTheBodyShort() throws IOException {
+        mServer.setErrors("/images/", 0.5, LocalHttpServer.ERROR_DISCONNECT);
+        String path = failingPath();
+        mServer.setResource(path, SyntheticContent.imageResource(new byte[1000], 1));
+
+        HttpURLConnection connection = open(path);
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(1000, connection.getContentLength());
+        try {
+            //Depending on the client the short body either fails or simply ends early
+            byte[] body = StreamUtils.readUnknownFully(connection.getInputStream());
+            assertEquals(500, body.length);
+        } catch (IOException e) {
+            //Also fine
+        }
+        connection.disconnect();
+    }
+
+    @Test
+    public void pngsDecodeAtTheirSize() throws IOException {
+        byte[] png = SyntheticContent.png(123, 45, 7);
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        assertEquals(123, image.getWidth());
+        assertEquals(45, image.getHeight());
+        //The same seed gives the same image, another gives a different one
+        assertArrayEquals(png, SyntheticContent.png(123, 45, 7));
+        assertFalse(Arrays.equals(png, SyntheticContent.png(123, 45, 8)));
+    }
+
+    @Test
+    public void servedFeedPointsAtServedImages() throws IOException {
+        String feedUrl = SyntheticContent.serve(mServer, "/feed.json", 25, "/images/", 5, 16, 16);
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(feedUrl).openConnection();
+        CakeFeedParser parser = new CakeFeedParser(
+                new InputStreamReader(connection.getInputStream(), "UTF-8"));
+        int rows = 0;
+        Cake cake;
+        while ((cake = parser.next()) != null) {
+            assertEquals("Cake " + rows, cake.getTitle());
+            assertEquals(mServer.url("/images/" + rows % 5 + ".png"), cake.getImage());
+            rows++;
+        }
+        connection.disconnect();
+        assertEquals(25, rows);
+        assertEquals(16, ImageIO.read(new URL(mServer.url("/images/4.png"))).getWidth());
+    }
+
+    /**
+     * @return an image path that setErrors has picked to fail
+     */
+    private String failingPath() {
+        for (int i = 0; ; i++) {
+            String path = "/images/" + i + ".png";
+            if (mServer.isFailing(path)) {
+                return path;
+            }
+        }
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        return (HttpURLConnection) new URL(mServer.url(path)).openConnection();
+    }
+
+    private byte[] fetch(String path) throws IOException {
+        HttpURLConnection connection = open(path);
+        InputStream in = connection.getInputStream();
+        try {
+            return StreamUtils.readFully(in, connection.getContentLength(), 1024 * 1024);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.waracle.androidtest;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Simulates each trim level and checks how much is left in a cache afterwards - a share while
+ * the app is running, half once its UI is hidden and nothing once it is in the background.
+ */
+public class MemoryTrimmerTest {
+
+    private static final int[] LEVELS = {
+            ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE,
+            ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW,
+            ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL,
+            ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN,
+            ComponentCallbacks2.TRIM_MEMORY_BACKGROUND,
+            ComponentCallbacks2.TRIM_MEMORY_MODERATE,
+            ComponentCallbacks2.TRIM_MEMORY_COMPLETE};
+    //What is left of 1000 at each of the levels above
+    private static final int[] EXPECTED = {750, 500, 250, 500, 0, 0, 0};
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("cakes", ".catalogue");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void eachLevelKeepsItsShare() {
+        for (int i = 0; i < LEVELS.length; i++) {
+            assertEquals("level " + LEVELS[i], EXPECTED[i],
+                    MemoryTrimmer.getTrimmedSize(1000, LEVELS[i]));
+        }
+        //A level this doesn't know about leaves the cache alone
+        assertEquals(1000, MemoryTrimmer.getTrimmedSize(1000, 0));
+    }
+
+    @Test
+    public void largeCachesDoNotOverflow() {
+        assertEquals(1610612735, MemoryTrimmer.getTrimmedSize(
+                Integer.MAX_VALUE, ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE));
+    }
+
+    @Test
+    public void decodedStringsAreTrimmedAtEachLevel() throws IOException {
+        List<Cake> cakes = new ArrayList<>();
+        //Ten distinct titles and urls, and a shared description, 21 strings
+        for (int i = 0; i < 100; i++) {
+            cakes.add(new Cake("Cake " + (i % 10), "Synthetic", "http://a/" + (i % 10) + ".jpg",
+                    i));
+        }
+        CakeCatalogue catalogue = writeAndMap(cakes);
+        int strings = catalogue.getStringCount();
+        assertEquals(21, strings);
+        assertEquals(0, catalogue.getDecodedStringCount());
+
+        for (int level : LEVELS) {
+            //Bind every row, then take the warning
+            assertEquals(cakes, catalogue);
+            assertEquals(strings, catalogue.getDecodedStringCount());
+            catalogue.trimDecodedStrings(MemoryTrimmer.getTrimmedSize(
+                    catalogue.getDecodedStringCount(), level));
+            assertEquals("level " + level, MemoryTrimmer.getTrimmedSize(strings, level),
+                    catalogue.getDecodedStringCount());
+        }
+        //Trimmed strings come back from the mapping
+        assertEquals(cakes, catalogue);
+    }
+
+    @Test
+    public void theFirstRowsStringsAreKeptLongest() throws IOException {
+        List<Cake> cakes = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            cakes.add(new Cake("Cake " + i, null, null, i));
+        }
+        CakeCatalogue catalogue = writeAndMap(cakes);
+        for (int i = 9; i >= 0; i--) {
+            catalogue.get(i);
+        }
+        catalogue.trimDecodedStrings(2);
+        assertEquals(2, catalogue.getDecodedStringCount());
+        catalogue.get(0);
+        catalogue.get(1);
+        assertEquals(2, catalogue.getDecodedStringCount());
+    }
+
+    private CakeCatalogue writeAndMap(List<Cake> cakes) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(mFile)));
+        CakeCatalogue.write(cakes, out);
+        out.close();
+        return CakeCatalogue.map(mFile);
+    }
+}
@@ -0,0 +1,256 @@
+package com.waracle.androidtest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a full stage holds up whoever is feeding it, and that the room its tasks take is
+ * given back however they finish - run, thrown or cancelled.
+ */
+public class PipelineStageTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    //Holds up the stage's only thread until released
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    private final CountDownLatch mBlockerRunning = new CountDownLatch(1);
+    private final Runnable mBlocker = new Runnable() {
+        @Override
+        public void run() {
+            mBlockerRunning.countDown();
+            try {
+                mRelease.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    };
+
+    private PipelineStage mStage;
+
+    @Before
+    public void setUp() {
+        mStage = new PipelineStage("test", 1, 2);
+    }
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+    }
+
+    @Test
+    public void fullStageMakesTheSubmitterWait() throws Exception {
+        mStage.submit(mBlocker, PriorityExecutor.PRIORITY_VISIBLE);
+        assertTrue(mBlockerRunning.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        mStage.submit(new Noop(), PriorityExecutor.PRIORITY_VISIBLE);
+
+        final CountDownLatch submitted = new CountDownLatch(1);
+        Thread feeder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mStage.submit(new Noop(), PriorityExecutor.PRIORITY_VISIBLE);
+                    submitted.countDown();
+                } catch (InterruptedException e) {
+                    //The test fails on the latch
+                }
+            }
+        });
+        feeder.start();
+        assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, mStage.getQueueDepth());
+
+        mRelease.countDown();
+        assertTrue(submitted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        feeder.join();
+        assertEquals(1, mStage.getBlockedCount());
+        assertTrue(mStage.getBlockedNanos() >= 200000000L);
+        waitForCompleted(3);
+    }
+
+    @Test
+    public void trySubmitSkipsWhenFull() throws Exception {
+        mStage.submit(mBlocker, PriorityExecutor.PRIORITY_VISIBLE);
+        assertNotNull(mStage.trySubmit(new Noop(), PriorityExecutor.PRIORITY_VISIBLE));
+        assertNull(mStage.trySubmit(new Noop(), PriorityExecutor.PRIORITY_VISIBLE));
+        assertEquals(0, mStage.getBlockedCount());
+    }
+
+    @Test
+    public void cancellingAQueuedTaskGivesItsRoomBack() throws Exception {
+        mStage.submit(mBlocker, PriorityExecutor.PRIORITY_VISIBLE);
+        assertTrue(mBlockerRunning.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Noop cancelled = new Noop();
+        Future<?> future = mStage.submit(cancelled, PriorityExecutor.PRIORITY_VISIBLE);
+        assertNull(mStage.trySubmit(new Noop(), PriorityExecutor.PRIORITY_VISIBLE));
+
+        assertTrue(mStage.cancel(future));
+        assertEquals(0, mStage.getQueueDepth());
+        Noop next = new Noop();
+        assertNotNull(mStage.trySubmit(next, PriorityExecutor.PRIORITY_VISIBLE));
+
+        mRelease.countDown();
+        waitForCompleted(2);
+        assertFalse(cancelled.mRan);
+        assertTrue(next.mRan);
+        //Cancelled already, so its room is not given back twice
+        assertFalse(mStage.cancel(future));
+    }
+
+    @Test
+    public void failedTasksGiveTheirRoomBack() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            mStage.submit(new Runnable() {
+                @Override
+                public void run() {
+                    throw new IllegalStateException("Failed");
+                }
+            }, PriorityExecutor.PRIORITY_VISIBLE);
+        }
+        waitForCompleted(5);
+        assertNotNull(mStage.trySubmit(new Noop(), PriorityExecutor.PRIORITY_VISIBLE));
+        assertNotNull(mStage.trySubmit(new Noop(), PriorityExecutor.PRIORITY_VISIBLE));
+    }
+
+    @Test
+    public void resubmittedTasksRunAtTheirNewPriority() throws Exception {
+        mStage = new PipelineStage("test", 1, 3);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        mStage.submit(mBlocker, PriorityExecutor.PRIORITY_VISIBLE);
+        assertTrue(mBlockerRunning.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Runnable prefetch = new Recorder(order, "prefetch");
+        Future<?> future = mStage.submit(prefetch, PriorityExecutor.PRIORITY_PREFETCH);
+        mStage.submit(new Recorder(order, "other prefetch"), PriorityExecutor.PRIORITY_PREFETCH);
+
+        assertFalse(mStage.hasStarted(future));
+        //The row scrolled into view, so it goes ahead of the other prefetch, in the same room
+        Future<?> resubmitted = mStage.resubmit(future, prefetch,
+                PriorityExecutor.PRIORITY_VISIBLE);
+        assertTrue(resubmitted != future);
+        assertEquals(2, mStage.getQueueDepth());
+
+        mRelease.countDown();
+        waitForCompleted(3);
+        assertEquals(Arrays.asList("prefetch", "other prefetch"), order);
+        //Already run, so it stays as it was
+        assertTrue(mStage.resubmit(resubmitted, prefetch, PriorityExecutor.PRIORITY_PREFETCH)
+                == resubmitted);
+        assertEquals(3, mStage.getCompletedCount());
+    }
+
+    @Test
+    public void cancellingARunningTaskLeavesItsRoomUntilItFinishes() throws Exception {
+        Future<?> future = mStage.submit(mBlocker, PriorityExecutor.PRIORITY_VISIBLE);
+        assertTrue(mBlockerRunning.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        assertFalse(mStage.cancel(future));
+        assertEquals(1, mStage.getAvailableRoom());
+        //Still full with the running task and one more
+        assertNotNull(mStage.trySubmit(new Noop(), PriorityExecutor.PRIORITY_VISIBLE));
+        assertNull(mStage.trySubmit(new Noop(), PriorityExecutor.PRIORITY_VISIBLE));
+
+        mRelease.countDown();
+        waitForCompleted(2);
+        assertEquals(2, mStage.getAvailableRoom());
+    }
+
+    @Test
+    public void cancellingRunningTasksOnAnUnboundedStageDoesNotOverflow() throws Exception {
+        mStage = new PipelineStage("test", 2, PipelineStage.UNBOUNDED);
+        final CountDownLatch running = new CountDownLatch(2);
+        Runnable blocker = new Runnable() {
+            @Override
+            public void run() {
+                running.countDown();
+                mBlocker.run();
+            }
+        };
+        Future<?> first = mStage.submit(blocker, PriorityExecutor.PRIORITY_VISIBLE);
+        Future<?> second = mStage.submit(blocker, PriorityExecutor.PRIORITY_VISIBLE);
+        assertTrue(running.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        //Giving back room the running tasks still hold would go past Integer.MAX_VALUE
+        assertFalse(mStage.cancel(first));
+        assertFalse(mStage.cancel(second));
+
+        mRelease.countDown();
+        waitForCompleted(2);
+        assertEquals(PipelineStage.UNBOUNDED, mStage.getAvailableRoom());
+    }
+
+    @Test
+    public void resubmittingARunningTaskDoesNotRunItAgain() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                mBlocker.run();
+            }
+        };
+        Future<?> future = mStage.submit(task, PriorityExecutor.PRIORITY_PREFETCH);
+        assertTrue(mBlockerRunning.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        assertTrue(mStage.hasStarted(future));
+        assertTrue(mStage.resubmit(future, task, PriorityExecutor.PRIORITY_VISIBLE) == future);
+        assertEquals(0, mStage.getQueueDepth());
+
+        mRelease.countDown();
+        waitForCompleted(1);
+        //Give a second run, if one had been queued, the chance to happen
+        Thread.sleep(100);
+        assertEquals(1, runs.get());
+        assertEquals(1, mStage.getCompletedCount());
+        assertEquals(2, mStage.getAvailableRoom());
+    }
+
+    private void waitForCompleted(long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (mStage.getCompletedCount() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, mStage.getCompletedCount());
+    }
+
+    private static class Noop implements Runnable {
+
+        volatile boolean mRan;
+
+        @Override
+        public void run() {
+            mRan = true;
+        }
+    }
+
+    private static class Recorder implements Runnable {
+
+        private final List<String> mOrder;
+        private final String mName;
+
+        Recorder(List<String> order, String name) {
+            mOrder = order;
+            mName = name;
+        }
+
+        @Override
+        public void run() {
+            mOrder.add(mName);
+        }
+    }
+}
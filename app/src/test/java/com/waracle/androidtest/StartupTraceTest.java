@@ -0,0 +1,150 @@
+package com.waracle.androidtest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Goes through launches the way MainActivity reports them and checks the timeline and the
+ * summaries dump prints for them.
+ */
+public class StartupTraceTest {
+
+    @Before
+    public void setUp() {
+        StartupTrace.reset();
+    }
+
+    @After
+    public void tearDown() {
+        StartupTrace.reset();
+    }
+
+    @Test
+    public void theFirstLaunchIsColdAndTheRestAreWarm() {
+        launch(null);
+        launch("eager init");
+        List<String> history = StartupTrace.getHistory();
+        assertEquals(2, history.size());
+        assertTrue(history.get(0), history.get(0).startsWith("Cold start: "));
+        assertTrue(history.get(1), history.get(1).startsWith("Warm start (eager init): "));
+        assertTrue(history.get(1), history.get(1).contains("ms to first frame, "));
+        assertTrue(history.get(1), history.get(1).endsWith("ms to first row"));
+    }
+
+    @Test
+    public void aLaunchWithoutRowsIsFinishedByTheNext() {
+        StartupTrace.beginLaunch(null);
+        StartupTrace.mark(StartupTrace.FIRST_FRAME);
+        assertEquals(0, StartupTrace.getHistory().size());
+        StartupTrace.beginLaunch(null);
+        List<String> history = StartupTrace.getHistory();
+        assertEquals(1, history.size());
+        assertTrue(history.get(0), history.get(0).endsWith("no time to first row"));
+    }
+
+    @Test
+    public void onlyTheLastTenLaunchesAreKept() {
+        for (int i = 0; i < 12; i++) {
+            launch(String.valueOf(i));
+        }
+        List<String> history = StartupTrace.getHistory();
+        assertEquals(10, history.size());
+        assertTrue(history.get(0), history.get(0).startsWith("Warm start (2)"));
+    }
+
+    @Test
+    public void sectionsAreNestedInTheTimelineInTheOrderTheyBegan() throws Exception {
+        StartupTrace.beginLaunch(null);
+        StartupTrace.beginSection("onCreate");
+        StartupTrace.beginSection("setContentView");
+        StartupTrace.endSection();
+        StartupTrace.endSection();
+        Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                StartupTrace.beginSection("parse feed");
+                StartupTrace.endSection();
+            }
+        }, "loader");
+        loader.start();
+        loader.join();
+        StartupTrace.beginSection("onLoadFinished");
+        StartupTrace.mark(StartupTrace.FIRST_FRAME);
+
+        String[] lines = dump().split("\n");
+        assertEquals(Arrays.toString(lines), 7, lines.length);
+        assertTrue(lines[0], lines[0].endsWith(", still going"));
+        assertTrue(lines[2], lines[2].matches(" +\\d+ +\\+\\d+  main +onCreate"));
+        assertTrue(lines[3], lines[3].matches(" +\\d+ +\\+\\d+  main +  setContentView"));
+        assertTrue(lines[4], lines[4].matches(" +\\d+ +\\+\\d+  loader +parse feed"));
+        assertTrue(lines[5], lines[5].matches(" +\\d+ +open  main +onLoadFinished"));
+        //Inside onLoadFinished, but a mark isn't part of any section
+        assertTrue(lines[6], lines[6].matches(" +\\d+ +main +first frame"));
+        StartupTrace.endSection();
+    }
+
+    @Test
+    public void nothingIsRecordedOutsideALaunch() {
+        StartupTrace.beginSection("before any launch");
+        StartupTrace.mark("also before");
+        StartupTrace.endSection();
+        launch(null);
+        StartupTrace.beginSection("after the first row");
+        StartupTrace.mark(StartupTrace.FIRST_FRAME);
+        StartupTrace.endSection();
+
+        String dump = dump();
+        assertTrue(dump, !dump.contains("before") && !dump.contains("after"));
+        //The timeline's, the summary has one too but doesn't end with it
+        assertEquals(1, countLinesEndingWith(dump, "first frame"));
+    }
+
+    @Test
+    public void endingASectionThatWasNeverBegunFails() {
+        try {
+            StartupTrace.endSection();
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException e) {
+            //Expected
+        }
+    }
+
+    private static void launch(String mode) {
+        StartupTrace.beginLaunch(mode);
+        StartupTrace.beginSection("onCreate");
+        StartupTrace.endSection();
+        StartupTrace.mark(StartupTrace.FIRST_FRAME);
+        //Only the first of each counts
+        StartupTrace.mark(StartupTrace.FIRST_FRAME);
+        StartupTrace.mark(StartupTrace.FIRST_ROW);
+        StartupTrace.mark(StartupTrace.FIRST_ROW);
+    }
+
+    private static String dump() {
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        StartupTrace.dump("", writer);
+        writer.flush();
+        return out.toString().replace("\r", "");
+    }
+
+    private static int countLinesEndingWith(String text, String end) {
+        int count = 0;
+        for (String line : text.split("\n")) {
+            if (line.endsWith(end)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,56 @@
+package com.waracle.androidtest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class StringPoolTest {
+
+    @Test
+    public void equalValuesShareOneString() {
+        StringPool pool = new StringPool();
+        String first = pool.intern(new StringBuilder("Lemon cheesecake"));
+        String second = pool.intern(new StringBuilder("Lemon cheesecake"));
+        String other = pool.intern(new StringBuilder("Victoria sponge"));
+
+        assertSame(first, second);
+        assertNotSame(first, other);
+        assertEquals("Lemon cheesecake", first);
+        assertEquals(2, pool.size());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(2, pool.getMissCount());
+    }
+
+    @Test
+    public void valuesSurviveTheTableGrowing() {
+        StringPool pool = new StringPool();
+        String[] values = new String[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = pool.intern("cake " + i);
+        }
+        for (int i = 0; i < values.length; i++) {
+            assertSame(values[i], pool.intern(new StringBuilder("cake ").append(i)));
+        }
+        assertEquals(values.length, pool.size());
+    }
+
+    @Test
+    public void collidingHashesAreKeptApart() {
+        //"Aa" and "BB" have the same String.hashCode
+        StringPool pool = new StringPool();
+        String aa = pool.intern("Aa");
+        String bb = pool.intern("BB");
+        assertEquals("Aa", aa);
+        assertEquals("BB", bb);
+        assertSame(aa, pool.intern(new StringBuilder("Aa")));
+        assertSame(bb, pool.intern(new StringBuilder("BB")));
+    }
+
+    @Test
+    public void emptyStringIsPooled() {
+        StringPool pool = new StringPool();
+        assertSame(pool.intern(""), pool.intern(new StringBuilder()));
+    }
+}
@@ -0,0 +1,63 @@
+package com.waracle.androidtest.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs every benchmark and prints a table of the results.
+ *
+ *   --quick   shorter warmup and iterations, to check the benchmarks run rather than to compare
+ *   any other argument runs only the benchmarks whose names contain it, e.g. "feed" or "search"
+ *
+ * Numbers are only comparable between runs on the same machine, so compare a change against
+ * the commit before it rather than against a figure written down elsewhere.
+ */
+public final class BenchmarkMain {
+
+    private BenchmarkMain() {
+        //Run from main
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean quick = false;
+        String filter = null;
+        for (String arg : args) {
+            if ("--quick".equals(arg)) {
+                quick = true;
+            } else if (!arg.isEmpty()) {
+                filter = arg;
+            }
+        }
+
+        Harness harness = quick ? new Harness(200, 200, 3, filter, System.out)
+                : new Harness(2000, 1000, 5, filter, System.out);
+        File directory = createTempDirectory();
+        try {
+            harness.printHeader();
+            StreamBenchmarks.run(harness);
+            FeedBenchmarks.run(harness, directory);
+            CacheBenchmarks.run(harness, directory);
+            SearchBenchmarks.run(harness, directory);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static File createTempDirectory() throws IOException {
+        File directory = File.createTempFile("benchmark", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create " + directory);
+        }
+        return directory;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,88 @@
+package com.waracle.androidtest.benchmark;
+
+import com.waracle.androidtest.DiskImageCache;
+import com.waracle.androidtest.ImageIds;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The lookups on the image path: finding a row's image in the memory cache's key space, which
+ * happens on every bind, getting the url back for a load, and the disk tier's get and put, on one
+ * thread and with several loader threads contending for its lock.
+ *
+ * The memory cache itself is an LruCache of Bitmaps, which needs the Android runtime, so its
+ * lookups are measured here by the keys and maps in front of it. The string keys ImageLoader
+ * used to build for every lookup are kept as a baseline for the int id keys it uses now.
+ */
+public final class CacheBenchmarks {
+
+    private static final int URL_COUNT = 200;
+    private static final int WIDTH = 360;
+    private static final int HEIGHT = 240;
+    private static final int IMAGE_BYTES = 16 * 1024;
+    private static final int[] THREADS = {1, 4};
+
+    private CacheBenchmarks() {
+        //Static methods only
+    }
+
+    public static void run(Harness harness, File directory) throws Exception {
+        final String[] urls = Payloads.imageUrls(URL_COUNT);
+        final Map<String, Object> byString = new HashMap<>();
+        final Map<Long, Object> byId = new HashMap<>();
+        for (String url : urls) {
+            byString.put(url + '#' + WIDTH + 'x' + HEIGHT, url);
+            byId.put(ImageIds.getCacheKey(ImageIds.getId(url), WIDTH, HEIGHT), url);
+        }
+
+        for (int threads : THREADS) {
+            harness.run("lookup.string key (old)", threads, 0, new Harness.Operation() {
+                @Override
+                public long run(long index) {
+                    String url = urls[(int) (index % URL_COUNT)];
+                    return byString.get(url + '#' + WIDTH + 'x' + HEIGHT) != null ? 1 : 0;
+                }
+            });
+            harness.run("lookup.image id key", threads, 0, new Harness.Operation() {
+                @Override
+                public long run(long index) {
+                    String url = urls[(int) (index % URL_COUNT)];
+                    long key = ImageIds.getCacheKey(ImageIds.getId(url), WIDTH, HEIGHT);
+                    return byId.get(key) != null ? 1 : 0;
+                }
+            });
+            harness.run("lookup.url from image id", threads, 0, new Harness.Operation() {
+                @Override
+                public long run(long index) {
+                    return ImageIds.getUrl((int) (index % URL_COUNT)).length();
+                }
+            });
+        }
+
+        final byte[] image = Payloads.randomBytes(IMAGE_BYTES, 1);
+        final DiskImageCache cache = new DiskImageCache(new File(directory, "images"),
+                URL_COUNT * IMAGE_BYTES * 2);
+        for (String url : urls) {
+            cache.put(url, new ByteArrayInputStream(image), IMAGE_BYTES);
+        }
+        for (int threads : THREADS) {
+            harness.run("disk.get", threads, 0, new Harness.Operation() {
+                @Override
+                public long run(long index) throws Exception {
+                    return cache.get(urls[(int) (index % URL_COUNT)]) != null ? 1 : 0;
+                }
+            });
+            harness.run("disk.put 16KB", threads, IMAGE_BYTES, new Harness.Operation() {
+                @Override
+                public long run(long index) throws Exception {
+                    File file = cache.put(urls[(int) (index % URL_COUNT)],
+                            new ByteArrayInputStream(image), IMAGE_BYTES);
+                    return file != null ? 1 : 0;
+                }
+            });
+        }
+    }
+}
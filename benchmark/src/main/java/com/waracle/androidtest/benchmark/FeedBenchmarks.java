@@ -0,0 +1,89 @@
+package com.waracle.androidtest.benchmark;
+
+import com.waracle.androidtest.Cake;
+import com.waracle.androidtest.CakeCatalogue;
+import com.waracle.androidtest.CakeFeedParser;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parsing the feed, as CakeFeedLoader does, and reading rows back out of the mapped catalogue, as
+ * the adapter does on every bind. The parse is measured per feed, so allocation per record is the
+ * alloc column divided by the number of rows.
+ */
+public final class FeedBenchmarks {
+
+    private static final int ROWS = 10000;
+    private static final int DISTINCT_CAKES = 20;
+
+    private FeedBenchmarks() {
+        //Static methods only
+    }
+
+    public static void run(Harness harness, File directory) throws Exception {
+        final byte[] feed = Payloads.feed(ROWS, DISTINCT_CAKES);
+        harness.run("feed.parse 10k rows", 1, feed.length, new Harness.Operation() {
+            @Override
+            public long run(long index) throws Exception {
+                CakeFeedParser parser = new CakeFeedParser(
+                        new InputStreamReader(new ByteArrayInputStream(feed), "UTF-8"));
+                long count = 0;
+                while (parser.next() != null) {
+                    count++;
+                }
+                return count;
+            }
+        });
+
+        final List<Cake> cakes = parse(feed);
+        final File file = new File(directory, "feed.catalogue");
+        harness.run("feed.catalogue write 10k rows", 1, 0, new Harness.Operation() {
+            @Override
+            public long run(long index) throws Exception {
+                return write(cakes, file);
+            }
+        });
+
+        //Written again in case the benchmark above was filtered out
+        write(cakes, file);
+        final CakeCatalogue catalogue = CakeCatalogue.map(file);
+        for (int threads : new int[]{1, 4}) {
+            harness.run("feed.catalogue get", threads, 0, new Harness.Operation() {
+                @Override
+                public long run(long index) {
+                    return catalogue.get((int) (index * 7 % ROWS)).getTitle().length();
+                }
+            });
+        }
+        file.delete();
+    }
+
+    private static long write(List<Cake> cakes, File file) throws Exception {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            CakeCatalogue.write(cakes, out);
+        } finally {
+            out.close();
+        }
+        return file.length();
+    }
+
+    private static List<Cake> parse(byte[] feed) throws Exception {
+        CakeFeedParser parser = new CakeFeedParser(
+                new InputStreamReader(new ByteArrayInputStream(feed), "UTF-8"));
+        List<Cake> cakes = new ArrayList<>();
+        Cake cake;
+        while ((cake = parser.next()) != null) {
+            cakes.add(cake);
+        }
+        return cakes;
+    }
+}
@@ -0,0 +1,185 @@
+package com.waracle.androidtest.benchmark;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A very small benchmark harness in the spirit of JMH, which the app can't depend on. Each
+ * benchmark is an Operation called in a loop, first for a warmup so the JIT has compiled it,
+ * then for a number of timed iterations, on one thread or several at once to measure contention.
+ *
+ * For every benchmark it prints the time per operation (the mean of the iterations, with the
+ * best and worst), the throughput in MB/s when the operation handles a known number of bytes, and
+ * the bytes allocated per operation, from HotSpot's per-thread allocation counter when the JVM
+ * has one.
+ *
+ * Each operation returns a value which is summed into a sink, so the JIT can't decide the work
+ * is unused and remove it.
+ */
+public class Harness {
+
+    /**
+     * One unit of the work being measured. The same Operation is run on every thread, so it
+     * should keep no state of its own - sharing even a counter between threads measures the
+     * cache line bouncing between cores rather than the work.
+     */
+    public interface Operation {
+        /**
+         * @param index how many times this thread has run the operation, to pick which input to
+         *              use
+         * @return anything derived from the work, such as a length or a count
+         */
+        long run(long index) throws Exception;
+    }
+
+    private static volatile long sSink;
+
+    private final long mWarmupNanos;
+    private final long mIterationNanos;
+    private final int mIterations;
+    private final String mFilter;
+    private final PrintStream mOut;
+    private final com.sun.management.ThreadMXBean mThreadBean;
+
+    /**
+     * @param warmupMillis how long to run each benchmark before measuring it
+     * @param iterationMillis how long each timed iteration runs
+     * @param iterations the number of timed iterations
+     * @param filter only benchmarks whose name contains this are run, or null for all of them
+     */
+    public Harness(long warmupMillis, long iterationMillis, int iterations, String filter,
+                   PrintStream out) {
+        mWarmupNanos = warmupMillis * 1000000;
+        mIterationNanos = iterationMillis * 1000000;
+        mIterations = iterations;
+        mFilter = filter;
+        mOut = out;
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            mThreadBean = (com.sun.management.ThreadMXBean) bean;
+            mThreadBean.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            mThreadBean = null;
+        }
+    }
+
+    public void printHeader() {
+        mOut.println("processors: " + Runtime.getRuntime().availableProcessors());
+        mOut.println(String.format(Locale.US, "%-44s %7s %12s %21s %10s %12s", "benchmark",
+                "threads", "ns/op", "(min..max)", "MB/s", "alloc B/op"));
+    }
+
+    /**
+     * Measures an operation, if it passes the filter, and prints the result.
+     * @param name what is being measured
+     * @param threads how many threads run the operation at once
+     * @param bytesPerOp the bytes each operation handles, for MB/s, or 0
+     */
+    public void run(String name, int threads, long bytesPerOp, Operation operation)
+            throws Exception {
+        if (mFilter != null && !name.contains(mFilter)) {
+            return;
+        }
+        measure(threads, mWarmupNanos, operation);
+        double[] nanosPerOp = new double[mIterations];
+        double bytesAllocatedPerOp = 0;
+        for (int i = 0; i < mIterations; i++) {
+            long[] totals = measure(threads, mIterationNanos, operation);
+            //The time each operation took on its thread, contention included
+            nanosPerOp[i] = (double) totals[1] / totals[0];
+            bytesAllocatedPerOp += (double) totals[2] / totals[0] / mIterations;
+        }
+
+        double mean = 0;
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (double value : nanosPerOp) {
+            mean += value / mIterations;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        //Every thread is working at once, so the combined throughput is threads times one's
+        String megabytesPerSecond = bytesPerOp > 0
+                ? String.format(Locale.US, "%.1f", bytesPerOp * threads * 1e3 / mean / 1.048576)
+                : "-";
+        String allocated = mThreadBean != null
+                ? String.format(Locale.US, "%.0f", bytesAllocatedPerOp) : "-";
+        //With more threads than processors they take turns, and the time per operation includes
+        //the time spent waiting for a turn
+        String flag = threads > Runtime.getRuntime().availableProcessors()
+                ? "  (more threads than processors)" : "";
+        mOut.println(String.format(Locale.US, "%-44s %7d %12.1f %21s %10s %12s%s", name, threads,
+                mean, String.format(Locale.US, "(%.1f..%.1f)", min, max), megabytesPerSecond,
+                allocated, flag));
+    }
+
+    /**
+     * Runs the operation on every thread until the time is up.
+     * @return the operations run, the nanoseconds the threads ran for between them, and the
+     * bytes they allocated
+     */
+    private long[] measure(final int threads, final long nanos, final Operation operation)
+            throws Exception {
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[][] results = new long[threads][];
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int index = t;
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ready.countDown();
+                        start.await();
+                        results[index] = loop(operation, nanos);
+                    } catch (Exception e) {
+                        failure.set(e);
+                    }
+                }
+            }, "benchmark-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        ready.await();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        long[] totals = new long[3];
+        for (long[] result : results) {
+            for (int i = 0; i < totals.length; i++) {
+                totals[i] += result[i];
+            }
+        }
+        return totals;
+    }
+
+    private long[] loop(Operation operation, long nanos) throws Exception {
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = mThreadBean != null ? mThreadBean.getThreadAllocatedBytes(threadId)
+                : 0;
+        long sink = 0;
+        long ops = 0;
+        long start = System.nanoTime();
+        long deadline = start + nanos;
+        long now;
+        do {
+            sink += operation.run(ops++);
+        } while ((now = System.nanoTime()) < deadline);
+        long allocated = mThreadBean != null
+                ? mThreadBean.getThreadAllocatedBytes(threadId) - allocatedBefore : 0;
+        sSink += sink;
+        return new long[]{ops, now - start, allocated};
+    }
+}
@@ -0,0 +1,78 @@
+package com.waracle.androidtest.benchmark;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Synthetic inputs for the benchmarks, generated from fixed seeds so every run measures the same
+ * bytes and nothing has to be downloaded.
+ */
+public final class Payloads {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private Payloads() {
+        //Static methods only
+    }
+
+    /**
+     * @return size bytes that don't compress, like an encoded image
+     */
+    public static byte[] randomBytes(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return a feed shaped like the real one: rows that cycle through a few distinct cakes,
+     * with the occasional key the parser has to skip
+     */
+    public static byte[] feed(int rows, int distinctCakes) {
+        StringBuilder feed = new StringBuilder(rows * 200);
+        feed.append('[');
+        for (int i = 0; i < rows; i++) {
+            int cake = i % distinctCakes;
+            if (i > 0) {
+                feed.append(",\n");
+            }
+            feed.append("{\"title\":\"Cake number ").append(cake)
+                    .append("\",\"desc\":\"A description of cake ").append(cake)
+                    .append(", as long as the ones in the real feed \\u00e9\"");
+            if (cake % 5 == 0) {
+                feed.append(",\"rating\":{\"stars\":4.5,\"votes\":[1,2,3]}");
+            }
+            feed.append(",\"image\":\"https://images.example.com/cakes/").append(cake)
+                    .append("/large-photo-of-the-cake.jpg\"}");
+        }
+        feed.append(']');
+        return feed.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * @return count distinct image urls
+     */
+    public static String[] imageUrls(int count) {
+        String[] urls = new String[count];
+        for (int i = 0; i < count; i++) {
+            urls[i] = "https://images.example.com/cakes/" + i + "/large-photo-of-the-cake.jpg";
+        }
+        return urls;
+    }
+
+    /**
+     * Wraps a stream so that no read returns more than chunkSize bytes, the way a socket hands
+     * over a packet or so at a time.
+     */
+    public static InputStream chunked(InputStream in, final int chunkSize) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                return super.read(buffer, offset, Math.min(count, chunkSize));
+            }
+        };
+    }
+}
@@ -0,0 +1,88 @@
+package com.waracle.androidtest.benchmark;
+
+import com.waracle.androidtest.Cake;
+import com.waracle.androidtest.CakeCatalogue;
+import com.waracle.androidtest.CakeFeedParser;
+import com.waracle.androidtest.CakeSearchIndex;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The search box on a big feed: building the index once the feed has loaded, and answering a
+ * query typed a character at a time, both narrowing each result from the last, as the fragment
+ * does, and searching from scratch on every keystroke as a baseline. Each typing operation is
+ * the whole query, so divide its time by the number of characters for a keystroke, which has to
+ * fit well inside a 16ms frame.
+ */
+public final class SearchBenchmarks {
+
+    private static final int ROWS = 50000;
+    private static final int DISTINCT_CAKES = 5000;
+    private static final String QUERY = "cake number 1234 descr";
+
+    private SearchBenchmarks() {
+        //Static methods only
+    }
+
+    public static void run(Harness harness, File directory) throws Exception {
+        final byte[] feed = Payloads.feed(ROWS, DISTINCT_CAKES);
+        List<Cake> cakes = parse(feed);
+        File file = new File(directory, "search.catalogue");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            CakeCatalogue.write(cakes, out);
+        } finally {
+            out.close();
+        }
+        final CakeCatalogue catalogue = CakeCatalogue.map(file);
+
+        harness.run("search.build index 50k rows", 1, 0, new Harness.Operation() {
+            @Override
+            public long run(long index) {
+                return CakeSearchIndex.build(catalogue).getWordCount();
+            }
+        });
+
+        final CakeSearchIndex searchIndex = CakeSearchIndex.build(catalogue);
+        harness.run("search.type query, narrowing", 1, 0, new Harness.Operation() {
+            @Override
+            public long run(long index) {
+                CakeSearchIndex.Result result = null;
+                for (int i = 1; i <= QUERY.length(); i++) {
+                    result = searchIndex.search(QUERY.substring(0, i), result);
+                }
+                return result.size();
+            }
+        });
+        harness.run("search.type query, from scratch", 1, 0, new Harness.Operation() {
+            @Override
+            public long run(long index) {
+                long count = 0;
+                for (int i = 1; i <= QUERY.length(); i++) {
+                    count += searchIndex.search(QUERY.substring(0, i)).size();
+                }
+                return count;
+            }
+        });
+        file.delete();
+    }
+
+    private static List<Cake> parse(byte[] feed) throws Exception {
+        CakeFeedParser parser = new CakeFeedParser(
+                new InputStreamReader(new ByteArrayInputStream(feed), "UTF-8"));
+        List<Cake> cakes = new ArrayList<>();
+        Cake cake;
+        while ((cake = parser.next()) != null) {
+            cakes.add(cake);
+        }
+        return cakes;
+    }
+}
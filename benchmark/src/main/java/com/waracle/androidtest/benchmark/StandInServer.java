@@ -0,0 +1,89 @@
+package com.waracle.androidtest.benchmark;
+
+import com.waracle.androidtest.LocalHttpServer;
+import com.waracle.androidtest.SyntheticContent;
+
+/**
+ * Serves a synthetic feed and its images from this machine, for running the app against by
+ * hand without the real hosts:
+ *
+ *   ./gradlew :benchmark:serve -Pargs="--rows 5000 --latency 300 --bandwidth 131072"
+ *   ./gradlew :app:installDebug -PfeedUrl=http://10.0.2.2:8080/feed.json
+ *
+ * 10.0.2.2 is the emulator's address for this machine. Options, all optional:
+ *   --host name      the host the device reaches this machine by, which the feed's image urls
+ *                    point at, 10.0.2.2. 127.0.0.1 for a device that has run adb reverse.
+ *   --port n         the port to listen on, 8080
+ *   --rows n         cakes in the feed, 1000
+ *   --images n       distinct images the rows cycle through, 20
+ *   --size WxH       the images' size, 512x384
+ *   --latency ms     delay before every response, 0
+ *   --bandwidth B/s  bandwidth shared by every connection, 0 for unlimited
+ *   --errors rate    fraction of the images that fail with a 500, 0
+ */
+public final class StandInServer {
+
+    private StandInServer() {
+        //Run from main
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "10.0.2.2";
+        int port = 8080;
+        int rows = 1000;
+        int images = 20;
+        int width = 512;
+        int height = 384;
+        long latency = 0;
+        long bandwidth = 0;
+        double errors = 0;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--host":
+                    host = value;
+                    break;
+                case "--port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "--rows":
+                    rows = Integer.parseInt(value);
+                    break;
+                case "--images":
+                    images = Integer.parseInt(value);
+                    break;
+                case "--size":
+                    String[] size = value.split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                    break;
+                case "--latency":
+                    latency = Long.parseLong(value);
+                    break;
+                case "--bandwidth":
+                    bandwidth = Long.parseLong(value);
+                    break;
+                case "--errors":
+                    errors = Double.parseDouble(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        LocalHttpServer server = new LocalHttpServer(port);
+        server.setLatencyMillis(latency);
+        server.setBytesPerSecond(bandwidth);
+        server.setErrors("/images/", errors, LocalHttpServer.ERROR_STATUS);
+        server.setGzipEnabled(true);
+        for (int i = 0; i < images; i++) {
+            server.setResource("/images/" + i + ".png",
+                    SyntheticContent.imageResource(SyntheticContent.png(width, height, i), i));
+        }
+        String base = "http://" + host + ":" + port;
+        server.setResource("/feed.json", SyntheticContent.feedResource(
+                SyntheticContent.feed(rows, base + "/images/", images)));
+        server.start();
+        System.out.println("Serving " + base + "/feed.json, Ctrl-C to stop");
+    }
+}
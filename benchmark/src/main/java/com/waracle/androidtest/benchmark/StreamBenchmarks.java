@@ -0,0 +1,58 @@
+package com.waracle.androidtest.benchmark;
+
+import com.waracle.androidtest.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * StreamUtils reading bodies of the sizes the app sees, from thumbnails to the largest photos,
+ * both from a stream that hands everything over at once and from one that trickles it in
+ * packet sized reads like a socket.
+ */
+public final class StreamBenchmarks {
+
+    private static final int[] SIZES = {1024, 64 * 1024, 1024 * 1024, 8 * 1024 * 1024};
+    private static final int PACKET_SIZE = 1460;
+
+    private StreamBenchmarks() {
+        //Static methods only
+    }
+
+    public static void run(Harness harness) throws Exception {
+        for (int size : SIZES) {
+            final byte[] payload = Payloads.randomBytes(size, size);
+            harness.run("stream.readUnknownFully " + label(size), 1, size,
+                    new Harness.Operation() {
+                        @Override
+                        public long run(long index) throws Exception {
+                            return StreamUtils.readUnknownFully(
+                                    new ByteArrayInputStream(payload)).length;
+                        }
+                    });
+            harness.run("stream.readUnknownFully packets " + label(size), 1, size,
+                    new Harness.Operation() {
+                        @Override
+                        public long run(long index) throws Exception {
+                            InputStream in = Payloads.chunked(
+                                    new ByteArrayInputStream(payload), PACKET_SIZE);
+                            return StreamUtils.readUnknownFully(in).length;
+                        }
+                    });
+            harness.run("stream.readFully known length " + label(size), 1, size,
+                    new Harness.Operation() {
+                        @Override
+                        public long run(long index) throws Exception {
+                            InputStream in = Payloads.chunked(
+                                    new ByteArrayInputStream(payload), PACKET_SIZE);
+                            return StreamUtils.readFully(in, payload.length,
+                                    StreamUtils.DEFAULT_MAX_BYTES).length;
+                        }
+                    });
+        }
+    }
+
+    private static String label(int size) {
+        return size >= 1024 * 1024 ? size / (1024 * 1024) + "MB" : size / 1024 + "KB";
+    }
+}